@@ -0,0 +1,144 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.logging.Level;
+
+/**
+ * <p>Checks that the frame loop doesn't allocate once it is warmed up.</p>
+ * <p>Plays an animated game with a bot and feeds every frame to the
+ * local outputs: recording sink, sharded router, palette encoder and DMX on
+ * loopback. The heap allocated by the loop thread is measured over all
+ * frames after the warm up. Exits with status 1 if more than the allowed
+ * bytes per frame were allocated, so it can guard a build.</p>
+ * <p>Messages at INFO and above allocate by nature and are turned off
+ * while measuring; the loop itself must not log below that.</p>
+ * <p>The vector API allocates every vector until the JIT compiled it, so
+ * the warm up is longer by default when {@link BlockColors} uses it.</p>
+ * <p>Usage: <code>AllocationCheck [-frames n] [-warmup n] [-fps n]
+ * [-budget bytesPerFrame]</code></p>
+ */
+public class AllocationCheck {
+
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 14;
+    private static final int COLUMNS = 3;
+
+    /* Frames to wait before a new game is started */
+    private static final int IDLE_FRAMES = FalldownApplet.FPS * 3;
+
+    /* Default warm up with the vector path, measured to compile at about
+       half of it */
+    private static final int VECTOR_WARM_UP_FRAMES = 30000;
+
+    public static void main(String[] args) throws Exception {
+        int frames = 20000;
+        int warmup = BlockColors.isVectorized() ? VECTOR_WARM_UP_FRAMES : 5000;
+        int fps = 500;
+        double budget = 1;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-frames")) {
+                frames = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-warmup")) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-fps")) {
+                fps = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-budget")) {
+                budget = Double.parseDouble(args[++i]);
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("Allocation measurement not supported by this VM");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Falldown falldown = new Falldown(WIDTH, HEIGHT, COLUMNS);
+        HeadlessRunner runner = new HeadlessRunner(falldown, null, 0);
+
+        runner.addFrameSink(new RecordingFrameSink());
+        runner.addFrameSink(ShardedOutputRouter.byColumns(new FrameSink[]{
+                new RecordingFrameSink(), new RecordingFrameSink(), new RecordingFrameSink()},
+                WIDTH, HEIGHT, COLUMNS));
+
+        final PaletteFrameEncoder encoder = new PaletteFrameEncoder();
+        final ByteBuffer encoded = ByteBuffer.allocateDirect(encoder.getMaxEncodedSize(WIDTH, HEIGHT));
+        runner.addFrameSink(new FrameSink() {
+
+            @Override
+            public void sendFrame(GridFrame frame) {
+                encoded.clear();
+                encoder.encode(frame, encoded);
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+        DmxReceiver receiver = new DmxReceiver(0);
+        runner.addFrameSink(new DmxFrameSink(DmxFrameSink.Protocol.E131,
+                new InetSocketAddress("127.0.0.1", receiver.getPort()),
+                WIDTH, HEIGHT, 1, false));
+
+        BotPlayer bot = BotPlayer.create("greedy", new Random(1));
+        FalldownApplet.getLogger().setLevel(Level.WARNING);
+
+        long frameNanos = fps > 0 ? 1000000000L / fps : 0;
+        long tid = Thread.currentThread().getId();
+        long allocatedBefore = 0;
+        int idle = 0;
+        int levelsPlayed = 0;
+        int lastLevel = 0;
+        falldown.resetAndPurge();
+
+        for (int frame = 0; frame < warmup + frames; frame++) {
+            if (frame == warmup) {
+                allocatedBefore = threads.getThreadAllocatedBytes(tid);
+            }
+
+            if (frame % 5 == 0 && !falldown.isPlayerDead()) {
+                BotPlayer.apply(falldown, bot.decide(falldown, frame));
+            }
+            if (falldown.isPlayerDead() || falldown.isGameWon()) {
+                if (++idle > IDLE_FRAMES) {
+                    idle = 0;
+                    falldown.resetAndPurge();
+                }
+            }
+            if (falldown.getCurrentLevel() != lastLevel) {
+                lastLevel = falldown.getCurrentLevel();
+                levelsPlayed++;
+            }
+
+            runner.runFrame();
+            receiver.poll();
+
+            if (frameNanos > 0) {
+                Thread.sleep(frameNanos / 1000000, (int) (frameNanos % 1000000));
+            }
+        }
+
+        long allocated = threads.getThreadAllocatedBytes(tid) - allocatedBefore;
+        FalldownApplet.getLogger().setLevel(Level.INFO);
+        double perFrame = (double) allocated / frames;
+
+        System.out.println(frames + " frames after " + warmup + " warm up frames, "
+                + levelsPlayed + " level changes, "
+                + receiver.getPacketsReceived() + " DMX packets received");
+        System.out.println("allocated " + allocated + " bytes, "
+                + String.format("%.3f", perFrame) + " bytes per frame (budget " + budget + ")");
+        if (perFrame > budget) {
+            System.out.println("FAILED: the frame loop allocates");
+            System.exit(1);
+        }
+        System.out.println("OK");
+        System.exit(0);
+    }
+}
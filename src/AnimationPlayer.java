@@ -0,0 +1,117 @@
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Plays the work that goes along with the animations of a game on one
+ * reusable thread, like building the next level while the treasure
+ * animation is shown. The animations themselves change the grid in the
+ * update of the game.</p>
+ * <p>Jobs are queued with <code>play()</code> and run one after
+ * another. <code>cancel()</code> stops the running one; a long running
+ * job has to check <code>isCurrent()</code> and return once it got
+ * cancelled or replaced. No thread is created after construction.</p>
+ */
+public class AnimationPlayer {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    private final Thread thread;
+
+    /* Animation waiting to be started, guarded by this */
+    private Runnable pending;
+    private boolean running = false;
+    private boolean shutdown = false;
+
+    /* Increased by every play() and cancel() */
+    private volatile int generation = 0;
+    /* Generation of the running animation, only used by the thread */
+    private int runningGeneration;
+
+    /**
+     * @param name Name of the thread
+     */
+    public AnimationPlayer(String name) {
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                loop();
+            }
+
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void loop() {
+        while (true) {
+            Runnable animation;
+            synchronized (this) {
+                running = false;
+                while (pending == null && !shutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Cancelled while idle, nothing to stop
+                    }
+                }
+                if (shutdown) {
+                    return;
+                }
+                animation = pending;
+                pending = null;
+                runningGeneration = generation;
+                running = true;
+                // Forget interrupts meant for the previous animation
+                Thread.interrupted();
+            }
+            try {
+                animation.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Animation failed " + e);
+            }
+        }
+    }
+
+    /**
+     * Starts an animation once the running one returned. Replaces an
+     * animation that is still waiting.
+     *
+     * @param animation Animation to play
+     */
+    public synchronized void play(Runnable animation) {
+        pending = animation;
+        generation++;
+        notifyAll();
+    }
+
+    /**
+     * Drops the waiting animation and interrupts the running one
+     */
+    public synchronized void cancel() {
+        pending = null;
+        generation++;
+        if (running) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Cancels the running animation and ends the thread
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        cancel();
+        notifyAll();
+    }
+
+    /**
+     * Has to be called from within an animation
+     *
+     * @return false once the animation got cancelled or another one was
+     * requested
+     */
+    public boolean isCurrent() {
+        return runningGeneration == generation;
+    }
+}
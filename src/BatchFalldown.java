@@ -0,0 +1,713 @@
+import java.util.Arrays;
+import java.util.concurrent.Phaser;
+
+/**
+ * <p>Steps many independent games in lockstep, for training and evaluating
+ * automated players.</p>
+ * <p>Follows the rules of an unanimated {@link Falldown}: a reached
+ * treasure loads the next level at once, the game ends when the player
+ * dies or completes every level. The state of all games lives in primitive
+ * arrays indexed by game, the grids in one byte array, so a step touches
+ * no objects and allocates nothing.</p>
+ * <p>A step is one frame of the game. Every game gets a move
+ * (<code>BotPlayer.LEFT</code>, <code>STAY</code> or <code>RIGHT</code>),
+ * advances by one frame and writes its grid into the observations, with
+ * the player and treasure drawn in. A game earns 1 for every treasure and
+ * -1 for dying. A game that ended is reset right away; its
+ * <code>done</code> flag is set for that step and its observation already
+ * shows the new game.</p>
+ * <p>The games are split between worker threads that step their share in
+ * parallel. Calls have to come from one thread at a time.</p>
+ */
+public class BatchFalldown {
+
+    /* Rewards */
+    public static final float TREASURE_REWARD = 1f;
+    public static final float DEATH_REWARD = -1f;
+
+    /* Attempts to find a treasure position before giving up */
+    private static final int MAX_TREASURE_ATTEMPTS = 1000;
+
+    private static final byte EMPTY = Falldown.EMPTY_BLOCK;
+    private static final byte NORMAL = Falldown.NORMAL_BLOCK;
+    private static final byte FADING = Falldown.FADING_BLOCK;
+
+    private final int games;
+    private final int gridWidth;
+    private final int gridHeight;
+    private final int cells;
+    private final int columns;
+    private final int columnWidth;
+    private final LevelParameters levelParameters;
+    private final int levelCount;
+    private final int holeChance;
+
+    /* Static blocks of every grid, game by game, column by column */
+    private final byte[] grids;
+
+    /* State of every game */
+    private final int[] playerX;
+    private final int[] playerY;
+    private final int[] treasureX;
+    private final int[] treasureY;
+    /* Cell the player or treasure was drawn at in the last frame, -1 if not */
+    private final int[] drawnPlayer;
+    private final int[] drawnTreasure;
+    private final int[] treasureSteps;
+    private final int[] levels;
+    private final int[] frames;
+    private final int[] framesPerMove;
+    private final int[] maxTreasureSteps;
+    private final boolean[] holes;
+    private final boolean[] playerDead;
+    private final boolean[] treasureOutOfBounds;
+    private final boolean[] active;
+    private final long[] randomStates;
+
+    /* Results of the last step */
+    private final byte[] observations;
+    private final float[] rewards;
+    private final boolean[] dones;
+    private final Falldown.DeathCause[] deathCauses;
+    private final int[] endLevels;
+    private final long[] episodes;
+
+    /* Workers, each steps a slice of the games */
+    private final int threads;
+    private final Phaser phaser;
+    private final Thread[] workers;
+    private final byte[][] scratchGrids;
+    private int[] actions;
+    private volatile boolean closed = false;
+
+    /**
+     * @param games           Number of games
+     * @param gridWidth       Width of a grid
+     * @param gridHeight      Height of a grid
+     * @param columns         Columns of a grid
+     * @param levelParameters Difficulty of the levels
+     * @param seed            Seed of every random decision
+     * @param threads         Threads stepping the games, including the
+     *                        caller
+     */
+    public BatchFalldown(int games, int gridWidth, int gridHeight, int columns,
+                         LevelParameters levelParameters, long seed, int threads) {
+        if (levelParameters.getTileHeight() > 0) {
+            throw new IllegalArgumentException("Scrolling worlds aren't supported");
+        }
+        this.games = games;
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.cells = gridWidth * gridHeight;
+        this.columns = columns;
+        this.columnWidth = gridWidth / columns;
+        this.levelParameters = levelParameters;
+        this.levelCount = levelParameters.getLevelCount();
+        this.holeChance = levelParameters.getHoleChance();
+
+        grids = new byte[games * cells];
+        playerX = new int[games];
+        playerY = new int[games];
+        treasureX = new int[games];
+        treasureY = new int[games];
+        drawnPlayer = new int[games];
+        drawnTreasure = new int[games];
+        treasureSteps = new int[games];
+        levels = new int[games];
+        frames = new int[games];
+        framesPerMove = new int[games];
+        maxTreasureSteps = new int[games];
+        holes = new boolean[games];
+        playerDead = new boolean[games];
+        treasureOutOfBounds = new boolean[games];
+        active = new boolean[games];
+        randomStates = new long[games];
+        long state = seed;
+        for (int i = 0; i < games; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            randomStates[i] = mix(state) | 1;
+        }
+
+        observations = new byte[games * cells];
+        rewards = new float[games];
+        dones = new boolean[games];
+        deathCauses = new Falldown.DeathCause[games];
+        endLevels = new int[games];
+        episodes = new long[games];
+
+        this.threads = Math.max(1, Math.min(threads, games));
+        scratchGrids = new byte[this.threads][cells];
+        phaser = new Phaser(this.threads);
+        workers = new Thread[this.threads - 1];
+        for (int i = 0; i < workers.length; i++) {
+            final int slice = i + 1;
+            workers[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    while (true) {
+                        phaser.arriveAndAwaitAdvance();
+                        if (closed) {
+                            phaser.arriveAndDeregister();
+                            return;
+                        }
+                        stepSlice(slice);
+                        phaser.arriveAndAwaitAdvance();
+                    }
+                }
+            }, "batch-falldown-" + slice);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        reset();
+    }
+
+    // #########################################################################
+    // API
+    // #########################################################################
+
+    /**
+     * Starts a new game everywhere and fills the observations
+     */
+    public void reset() {
+        for (int game = 0; game < games; game++) {
+            resetGame(game);
+            observe(game);
+            rewards[game] = 0;
+            dones[game] = false;
+        }
+    }
+
+    /**
+     * Advances every game by one frame
+     *
+     * @param actions Move of every game, <code>BotPlayer.LEFT</code>,
+     *                <code>STAY</code> or <code>RIGHT</code>
+     */
+    public void step(int[] actions) {
+        if (actions.length < games) {
+            throw new IllegalArgumentException(actions.length + " moves for " + games + " games");
+        }
+        this.actions = actions;
+        if (threads > 1) {
+            // Starts the workers, the phaser makes the moves visible to them
+            phaser.arriveAndAwaitAdvance();
+            stepSlice(0);
+            phaser.arriveAndAwaitAdvance();
+        } else {
+            stepSlice(0);
+        }
+    }
+
+    /**
+     * Stops the workers
+     */
+    public void close() {
+        if (closed || threads == 1) {
+            closed = true;
+            return;
+        }
+        closed = true;
+        phaser.arriveAndDeregister();
+    }
+
+    /**
+     * @return grids after the last step, <code>gridWidth * gridHeight</code>
+     * blocks per game, column by column. Must not be changed.
+     */
+    public byte[] getObservations() {
+        return observations;
+    }
+
+    /**
+     * @return reward of every game in the last step
+     */
+    public float[] getRewards() {
+        return rewards;
+    }
+
+    /**
+     * @return true for every game that ended in the last step and was reset
+     */
+    public boolean[] getDones() {
+        return dones;
+    }
+
+    /**
+     * @return what ended the game of a done flag, <code>NONE</code> if it
+     * was won
+     */
+    public Falldown.DeathCause[] getDeathCauses() {
+        return deathCauses;
+    }
+
+    /**
+     * @return level an ended game was in, the level count if it was won
+     */
+    public int[] getEndLevels() {
+        return endLevels;
+    }
+
+    /**
+     * @return current level of every game. Must not be changed.
+     */
+    public int[] getLevels() {
+        return levels;
+    }
+
+    /**
+     * @return player column of every game. Must not be changed.
+     */
+    public int[] getPlayerX() {
+        return playerX;
+    }
+
+    /**
+     * @return player row of every game. Must not be changed.
+     */
+    public int[] getPlayerY() {
+        return playerY;
+    }
+
+    /**
+     * @return treasure column of every game. Must not be changed.
+     */
+    public int[] getTreasureX() {
+        return treasureX;
+    }
+
+    /**
+     * @return treasure row of every game. Must not be changed.
+     */
+    public int[] getTreasureY() {
+        return treasureY;
+    }
+
+    /**
+     * @return finished games of every game slot since the start
+     */
+    public long getEpisodes() {
+        long total = 0;
+        for (int i = 0; i < games; i++) {
+            total += episodes[i];
+        }
+        return total;
+    }
+
+    public int getGameCount() {
+        return games;
+    }
+
+    public int getGridWidth() {
+        return gridWidth;
+    }
+
+    public int getGridHeight() {
+        return gridHeight;
+    }
+
+    public int getThreadCount() {
+        return threads;
+    }
+
+    // #########################################################################
+    // STEP
+    // #########################################################################
+
+    private void stepSlice(int slice) {
+        int from = (int) ((long) games * slice / threads);
+        int to = (int) ((long) games * (slice + 1) / threads);
+        byte[] scratch = scratchGrids[slice];
+        int[] moves = actions;
+        for (int game = from; game < to; game++) {
+            stepGame(game, moves[game], scratch);
+        }
+    }
+
+    private void stepGame(int game, int action, byte[] scratch) {
+        rewards[game] = 0;
+        dones[game] = false;
+        if (action != BotPlayer.STAY) {
+            int x = playerX[game] + (action < 0 ? -1 : 1);
+            if (x >= 0 && x < gridWidth) {
+                playerX[game] = x;
+            }
+        }
+
+        int frame = frames[game]++;
+        if (active[game] && !playerDead[game]) {
+            if (frame % framesPerMove[game] == 0) {
+                moveGrid(game, scratch);
+            }
+            updateTreasure(game);
+            updatePlayer(game);
+        }
+
+        if (playerDead[game] || !active[game]) {
+            dones[game] = true;
+            endLevels[game] = levels[game];
+            episodes[game]++;
+            if (playerDead[game]) {
+                rewards[game] += DEATH_REWARD;
+            } else {
+                deathCauses[game] = Falldown.DeathCause.NONE;
+            }
+            resetGame(game);
+        }
+        observe(game);
+    }
+
+    /**
+     * Moves every column by one block, like <code>Falldown.updateGrid()</code>
+     */
+    private void moveGrid(int game, byte[] scratch) {
+        Arrays.fill(scratch, EMPTY);
+        treasureSteps[game]++;
+        int base = game * cells;
+        int height = gridHeight;
+        for (int column = 0; column < columns; column++) {
+            boolean upward = column % 2 == 0;
+            // New rows only come in behind two rows without blocks
+            boolean newRow = upward
+                    ? isRowEmpty(base, column, height - 1) && isRowEmpty(base, column, height - 2)
+                    : isRowEmpty(base, column, 0) && isRowEmpty(base, column, 1);
+            for (int x = column * columnWidth; x < (column + 1) * columnWidth; x++) {
+                int offset = x * height;
+                if (upward) {
+                    if (grids[base + offset + 1] == NORMAL) {
+                        scratch[offset] = FADING;
+                    }
+                    for (int y = 2; y < height; y++) {
+                        if (grids[base + offset + y] == NORMAL) {
+                            scratch[offset + y - 1] = NORMAL;
+                        }
+                    }
+                    if (newRow) {
+                        scratch[offset + height - 1] = nextBlock(game);
+                    }
+                } else {
+                    for (int y = 0; y < height - 2; y++) {
+                        if (grids[base + offset + y] == NORMAL) {
+                            scratch[offset + y + 1] = NORMAL;
+                        }
+                    }
+                    if (grids[base + offset + height - 2] == NORMAL) {
+                        scratch[offset + height - 1] = FADING;
+                    }
+                    if (newRow) {
+                        scratch[offset] = nextBlock(game);
+                    }
+                }
+
+                // Player and treasure move with the column they were drawn in
+                int player = drawnPlayer[game];
+                if (player >= offset && player < offset + height && upward) {
+                    if (playerY[game] == 0) {
+                        playerDead[game] = true;
+                        deathCauses[game] = Falldown.DeathCause.PUSHED_OUT_TOP;
+                    } else {
+                        playerY[game]--;
+                    }
+                }
+                int treasure = drawnTreasure[game];
+                if (treasure >= offset && treasure < offset + height) {
+                    if (upward) {
+                        if (treasureY[game] == 0) {
+                            treasureOutOfBounds[game] = true;
+                        } else {
+                            treasureY[game]--;
+                        }
+                    } else if (treasureY[game] == height - 1) {
+                        treasureOutOfBounds[game] = true;
+                    } else {
+                        treasureY[game]++;
+                    }
+                }
+            }
+        }
+        System.arraycopy(scratch, 0, grids, base, cells);
+    }
+
+    private boolean isRowEmpty(int base, int column, int y) {
+        for (int x = column * columnWidth; x < (column + 1) * columnWidth; x++) {
+            if (grids[base + x * gridHeight + y] != EMPTY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte nextBlock(int game) {
+        return holes[game] && nextInt(game, 100) < holeChance ? EMPTY : NORMAL;
+    }
+
+    private void updateTreasure(int game) {
+        if (treasureOutOfBounds[game]) {
+            placeTreasure(game);
+        }
+        int base = game * cells;
+        // Falls through empty cells
+        if (treasureY[game] < gridHeight - 1
+                && grids[base + treasureX[game] * gridHeight + treasureY[game] + 1] == EMPTY) {
+            treasureY[game]++;
+        }
+        if (treasureSteps[game] == maxTreasureSteps[game]) {
+            placeTreasure(game);
+        }
+        if (treasureY[game] == gridHeight - 1) {
+            treasureOutOfBounds[game] = true;
+        }
+        // Drawing the treasure wipes the block it sits on
+        int cell = treasureX[game] * gridHeight + treasureY[game];
+        grids[base + cell] = EMPTY;
+        drawnTreasure[game] = cell;
+    }
+
+    private void updatePlayer(int game) {
+        int base = game * cells;
+        if (playerY[game] == gridHeight - 1) {
+            playerDead[game] = true;
+            deathCauses[game] = Falldown.DeathCause.FELL_TO_BOTTOM;
+        } else if (playerY[game] != 0
+                && grids[base + playerX[game] * gridHeight + playerY[game] + 1] == EMPTY) {
+            playerY[game]++;
+        }
+
+        if (playerX[game] == treasureX[game] && playerY[game] == treasureY[game]) {
+            rewards[game] += TREASURE_REWARD;
+            advanceLevel(game);
+        }
+
+        // Drawing the player wipes the block it stands in
+        int cell = playerX[game] * gridHeight + playerY[game];
+        grids[base + cell] = EMPTY;
+        drawnPlayer[game] = cell;
+    }
+
+    // #########################################################################
+    // LEVELS
+    // #########################################################################
+
+    private void advanceLevel(int game) {
+        levels[game]++;
+        if (levels[game] >= levelCount) {
+            active[game] = false;
+            return;
+        }
+        purge(game);
+        setLevelParams(game, levels[game]);
+        buildLevel(game);
+    }
+
+    private void resetGame(int game) {
+        purge(game);
+        levels[game] = 0;
+        frames[game] = 0;
+        // Like resetAndPurge(), the first level is built before its settings
+        buildLevel(game);
+        setLevelParams(game, 0);
+    }
+
+    private void purge(int game) {
+        treasureSteps[game] = 0;
+        playerDead[game] = false;
+        treasureOutOfBounds[game] = false;
+        active[game] = true;
+        holes[game] = false;
+    }
+
+    private void setLevelParams(int game, int level) {
+        maxTreasureSteps[game] = levelParameters.getMaxTreasureSteps(level);
+        framesPerMove[game] = (int) (FalldownApplet.FPS / levelParameters.getRefreshLevel(level));
+        if (level >= levelParameters.getHolesFromLevel()) {
+            holes[game] = true;
+        }
+    }
+
+    /**
+     * Fills the grid with lines every third row, like
+     * <code>Falldown.buildLevel()</code>, and places player and treasure
+     */
+    private void buildLevel(int game) {
+        int base = game * cells;
+        Arrays.fill(grids, base, base + cells, EMPTY);
+        for (int y = 0; y < gridHeight; y++) {
+            int holePosition = (int) (nextDouble(game) * gridWidth - 1);
+            if (y % 3 == 0) {
+                for (int x = 0; x < gridWidth; x++) {
+                    grids[base + x * gridHeight + y] =
+                            x == holePosition && holes[game] ? EMPTY : NORMAL;
+                }
+            }
+        }
+        playerX[game] = gridWidth / 2;
+        playerY[game] = 2;
+        drawnPlayer[game] = playerX[game] * gridHeight + playerY[game];
+        drawnTreasure[game] = -1;
+        placeTreasure(game, drawnPlayer[game]);
+    }
+
+    private void placeTreasure(int game) {
+        // The player isn't drawn while the treasure moves
+        placeTreasure(game, -1);
+    }
+
+    /**
+     * Puts the treasure on a random cell above a block
+     *
+     * @param playerCell Cell the treasure must not take, -1 for none
+     */
+    private void placeTreasure(int game, int playerCell) {
+        treasureSteps[game] = 0;
+        treasureOutOfBounds[game] = false;
+        int base = game * cells;
+        int x = 0;
+        int y = 0;
+        for (int attempt = 0; attempt < MAX_TREASURE_ATTEMPTS; attempt++) {
+            x = nextInt(game, gridWidth);
+            y = nextInt(game, gridHeight - 2);
+            byte below = grids[base + x * gridHeight + y + 1];
+            if ((below == NORMAL || below == FADING)
+                    && x * gridHeight + y != playerCell) {
+                break;
+            }
+        }
+        treasureX[game] = x;
+        treasureY[game] = y;
+    }
+
+    private void observe(int game) {
+        int base = game * cells;
+        System.arraycopy(grids, base, observations, base, cells);
+        observations[base + treasureX[game] * gridHeight + treasureY[game]] =
+                (byte) Falldown.TREASURE_BLOCK;
+        observations[base + playerX[game] * gridHeight + playerY[game]] =
+                (byte) Falldown.PLAYER_BLOCK;
+    }
+
+    // #########################################################################
+    // RANDOM
+    // #########################################################################
+
+    /* xorshift64* per game, no shared state between the workers */
+    private long nextLong(int game) {
+        long x = randomStates[game];
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        randomStates[game] = x;
+        return x * 0x2545F4914F6CDD1DL;
+    }
+
+    private int nextInt(int game, int bound) {
+        return (int) (((nextLong(game) >>> 32) * bound) >>> 32);
+    }
+
+    private double nextDouble(int game) {
+        return (nextLong(game) >>> 11) * 0x1.0p-53;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // #########################################################################
+    // STANDALONE
+    // #########################################################################
+
+    /**
+     * <p>Measures steps per second with a simple policy and reports how the
+     * games went.</p>
+     * <p>Usage: <code>BatchFalldown [-games n] [-threads n] [-seconds n]
+     * [-policy random|chase] [-params text]</code>. <code>chase</code> moves
+     * towards the column of the treasure.</p>
+     */
+    public static void main(String[] args) throws Exception {
+        int games = 4096;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int seconds = 10;
+        String policy = "chase";
+        LevelParameters parameters = LevelParameters.DEFAULT;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-games")) {
+                games = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-seconds")) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-policy")) {
+                policy = args[++i];
+            } else if (args[i].equals("-params")) {
+                parameters = LevelParameters.parse(args[++i]);
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+        if (!policy.equals("random") && !policy.equals("chase")) {
+            System.err.println("Unknown policy " + policy);
+            System.exit(2);
+        }
+        boolean chase = policy.equals("chase");
+        FalldownApplet.getLogger().setLevel(java.util.logging.Level.WARNING);
+
+        BatchFalldown batch = new BatchFalldown(games, 9, 14, FalldownApplet.COLUMNS,
+                parameters, System.nanoTime(), threads);
+        int[] actions = new int[games];
+        long random = System.nanoTime() | 1;
+        int[] playerX = batch.getPlayerX();
+        int[] treasureX = batch.getTreasureX();
+        boolean[] dones = batch.getDones();
+        int[] endLevels = batch.getEndLevels();
+        Falldown.DeathCause[] causes = batch.getDeathCauses();
+        long[] levelCounts = new long[parameters.getLevelCount() + 1];
+        long[] causeCounts = new long[Falldown.DeathCause.values().length];
+
+        long steps = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            for (int round = 0; round < 100; round++) {
+                for (int i = 0; i < games; i++) {
+                    if (chase) {
+                        int difference = treasureX[i] - playerX[i];
+                        actions[i] = difference < 0 ? BotPlayer.LEFT
+                                : difference > 0 ? BotPlayer.RIGHT : BotPlayer.STAY;
+                    } else {
+                        random ^= random << 13;
+                        random ^= random >>> 7;
+                        random ^= random << 17;
+                        actions[i] = (int) ((random >>> 1) % 3) - 1;
+                    }
+                }
+                batch.step(actions);
+                for (int i = 0; i < games; i++) {
+                    if (dones[i]) {
+                        levelCounts[endLevels[i]]++;
+                        causeCounts[causes[i].ordinal()]++;
+                    }
+                }
+                steps += games;
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        batch.close();
+
+        System.out.println(String.format("%d games on %d threads, policy %s: %.2f million steps/s",
+                games, batch.getThreadCount(), policy, steps / elapsed / 1e6));
+        long episodes = batch.getEpisodes();
+        System.out.println(episodes + " games ended, " + String.format("%.1f", (double) steps / Math.max(1, episodes))
+                + " frames each on average");
+        StringBuilder reached = new StringBuilder("ended in level");
+        for (int level = 0; level < levelCounts.length; level++) {
+            reached.append(String.format(" %d: %.1f%%", level,
+                    100.0 * levelCounts[level] / Math.max(1, episodes)));
+        }
+        System.out.println(reached + " (" + parameters.getLevelCount() + " is won)");
+        System.out.println("ended by " + Arrays.toString(Falldown.DeathCause.values()) + " "
+                + Arrays.toString(causeCounts));
+        System.exit(0);
+    }
+}
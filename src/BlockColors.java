@@ -0,0 +1,214 @@
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Colours used for the blocks of the output image. Values are packed as
+ * <code>0xAARRGGBB</code> like the pixels of a processing image.</p>
+ * <p>The bulk conversions run several pixels at a time through the vector
+ * API, and so does the colour correction of <code>ColorPipeline</code>, if <code>VectorBlockColors</code> from <code>vector/</code> is on the
+ * class path and the JVM was started with <code>--add-modules
+ * jdk.incubator.vector</code>. Otherwise, or with
+ * <code>-Dfalldown.vector=false</code>, they use the scalar loops, which
+ * give the same result. Until the JIT compiled it the vector path is
+ * slower than the loops and allocates, which <code>WARM_UP_TICKS</code>
+ * can cover before the first game.</p>
+ */
+public final class BlockColors {
+
+    /**
+     * Bulk conversions of an optional faster implementation
+     */
+    interface Bulk {
+        void toRgb(int[] blocks, int count, int[] target, Random random);
+
+        void packRgb(int[] source, int from, int count, byte[] target, int offset);
+
+        /**
+         * Corrects whole vectors of colours like
+         * <code>ColorPipeline.Stage.applyAll()</code>
+         *
+         * @param carry Dithering fractions, null to round instead
+         * @param lanes Scratch array of <code>getLanes()</code> entries
+         * @return number of pixels corrected, the rest is left to the caller
+         */
+        int correct(int[] red, int[] green, int[] blue, int[] carry,
+                    int[] source, int[] target, int count, int[] lanes);
+
+        /**
+         * @return pixels converted per step
+         */
+        int getLanes();
+    }
+
+    public static final int EMPTY = 0xFF000000;
+    public static final int NORMAL = 0xFF00FF00;
+    public static final int FADING = 0xFF009600;
+    public static final int PLAYER = 0xFF0000FF;
+    public static final int TREASURE = 0xFFFFFF00;
+    public static final int RED = 0xFFFF0000;
+
+    /* Colour of every block identifier, RANDOM_BLOCK is looked up apart */
+    private static final int[] TABLE = new int[Falldown.RANDOM_BLOCK + 1];
+
+    static {
+        TABLE[Falldown.EMPTY_BLOCK] = EMPTY;
+        TABLE[Falldown.NORMAL_BLOCK] = NORMAL;
+        TABLE[Falldown.FADING_BLOCK] = FADING;
+        TABLE[Falldown.PLAYER_BLOCK] = PLAYER;
+        TABLE[Falldown.TREASURE_BLOCK] = TREASURE;
+        TABLE[Falldown.RED_BLOCK] = RED;
+        TABLE[Falldown.RANDOM_BLOCK] = EMPTY;
+    }
+
+    /* Vector implementation, null for the scalar loops */
+    private static final Bulk VECTOR = loadVector();
+
+    private static Bulk loadVector() {
+        if (!Boolean.parseBoolean(System.getProperty("falldown.vector", "true"))) {
+            return null;
+        }
+        Logger logger = FalldownApplet.getLogger();
+        try {
+            Bulk bulk = (Bulk) Class.forName("VectorBlockColors")
+                    .getDeclaredConstructor().newInstance();
+            logger.log(Level.INFO, "Colours are converted " + bulk.getLanes()
+                    + " pixels at a time");
+            return bulk;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (LinkageError e) {
+            // Compiled in, but the incubator module isn't added
+            logger.log(Level.FINE, "Vector API not available " + e);
+            return null;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Vector colour conversion failed " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the bulk conversions use the vector API
+     */
+    public static boolean isVectorized() {
+        return VECTOR != null;
+    }
+
+    /**
+     * @return vector implementation, null if the scalar loops are used
+     */
+    static Bulk getVector() {
+        return VECTOR;
+    }
+
+    private BlockColors() {
+    }
+
+    /**
+     * Looks up the output colour of a block
+     *
+     * @param block  Block identifier as defined in <code>Falldown</code>
+     * @param random Source for the colours of <code>RANDOM_BLOCK</code>
+     * @return colour of the block
+     */
+    public static int toRgb(int block, Random random) {
+        switch (block) {
+            case Falldown.NORMAL_BLOCK:
+                return NORMAL;
+            case Falldown.FADING_BLOCK:
+                return FADING;
+            case Falldown.PLAYER_BLOCK:
+                return PLAYER;
+            case Falldown.TREASURE_BLOCK:
+                return TREASURE;
+            case Falldown.RED_BLOCK:
+                return RED;
+            case Falldown.RANDOM_BLOCK:
+                return randomColor(random);
+            default:
+                return EMPTY;
+        }
+    }
+
+    /**
+     * <p>Looks up the colours of all blocks of a frame.</p>
+     * <p>Same result as <code>toRgb(int, Random)</code> per block, but
+     * through a table instead of a switch. The only branch left in the loop
+     * is the rare <code>RANDOM_BLOCK</code>, which keeps the loop cheap for
+     * large grids.</p>
+     *
+     * @param frame  Frame to convert
+     * @param target Array of at least <code>width * height</code> entries
+     * @param random Source for the colours of <code>RANDOM_BLOCK</code>
+     */
+    public static void toRgb(GridFrame frame, int[] target, Random random) {
+        int count = frame.getWidth() * frame.getHeight();
+        if (VECTOR != null) {
+            VECTOR.toRgb(frame.getBlockArray(), count, target, random);
+        } else {
+            toRgbScalar(frame.getBlockArray(), 0, count, target, random);
+        }
+    }
+
+    /**
+     * Table loop of <code>toRgb(GridFrame, int[], Random)</code>, also the
+     * reference of the vector path
+     */
+    static void toRgbScalar(int[] blocks, int from, int count, int[] target, Random random) {
+        int[] table = TABLE;
+        int end = from + count;
+        for (int i = from; i < end; i++) {
+            int block = blocks[i];
+            if (block >= 0 && block < Falldown.RANDOM_BLOCK) {
+                target[i] = table[block];
+            } else if (block == Falldown.RANDOM_BLOCK) {
+                target[i] = randomColor(random);
+            } else {
+                target[i] = EMPTY;
+            }
+        }
+    }
+
+    /**
+     * Packs colours into three bytes per pixel in the order red, green,
+     * blue, the layout of DMX channels
+     *
+     * @param source Colours as <code>0xRRGGBB</code>, alpha is ignored
+     * @param from   Index of the first colour to pack
+     * @param count  Number of colours to pack
+     * @param target Array of at least <code>offset + count * 3</code> bytes
+     * @param offset Index of the first byte to write
+     */
+    public static void packRgb(int[] source, int from, int count, byte[] target, int offset) {
+        if (VECTOR != null) {
+            VECTOR.packRgb(source, from, count, target, offset);
+        } else {
+            packRgbScalar(source, from, count, target, offset);
+        }
+    }
+
+    /**
+     * Loop of <code>packRgb()</code>, also the reference of the vector path
+     */
+    static void packRgbScalar(int[] source, int from, int count, byte[] target, int offset) {
+        int end = from + count;
+        for (int i = from; i < end; i++) {
+            int rgb = source[i];
+            target[offset] = (byte) (rgb >> 16);
+            target[offset + 1] = (byte) (rgb >> 8);
+            target[offset + 2] = (byte) rgb;
+            offset += 3;
+        }
+    }
+
+    /**
+     * @param random Random source
+     * @return a random opaque colour
+     */
+    public static int randomColor(Random random) {
+        int r = random.nextInt(255);
+        int g = random.nextInt(255);
+        int b = random.nextInt(255);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.Random;
+
+/**
+ * <p>Automated player for simulated games.</p>
+ * <p>A bot is asked for a move every time it may react and answers with
+ * one of <code>LEFT</code>, <code>STAY</code> or <code>RIGHT</code>. Bots are
+ * not shared between threads.</p>
+ */
+public abstract class BotPlayer {
+
+    public static final int LEFT = -1;
+    public static final int STAY = 0;
+    public static final int RIGHT = 1;
+
+    /**
+     * Decides the next move
+     *
+     * @param game  Game to play, must not be changed by the bot
+     * @param frame Current frame number
+     * @return <code>LEFT</code>, <code>STAY</code> or <code>RIGHT</code>
+     */
+    public abstract int decide(Falldown game, int frame);
+
+    /**
+     * @return short name used in reports
+     */
+    public abstract String getName();
+
+    /**
+     * Creates a bot by name
+     *
+     * @param name   One of <code>random</code>, <code>greedy</code> or
+     *               <code>lookahead</code>
+     * @param random Random source of the bot
+     * @return new bot
+     */
+    public static BotPlayer create(String name, Random random) {
+        if (name.equals("random")) {
+            return new RandomBot(random);
+        } else if (name.equals("greedy")) {
+            return new GreedyBot();
+        } else if (name.equals("lookahead")) {
+            return new LookaheadBot(random);
+        }
+        throw new IllegalArgumentException("Unknown bot: " + name);
+    }
+
+    /**
+     * Applies a move to a game
+     *
+     * @param game Game to change
+     * @param move Move returned by <code>decide()</code>
+     */
+    public static void apply(Falldown game, int move) {
+        if (move == LEFT) {
+            game.movePlayerLeft();
+        } else if (move == RIGHT) {
+            game.movePlayerRight();
+        }
+    }
+
+    // #########################################################################
+    // BOTS
+    // #########################################################################
+
+    /**
+     * Presses random buttons. Marks the lower bound of what a player can do.
+     */
+    static class RandomBot extends BotPlayer {
+
+        private final Random random;
+
+        RandomBot(Random random) {
+            this.random = random;
+        }
+
+        @Override
+        public int decide(Falldown game, int frame) {
+            return random.nextInt(3) - 1;
+        }
+
+        @Override
+        public String getName() {
+            return "random";
+        }
+    }
+
+    /**
+     * Walks straight to the column of the treasure, a bit like a hasty
+     * visitor would.
+     */
+    static class GreedyBot extends BotPlayer {
+
+        @Override
+        public int decide(Falldown game, int frame) {
+            if (game.getTreasureX() < game.getPlayerX()) {
+                return LEFT;
+            } else if (game.getTreasureX() > game.getPlayerX()) {
+                return RIGHT;
+            }
+            return STAY;
+        }
+
+        @Override
+        public String getName() {
+            return "greedy";
+        }
+    }
+
+    /**
+     * Tries every move on copies of the game and plays them out with the
+     * greedy strategy for a few seconds. Picks the move that survives most
+     * often and reaches the treasure fastest.
+     */
+    static class LookaheadBot extends BotPlayer {
+
+        private static final int ROLLOUTS = 4;
+        private static final int DEPTH = FalldownApplet.FPS * 3;
+        private static final int REACTION = 5;
+
+        private final Random random;
+        private final GreedyBot greedy = new GreedyBot();
+
+        LookaheadBot(Random random) {
+            this.random = random;
+        }
+
+        @Override
+        public int decide(Falldown game, int frame) {
+            int bestMove = STAY;
+            int bestScore = Integer.MIN_VALUE;
+            for (int move = LEFT; move <= RIGHT; move++) {
+                int score = 0;
+                for (int i = 0; i < ROLLOUTS; i++) {
+                    score += rollout(game, frame, move);
+                }
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestMove = move;
+                }
+            }
+            return bestMove;
+        }
+
+        /**
+         * Plays one move followed by greedy moves on a copy of the game
+         *
+         * @return score of the outcome, higher is better
+         */
+        private int rollout(Falldown game, int frame, int move) {
+            Falldown copy = game.simulationCopy(new Random(random.nextLong()));
+            int level = copy.getCurrentLevel();
+            apply(copy, move);
+            for (int i = 1; i <= DEPTH; i++) {
+                copy.update(frame + i);
+                if (copy.isPlayerDead()) {
+                    return -DEPTH * 2 + i;
+                }
+                if (copy.getCurrentLevel() != level || copy.isGameWon()) {
+                    return DEPTH * 2 - i;
+                }
+                if (i % REACTION == 0) {
+                    apply(copy, greedy.decide(copy, frame + i));
+                }
+            }
+            return -Math.abs(copy.getTreasureX() - copy.getPlayerX());
+        }
+
+        @Override
+        public String getName() {
+            return "lookahead";
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import hsrw.illumination.client.intern.APIClientIntern;
+
+import java.util.Random;
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * <p>Draws frames onto the canvas of an illumination server.</p>
+ * <p>The canvas message only has room for the image, the sequence number
+ * of the frame doesn't reach the server.</p>
+ */
+public class CanvasFrameSink implements FrameSink {
+
+    private final APIClientIntern client;
+    private final PImage image;
+    private final Random random = new Random();
+    private final ColorPipeline.Stage colors;
+
+    /**
+     * Creates the canvas on the server. The client has to be logged in.
+     *
+     * @param client Connected client
+     * @param width  Width of the canvas
+     * @param height Height of the canvas
+     */
+    public CanvasFrameSink(APIClientIntern client, int width, int height) {
+        this(client, width, height, ColorPipeline.LINEAR);
+    }
+
+    /**
+     * Creates the canvas on the server. The client has to be logged in.
+     *
+     * @param client Connected client
+     * @param width  Width of the canvas
+     * @param height Height of the canvas
+     * @param colors Colour correction for the LEDs behind the canvas
+     */
+    public CanvasFrameSink(APIClientIntern client, int width, int height,
+                           ColorPipeline colors) {
+        this.client = client;
+        this.colors = colors.createStage(width * height);
+        this.image = new PImage(width, height, PConstants.RGB);
+        client.createCanvas(width, height);
+    }
+
+    @Override
+    public void sendFrame(GridFrame frame) {
+        if (frame.getWidth() != image.width || frame.getHeight() != image.height) {
+            throw new IllegalArgumentException("Frame of " + frame.getWidth() + "x"
+                    + frame.getHeight() + " for a canvas of " + image.width + "x" + image.height);
+        }
+        BlockColors.toRgb(frame, image.pixels, random);
+        colors.applyAll(image.pixels, image.pixels, image.width * image.height);
+        // The lobby thread sends through the same socket
+        synchronized (client) {
+            client.drawCanvas(image);
+        }
+    }
+
+    @Override
+    public void close() {
+        client.logout();
+    }
+}
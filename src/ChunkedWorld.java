@@ -0,0 +1,164 @@
+import java.util.Arrays;
+
+/**
+ * <p>Level field that is larger than the grid and scrolls through it.</p>
+ * <p>Every column of the game is a strip of the field, endless in both
+ * directions and split into tiles of <code>tileHeight</code> rows. A tile
+ * is generated when a row of it is first looked at and dropped once the
+ * slot is needed for a tile further along the scroll direction. Each strip
+ * keeps only as many tiles as the grid can show at once plus one, so the
+ * memory used doesn't depend on how far a level scrolls.</p>
+ * <p>Blocks are derived from the seed, the hole chance and their position
+ * only. A world reset with the same seed and hole chance shows the same
+ * field, so copies of a game don't need to copy tiles.</p>
+ * <p>The field has a line every third row, like the classic level, with
+ * holes in the chosen percentage.</p>
+ */
+public final class ChunkedWorld {
+
+    /* Rows from one line to the next */
+    private static final int LINE_SPACING = 3;
+
+    private final int columns;
+    private final int columnWidth;
+    private final int tileHeight;
+    private final int slots;
+
+    private long seed;
+    private int holeChance;
+
+    /* Tiles of every strip, row by row, indexed [column][slot] */
+    private final int[][][] tiles;
+    /* Index of the tile held by a slot */
+    private final long[][] tileIndex;
+    /* False until a slot was filled for the current seed */
+    private final boolean[][] valid;
+
+    private long generatedTiles = 0;
+
+    /**
+     * @param columns     Number of strips
+     * @param columnWidth Width of a strip in blocks
+     * @param viewHeight  Height of the grid looking at the field
+     * @param tileHeight  Rows per tile
+     * @param seed        Seed of the field
+     * @param holeChance  Chance of a line block being a hole in percent
+     */
+    public ChunkedWorld(int columns, int columnWidth, int viewHeight, int tileHeight,
+                        long seed, int holeChance) {
+        if (tileHeight < 1) {
+            throw new IllegalArgumentException("Tiles need at least one row");
+        }
+        this.columns = columns;
+        this.columnWidth = columnWidth;
+        this.tileHeight = tileHeight;
+        // A view can touch one more tile than it would fill
+        this.slots = (viewHeight + tileHeight - 1) / tileHeight + 1;
+        this.tiles = new int[columns][slots][tileHeight * columnWidth];
+        this.tileIndex = new long[columns][slots];
+        this.valid = new boolean[columns][slots];
+        reset(seed, holeChance);
+    }
+
+    /**
+     * Replaces the field by a new one. Keeps the memory of the tiles.
+     *
+     * @param seed       Seed of the new field
+     * @param holeChance Chance of a line block being a hole in percent
+     */
+    public void reset(long seed, int holeChance) {
+        this.seed = seed;
+        this.holeChance = holeChance;
+        for (int column = 0; column < columns; column++) {
+            Arrays.fill(valid[column], false);
+        }
+    }
+
+    /**
+     * Changes the hole chance of tiles generated from now on. Tiles already
+     * generated keep their holes.
+     *
+     * @param holeChance Chance of a line block being a hole in percent
+     */
+    public void setHoleChance(int holeChance) {
+        this.holeChance = holeChance;
+    }
+
+    /**
+     * @param x   Position across the field, blocks right of the last
+     *            strip are empty
+     * @param row Row of the field, any value
+     * @return block identifier as defined in <code>Falldown</code>
+     */
+    public int getBlock(int x, long row) {
+        int column = x / columnWidth;
+        if (column >= columns) {
+            return Falldown.EMPTY_BLOCK;
+        }
+        long tile = Math.floorDiv(row, (long) tileHeight);
+        int slot = (int) Math.floorMod(tile, (long) slots);
+        if (!valid[column][slot] || tileIndex[column][slot] != tile) {
+            generate(column, tile, tiles[column][slot]);
+            tileIndex[column][slot] = tile;
+            valid[column][slot] = true;
+        }
+        int offset = (int) (row - tile * tileHeight) * columnWidth;
+        return tiles[column][slot][offset + x - column * columnWidth];
+    }
+
+    /**
+     * Fills a tile, overwriting whatever tile the slot held before
+     */
+    private void generate(int column, long tile, int[] blocks) {
+        generatedTiles++;
+        int index = 0;
+        for (int r = 0; r < tileHeight; r++) {
+            long row = tile * tileHeight + r;
+            boolean line = Math.floorMod(row, (long) LINE_SPACING) == 0;
+            for (int i = 0; i < columnWidth; i++) {
+                int x = column * columnWidth + i;
+                if (line && hash(x, row) % 100 >= holeChance) {
+                    blocks[index++] = Falldown.NORMAL_BLOCK;
+                } else {
+                    blocks[index++] = Falldown.EMPTY_BLOCK;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return well mixed non negative number for a position of this field
+     */
+    private int hash(int x, long row) {
+        long h = seed ^ row * 0x9E3779B97F4A7C15L ^ x * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return (int) ((h ^ (h >>> 31)) >>> 33);
+    }
+
+    /**
+     * @return tiles generated since the world was created
+     */
+    public long getGeneratedTiles() {
+        return generatedTiles;
+    }
+
+    /**
+     * @return blocks held in memory, the same for every field size
+     */
+    public int getCachedBlocks() {
+        return columns * slots * tileHeight * columnWidth;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getHoleChance() {
+        return holeChance;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+}
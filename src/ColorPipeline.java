@@ -0,0 +1,222 @@
+/**
+ * <p>Colour correction for outputs that end up on LEDs.</p>
+ * <p>LEDs are linear while the block colours are picked for screens, so
+ * dark colours like <code>FADING_BLOCK</code> come out too bright and
+ * mixed colours look muddy. Every channel goes through its own gamma
+ * curve and white balance factor and is scaled down to the brightness
+ * cap. All of it is folded into one lookup table per channel when the
+ * pipeline is created.</p>
+ * <p>The tables have eight fractional bits. With dithering enabled a
+ * {@link Stage} carries the fraction of every pixel over to the next
+ * frame, so dim levels between two LED steps show up as their average.</p>
+ * <p>Can be written as
+ * <code>gamma=2.2;white=1,0.9,0.8;brightness=0.7;dither=true</code>.
+ * <code>gamma</code> takes one value for all channels or one per
+ * channel.</p>
+ */
+public final class ColorPipeline {
+
+    /**
+     * Passes every colour through unchanged
+     */
+    public static final ColorPipeline LINEAR = new ColorPipeline(
+            new double[]{1, 1, 1}, new double[]{1, 1, 1}, 1, false);
+
+    private final double[] gamma;
+    private final double[] white;
+    private final double brightness;
+    private final boolean dither;
+
+    /* Corrected value of every channel value with eight fractional bits */
+    private final int[] red = new int[256];
+    private final int[] green = new int[256];
+    private final int[] blue = new int[256];
+
+    /**
+     * @param gamma      Gamma of red, green and blue
+     * @param white      White balance factor of red, green and blue, 0 to 1
+     * @param brightness Maximum brightness, 0 to 1
+     * @param dither     Carry the fraction of a pixel to the next frame
+     */
+    public ColorPipeline(double[] gamma, double[] white, double brightness,
+                         boolean dither) {
+        if (gamma.length != 3 || white.length != 3) {
+            throw new IllegalArgumentException("Gamma and white balance need three channels");
+        }
+        this.gamma = gamma.clone();
+        this.white = white.clone();
+        this.brightness = brightness;
+        this.dither = dither;
+        fill(red, gamma[0], white[0] * brightness);
+        fill(green, gamma[1], white[1] * brightness);
+        fill(blue, gamma[2], white[2] * brightness);
+    }
+
+    private static void fill(int[] table, double gamma, double scale) {
+        for (int i = 0; i < 256; i++) {
+            double value = Math.pow(i / 255.0, gamma) * scale * 255 * 256;
+            table[i] = Math.min(255 * 256, (int) Math.round(value));
+        }
+    }
+
+    /**
+     * Parses a pipeline. Missing keys leave the channel unchanged.
+     *
+     * @param text Settings in the form <code>key=value;key=value</code>
+     * @return parsed pipeline
+     */
+    public static ColorPipeline parse(String text) {
+        double[] gamma = {1, 1, 1};
+        double[] white = {1, 1, 1};
+        double brightness = 1;
+        boolean dither = false;
+        for (String entry : text.split(";")) {
+            String[] pair = entry.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid parameter: " + entry);
+            }
+            if (pair[0].equals("gamma")) {
+                gamma = parseChannels(pair[1]);
+            } else if (pair[0].equals("white")) {
+                white = parseChannels(pair[1]);
+            } else if (pair[0].equals("brightness")) {
+                brightness = Double.parseDouble(pair[1]);
+            } else if (pair[0].equals("dither")) {
+                dither = Boolean.parseBoolean(pair[1]);
+            } else {
+                throw new IllegalArgumentException("Unknown parameter: " + pair[0]);
+            }
+        }
+        return new ColorPipeline(gamma, white, brightness, dither);
+    }
+
+    private static double[] parseChannels(String text) {
+        String[] values = text.split(",");
+        if (values.length == 1) {
+            double value = Double.parseDouble(values[0]);
+            return new double[]{value, value, value};
+        }
+        if (values.length != 3) {
+            throw new IllegalArgumentException("Expected one or three values: " + text);
+        }
+        return new double[]{Double.parseDouble(values[0]),
+                Double.parseDouble(values[1]), Double.parseDouble(values[2])};
+    }
+
+    /**
+     * Creates the state of one output
+     *
+     * @param pixels Number of pixels of the output
+     * @return new stage using the tables of this pipeline
+     */
+    public Stage createStage(int pixels) {
+        return new Stage(this, pixels);
+    }
+
+    @Override
+    public String toString() {
+        return "gamma=" + gamma[0] + "," + gamma[1] + "," + gamma[2]
+                + " white=" + white[0] + "," + white[1] + "," + white[2]
+                + " brightness=" + brightness
+                + " dither=" + dither;
+    }
+
+    /**
+     * <p>Applies a pipeline to the pixels of one output.</p>
+     * <p>Keeps the dithering fraction of every pixel, so every output needs
+     * its own stage and pixels have to keep their index from frame to
+     * frame. Not thread safe.</p>
+     */
+    public static final class Stage {
+
+        private final int[] red;
+        private final int[] green;
+        private final int[] blue;
+        private final boolean dither;
+
+        /* Fraction carried over per pixel: red << 16 | green << 8 | blue */
+        private final int[] carry;
+
+        /* Table indices of one vector, null without the vector path */
+        private final int[] lanes;
+
+        private Stage(ColorPipeline pipeline, int pixels) {
+            this.red = pipeline.red;
+            this.green = pipeline.green;
+            this.blue = pipeline.blue;
+            this.dither = pipeline.dither;
+            this.carry = new int[dither ? pixels : 0];
+            BlockColors.Bulk vector = BlockColors.getVector();
+            this.lanes = vector != null ? new int[vector.getLanes()] : null;
+        }
+
+        /**
+         * @param rgb   Colour as <code>0xRRGGBB</code>, alpha is ignored
+         * @param pixel Index of the pixel within the output
+         * @return corrected colour with full alpha
+         */
+        public int apply(int rgb, int pixel) {
+            int r = red[(rgb >> 16) & 0xFF];
+            int g = green[(rgb >> 8) & 0xFF];
+            int b = blue[rgb & 0xFF];
+            if (dither) {
+                int previous = carry[pixel];
+                r += (previous >> 16) & 0xFF;
+                g += (previous >> 8) & 0xFF;
+                b += previous & 0xFF;
+                carry[pixel] = (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF);
+            } else {
+                // Round instead of carrying the fraction
+                r += 0x80;
+                g += 0x80;
+                b += 0x80;
+            }
+            return 0xFF000000 | Math.min(255, r >> 8) << 16
+                    | Math.min(255, g >> 8) << 8 | Math.min(255, b >> 8);
+        }
+
+        /**
+         * Corrects a whole output at once. Pixel <code>i</code> of the
+         * output is taken from <code>source[i]</code>. Source and target may
+         * be the same array. Runs on the vector path of
+         * {@link BlockColors} if it is available, with the same result.
+         *
+         * @param source Colours as <code>0xRRGGBB</code>, alpha is ignored
+         * @param target Array receiving the corrected colours with full alpha
+         * @param count  Number of pixels
+         */
+        public void applyAll(int[] source, int[] target, int count) {
+            BlockColors.Bulk vector = BlockColors.getVector();
+            int done = 0;
+            if (vector != null) {
+                done = vector.correct(red, green, blue, dither ? carry : null,
+                        source, target, count, lanes);
+            }
+            applyAllScalar(source, target, done, count);
+        }
+
+        /**
+         * Loop of <code>applyAll()</code>, also the reference of the vector
+         * path
+         *
+         * @param from Index of the first pixel to correct
+         */
+        void applyAllScalar(int[] source, int[] target, int from, int count) {
+            if (dither) {
+                for (int i = from; i < count; i++) {
+                    target[i] = apply(source[i], i);
+                }
+                return;
+            }
+            // Without a carry every pixel stands alone
+            for (int i = from; i < count; i++) {
+                int rgb = source[i];
+                int r = red[(rgb >> 16) & 0xFF] + 0x80;
+                int g = green[(rgb >> 8) & 0xFF] + 0x80;
+                int b = blue[rgb & 0xFF] + 0x80;
+                target[i] = 0xFF000000 | Math.min(255, r >> 8) << 16
+                        | Math.min(255, g >> 8) << 8 | Math.min(255, b >> 8);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>Compares the ways of turning a frame into LED channel data.</p>
+ * <p>The per pixel path looks up every block through the switch of
+ * <code>BlockColors.toRgb(int, Random)</code>, corrects it with
+ * <code>Stage.apply()</code> and writes three single bytes into a direct
+ * buffer, the way the outputs used to work. The bulk path converts the
+ * whole frame through the colour table, corrects it with
+ * <code>Stage.applyAll()</code>, packs it into a byte array and copies
+ * that into the buffer at once. It runs twice: once through the scalar
+ * loops and once through the vector path of {@link BlockColors}, which
+ * covers the correction as well, if that is available.</p>
+ * <p>Grids are filled like a running game: mostly empty and normal blocks,
+ * a few of the others. Every size is measured after a warm up, the best
+ * of several rounds is reported.</p>
+ * <p>Usage: <code>ConversionBenchmark [-rounds n] [-colors pipeline]
+ * [size ...]</code> with sizes like <code>9x14</code>. Colours default to
+ * <code>gamma=2.2;dither=true</code>, a typical LED correction, while the
+ * applet itself passes colours through unchanged unless
+ * <code>LED_COLORS</code> is set.</p>
+ * <p>This is a plain main rather than a JMH benchmark because the tree has
+ * no build tool to pull JMH in. It does what matters here by hand: warm up
+ * rounds, best of several rounds and a sink for the results.</p>
+ */
+public class ConversionBenchmark {
+
+    /* Pixels converted per round, spread over as many frames as needed */
+    private static final int PIXELS_PER_ROUND = 20000000;
+
+    /* Keeps the results alive so the work isn't optimized away */
+    private static int sink;
+
+    public static void main(String[] args) {
+        int rounds = 10;
+        ColorPipeline pipeline = ColorPipeline.parse("gamma=2.2;dither=true");
+        List<int[]> sizes = new ArrayList<int[]>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-rounds")) {
+                rounds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-colors")) {
+                pipeline = ColorPipeline.parse(args[++i]);
+            } else if (args[i].matches("\\d+x\\d+")) {
+                String[] size = args[i].split("x");
+                sizes.add(new int[]{Integer.parseInt(size[0]), Integer.parseInt(size[1])});
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes.add(new int[]{9, 14});
+            sizes.add(new int[]{90, 140});
+            sizes.add(new int[]{900, 1400});
+        }
+
+        boolean vector = BlockColors.isVectorized();
+        System.out.println("Colours: " + pipeline);
+        System.out.println(String.format("%-12s %12s %12s %12s %8s",
+                "grid", "per pixel", "bulk", "vector", "speedup"));
+        for (int[] size : sizes) {
+            GridFrame frame = createFrame(size[0], size[1]);
+            int frames = Math.max(1, PIXELS_PER_ROUND / (size[0] * size[1]));
+            double perPixel = Double.MAX_VALUE;
+            double bulk = Double.MAX_VALUE;
+            double vectorBulk = Double.MAX_VALUE;
+            ConversionPath slow = new PerPixelPath(frame, pipeline);
+            ConversionPath fast = new BulkPath(frame, pipeline, false);
+            ConversionPath fastest = new BulkPath(frame, pipeline, true);
+            for (int round = 0; round < rounds + 2; round++) {
+                double slowNanos = measure(slow, frame, frames);
+                double fastNanos = measure(fast, frame, frames);
+                double fastestNanos = vector ? measure(fastest, frame, frames) : 0;
+                // The first two rounds warm up
+                if (round >= 2) {
+                    perPixel = Math.min(perPixel, slowNanos);
+                    bulk = Math.min(bulk, fastNanos);
+                    vectorBulk = Math.min(vectorBulk, fastestNanos);
+                }
+            }
+            double best = vector ? Math.min(bulk, vectorBulk) : bulk;
+            System.out.println(String.format("%-12s %9.3f ns %9.3f ns %12s %7.2fx",
+                    size[0] + "x" + size[1], perPixel, bulk,
+                    vector ? String.format("%9.3f ns", vectorBulk) : "-", perPixel / best));
+        }
+        if (!vector) {
+            System.out.println("Vector path not available, see BlockColors");
+        }
+        System.exit(sink == 42 ? 1 : 0);
+    }
+
+    /**
+     * @return nanoseconds per pixel
+     */
+    private static double measure(ConversionPath path, GridFrame frame, int frames) {
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            path.convert(frame);
+        }
+        long nanos = System.nanoTime() - start;
+        sink += path.result();
+        return (double) nanos / frames / (frame.getWidth() * frame.getHeight());
+    }
+
+    private static GridFrame createFrame(int width, int height) {
+        Random random = new Random(1);
+        int[][] grid = new int[width][height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int roll = random.nextInt(100);
+                if (roll < 60) {
+                    grid[x][y] = Falldown.EMPTY_BLOCK;
+                } else if (roll < 90) {
+                    grid[x][y] = Falldown.NORMAL_BLOCK;
+                } else if (roll < 95) {
+                    grid[x][y] = Falldown.FADING_BLOCK;
+                } else if (roll < 97) {
+                    grid[x][y] = Falldown.PLAYER_BLOCK;
+                } else if (roll < 98) {
+                    grid[x][y] = Falldown.TREASURE_BLOCK;
+                } else if (roll < 99) {
+                    grid[x][y] = Falldown.RED_BLOCK;
+                } else {
+                    grid[x][y] = Falldown.RANDOM_BLOCK;
+                }
+            }
+        }
+        FramePublisher publisher = new FramePublisher(width, height);
+        publisher.publish(grid);
+        return publisher.acquire();
+    }
+
+    // #########################################################################
+    // PATHS
+    // #########################################################################
+
+    private interface ConversionPath {
+        void convert(GridFrame frame);
+
+        int result();
+    }
+
+    private static class PerPixelPath implements ConversionPath {
+
+        private final ColorPipeline.Stage colors;
+        private final ByteBuffer channels;
+        private final Random random = new Random();
+
+        PerPixelPath(GridFrame frame, ColorPipeline pipeline) {
+            int pixels = frame.getWidth() * frame.getHeight();
+            colors = pipeline.createStage(pixels);
+            channels = ByteBuffer.allocateDirect(pixels * 3);
+        }
+
+        @Override
+        public void convert(GridFrame frame) {
+            int count = frame.getWidth() * frame.getHeight();
+            for (int i = 0; i < count; i++) {
+                int rgb = colors.apply(BlockColors.toRgb(frame.getBlock(i), random), i);
+                int offset = i * 3;
+                channels.put(offset, (byte) (rgb >> 16));
+                channels.put(offset + 1, (byte) (rgb >> 8));
+                channels.put(offset + 2, (byte) rgb);
+            }
+        }
+
+        @Override
+        public int result() {
+            return channels.get(channels.capacity() / 2);
+        }
+    }
+
+    private static class BulkPath implements ConversionPath {
+
+        private final ColorPipeline.Stage colors;
+        private final boolean vector;
+        private final int[] pixels;
+        private final byte[] packed;
+        private final ByteBuffer channels;
+        private final Random random = new Random();
+
+        /**
+         * @param vector false for the scalar loops, true for the conversions
+         *               of <code>BlockColors</code> that use the vector path
+         */
+        BulkPath(GridFrame frame, ColorPipeline pipeline, boolean vector) {
+            int count = frame.getWidth() * frame.getHeight();
+            colors = pipeline.createStage(count);
+            this.vector = vector;
+            pixels = new int[count];
+            packed = new byte[count * 3];
+            channels = ByteBuffer.allocateDirect(count * 3);
+        }
+
+        @Override
+        public void convert(GridFrame frame) {
+            if (vector) {
+                BlockColors.toRgb(frame, pixels, random);
+            } else {
+                BlockColors.toRgbScalar(frame.getBlockArray(), 0, pixels.length, pixels, random);
+            }
+            if (vector) {
+                colors.applyAll(pixels, pixels, pixels.length);
+            } else {
+                colors.applyAllScalar(pixels, pixels, 0, pixels.length);
+            }
+            if (vector) {
+                BlockColors.packRgb(pixels, 0, pixels.length, packed, 0);
+            } else {
+                BlockColors.packRgbScalar(pixels, 0, pixels.length, packed, 0);
+            }
+            channels.clear();
+            channels.put(packed);
+        }
+
+        @Override
+        public int result() {
+            return channels.get(channels.capacity() / 2);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+/**
+ * <p>Plays huge numbers of simulated games to measure the difficulty of a
+ * set of level parameters.</p>
+ * <p>Games run without animations and are played by a {@link BotPlayer}.
+ * They are spread over every available core. For each parameter set the
+ * analyzer reports how often every level is completed, how long it takes to
+ * reach the treasure and what kills the player.</p>
+ *
+ * <p>Usage: <code>DifficultyAnalyzer [-games n] [-bot name] [-threads n]
+ * [-reaction frames] [-seed n] [parameters ...]</code></p>
+ * <p>Every parameter set is given in the format of
+ * {@link LevelParameters#parse(String)}. Without any, the default settings
+ * and two variations of the hole chance are analyzed.</p>
+ */
+public class DifficultyAnalyzer {
+
+    /** Games that last longer than this are counted as timeout */
+    private static final int MAX_GAME_SECONDS = 300;
+
+    /* Size of the exhibition grid */
+    private static final int GRID_X = 9;
+    private static final int GRID_Y = 14;
+
+    private final LevelParameters parameters;
+    private final String botName;
+    private final int reactionFrames;
+
+    /**
+     * @param parameters     Parameters to analyze
+     * @param botName        Name of the bot playing every game
+     * @param reactionFrames Frames between two moves of the bot, at least 1
+     */
+    public DifficultyAnalyzer(LevelParameters parameters, String botName,
+                              int reactionFrames) {
+        if (reactionFrames < 1) {
+            throw new IllegalArgumentException("Reaction must be at least one frame");
+        }
+        this.parameters = parameters;
+        this.botName = botName;
+        this.reactionFrames = reactionFrames;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int games = 100000;
+        String bot = "greedy";
+        int threads = Runtime.getRuntime().availableProcessors();
+        int reaction = 5;
+        long seed = System.nanoTime();
+        List<LevelParameters> parameterSets = new ArrayList<LevelParameters>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-games")) {
+                games = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-bot")) {
+                bot = args[++i];
+            } else if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-reaction")) {
+                reaction = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-seed")) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                parameterSets.add(LevelParameters.parse(args[i]));
+            }
+        }
+        if (reaction < 1) {
+            System.err.println("Reaction must be at least one frame");
+            System.exit(2);
+        }
+        if (parameterSets.isEmpty()) {
+            parameterSets.add(LevelParameters.DEFAULT);
+            parameterSets.add(LevelParameters.parse("holes=10"));
+            parameterSets.add(LevelParameters.parse("holes=30"));
+        }
+
+        // The simulated games must not flood the console
+        FalldownApplet.getLogger().setLevel(Level.WARNING);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (LevelParameters parameters : parameterSets) {
+                long start = System.nanoTime();
+                Report report = new DifficultyAnalyzer(parameters, bot, reaction)
+                        .analyze(games, executor, threads, seed);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println(report.format(parameters, bot, seconds));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Plays the given number of games split over several tasks
+     *
+     * @param games    Number of games to play
+     * @param executor Executor running the tasks
+     * @param tasks    Number of tasks, usually the number of threads
+     * @param seed     Base seed, every task derives its own seed from it
+     * @return merged report of all games
+     */
+    public Report analyze(int games, ExecutorService executor, int tasks, long seed)
+            throws InterruptedException, ExecutionException {
+        List<Future<Report>> results = new ArrayList<Future<Report>>();
+        for (int i = 0; i < tasks; i++) {
+            final int taskGames = games / tasks + (i < games % tasks ? 1 : 0);
+            final long taskSeed = seed + i * 0x9E3779B97F4A7C15L;
+            results.add(executor.submit(new Callable<Report>() {
+                @Override
+                public Report call() {
+                    return play(taskGames, new Random(taskSeed));
+                }
+            }));
+        }
+        Report report = new Report(parameters.getLevelCount());
+        for (Future<Report> result : results) {
+            report.merge(result.get());
+        }
+        return report;
+    }
+
+    /**
+     * Plays games in the calling thread
+     *
+     * @param games  Number of games to play
+     * @param random Random source for the games and the bot
+     * @return report of the played games
+     */
+    public Report play(int games, Random random) {
+        Report report = new Report(parameters.getLevelCount());
+        BotPlayer bot = BotPlayer.create(botName, random);
+        int maxFrames = MAX_GAME_SECONDS * FalldownApplet.FPS;
+
+        for (int i = 0; i < games; i++) {
+            Falldown game = new Falldown(GRID_X, GRID_Y, FalldownApplet.COLUMNS,
+                    parameters, random, false);
+            game.resetAndPurge();
+            int level = 0;
+            int levelStart = 0;
+            boolean finished = false;
+
+            for (int frame = 0; frame < maxFrames && !finished; frame++) {
+                if (frame % reactionFrames == 0) {
+                    BotPlayer.apply(game, bot.decide(game, frame));
+                }
+                game.update(frame);
+
+                if (game.getCurrentLevel() != level) {
+                    report.treasureFound(level, frame - levelStart);
+                    level = game.getCurrentLevel();
+                    levelStart = frame;
+                }
+                if (game.isGameWon()) {
+                    report.won();
+                    finished = true;
+                } else if (game.isPlayerDead()) {
+                    report.died(level, game.getDeathCause());
+                    finished = true;
+                }
+            }
+            if (!finished) {
+                report.timedOut(level);
+            }
+        }
+        return report;
+    }
+
+    // #########################################################################
+    // REPORT
+    // #########################################################################
+
+    /**
+     * Counters of a number of games. Reports of several threads are merged
+     * after the simulation.
+     */
+    public static class Report {
+
+        private final int levelCount;
+        private long games;
+        private long won;
+        private final long[] reached;
+        private final long[][] deaths;
+        private final long[] timeouts;
+        private final long[][] treasureFrames;
+
+        Report(int levelCount) {
+            this.levelCount = levelCount;
+            this.reached = new long[levelCount];
+            this.deaths = new long[levelCount][Falldown.DeathCause.values().length];
+            this.timeouts = new long[levelCount];
+            this.treasureFrames = new long[levelCount][MAX_GAME_SECONDS * FalldownApplet.FPS + 1];
+        }
+
+        void treasureFound(int level, int frames) {
+            treasureFrames[level][frames]++;
+        }
+
+        void won() {
+            games++;
+            won++;
+            reached[levelCount - 1]++;
+        }
+
+        void died(int level, Falldown.DeathCause cause) {
+            games++;
+            reached[level]++;
+            deaths[level][cause.ordinal()]++;
+        }
+
+        void timedOut(int level) {
+            games++;
+            reached[level]++;
+            timeouts[level]++;
+        }
+
+        void merge(Report other) {
+            games += other.games;
+            won += other.won;
+            for (int level = 0; level < levelCount; level++) {
+                reached[level] += other.reached[level];
+                timeouts[level] += other.timeouts[level];
+                for (int i = 0; i < deaths[level].length; i++) {
+                    deaths[level][i] += other.deaths[level][i];
+                }
+                for (int i = 0; i < treasureFrames[level].length; i++) {
+                    treasureFrames[level][i] += other.treasureFrames[level][i];
+                }
+            }
+        }
+
+        public long getGames() {
+            return games;
+        }
+
+        /**
+         * @return share of games in which every level was completed
+         */
+        public double getCompletionRate() {
+            return games == 0 ? 0 : (double) won / games;
+        }
+
+        /**
+         * @param level Level starting at 0
+         * @return share of the games that completed the level
+         */
+        public double getLevelCompletionRate(int level) {
+            long ended = 0;
+            for (int i = 0; i <= level; i++) {
+                ended += reached[i];
+            }
+            if (level == levelCount - 1) {
+                ended -= won;
+            }
+            return games == 0 ? 0 : (double) (games - ended) / games;
+        }
+
+        /**
+         * @param level      Level starting at 0
+         * @param percentile Percentile between 0 and 1
+         * @return seconds needed to reach the treasure or -1 without data
+         */
+        public double getTreasureSeconds(int level, double percentile) {
+            long total = 0;
+            for (long count : treasureFrames[level]) {
+                total += count;
+            }
+            if (total == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int frames = 0; frames < treasureFrames[level].length; frames++) {
+                seen += treasureFrames[level][frames];
+                if (seen >= rank && seen > 0) {
+                    return (double) frames / FalldownApplet.FPS;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @param level Level starting at 0
+         * @param cause Cause of death
+         * @return share of all games that ended with this death in the level
+         */
+        public double getDeathRate(int level, Falldown.DeathCause cause) {
+            return games == 0 ? 0 : (double) deaths[level][cause.ordinal()] / games;
+        }
+
+        String format(LevelParameters parameters, String bot, double seconds) {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format("=== %s | bot=%s | %d games in %.1f s (%.0f games/s)%n",
+                    parameters, bot, games, seconds, games / seconds));
+            text.append(String.format("all levels completed: %6.2f%%%n",
+                    getCompletionRate() * 100));
+            for (int level = 0; level < levelCount; level++) {
+                text.append(String.format(
+                        "level %d: completed %6.2f%% | treasure after p10 %5.1fs p50 %5.1fs p90 %5.1fs"
+                                + " | pushed out top %6.2f%% fell to bottom %6.2f%% timeout %6.2f%%%n",
+                        level + 1,
+                        getLevelCompletionRate(level) * 100,
+                        getTreasureSeconds(level, 0.1),
+                        getTreasureSeconds(level, 0.5),
+                        getTreasureSeconds(level, 0.9),
+                        getDeathRate(level, Falldown.DeathCause.PUSHED_OUT_TOP) * 100,
+                        getDeathRate(level, Falldown.DeathCause.FELL_TO_BOTTOM) * 100,
+                        games == 0 ? 0 : (double) timeouts[level] / games * 100));
+            }
+            return text.toString();
+        }
+    }
+}
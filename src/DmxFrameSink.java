@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Streams frames straight to LED controllers as DMX over UDP.</p>
+ * <p>Every block becomes one RGB pixel with three channels, 170 pixels fill
+ * one DMX universe. Supports sACN (E1.31) and Art-Net. All packets are
+ * preallocated as direct buffers with their headers written once, so a
+ * frame only updates the channel data and the sequence number. The channel
+ * is non-blocking: a packet that doesn't fit into the socket buffer is
+ * dropped instead of stalling the game.</p>
+ * <p>Pixels are numbered row by row. Controllers wired in a zigzag can use
+ * the serpentine order, which reverses every second row.</p>
+ */
+public class DmxFrameSink implements FrameSink, PixelSink {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    /**
+     * Supported DMX over IP protocols
+     */
+    public enum Protocol {
+        /** ANSI E1.31 streaming ACN */
+        E131(5568),
+        /** Art-Net 4 ArtDmx */
+        ART_NET(6454);
+
+        private final int port;
+
+        Protocol(int port) {
+            this.port = port;
+        }
+
+        /**
+         * @return default UDP port of the protocol
+         */
+        public int getPort() {
+            return port;
+        }
+    }
+
+    public static final int CHANNELS_PER_UNIVERSE = 512;
+    public static final int PIXELS_PER_UNIVERSE = CHANNELS_PER_UNIVERSE / 3;
+
+    /* Offsets of the channel data */
+    static final int E131_DATA_OFFSET = 126;
+    static final int ART_NET_DATA_OFFSET = 18;
+
+    private static final byte[] ACN_IDENTIFIER = {
+            0x41, 0x53, 0x43, 0x2d, 0x45, 0x31, 0x2e, 0x31, 0x37, 0x00, 0x00, 0x00};
+    private static final byte[] ART_NET_IDENTIFIER = {
+            'A', 'r', 't', '-', 'N', 'e', 't', 0};
+    private static final String SOURCE_NAME = "Falldown";
+
+    private final Protocol protocol;
+    private final InetSocketAddress controller;
+    private final int width;
+    private final int height;
+    private final boolean serpentine;
+    private final int dataOffset;
+
+    private final DatagramChannel channel;
+    private final ByteBuffer[] packets;
+    private final Random random = new Random();
+    private final ColorPipeline.Stage colors;
+    /* Colours of the current frame, row major */
+    private final int[] pixels;
+    /* Colours in the order the pixels are wired */
+    private final int[] wired;
+    /* Channel data of all universes */
+    private final byte[] channels;
+
+    private byte sequence = 0;
+    private long droppedPackets = 0;
+    private final LatencyHistogram tickToSend = new LatencyHistogram();
+
+    /**
+     * @param protocol      Protocol spoken by the controller
+     * @param controller    Address of the controller
+     * @param width         Width of the frames
+     * @param height        Height of the frames
+     * @param firstUniverse Universe of the first pixel, following pixels use
+     *                      the following universes
+     * @param serpentine    Reverse every second row
+     */
+    public DmxFrameSink(Protocol protocol, InetSocketAddress controller,
+                        int width, int height, int firstUniverse,
+                        boolean serpentine) throws IOException {
+        this(protocol, controller, width, height, firstUniverse, serpentine,
+                ColorPipeline.LINEAR);
+    }
+
+    /**
+     * @param protocol      Protocol spoken by the controller
+     * @param controller    Address of the controller
+     * @param width         Width of the frames
+     * @param height        Height of the frames
+     * @param firstUniverse Universe of the first pixel, following pixels use
+     *                      the following universes
+     * @param serpentine    Reverse every second row
+     * @param colors        Colour correction for the LEDs
+     */
+    public DmxFrameSink(Protocol protocol, InetSocketAddress controller,
+                        int width, int height, int firstUniverse,
+                        boolean serpentine, ColorPipeline colors) throws IOException {
+        this.protocol = protocol;
+        this.controller = controller;
+        this.width = width;
+        this.height = height;
+        this.serpentine = serpentine;
+        this.dataOffset = protocol == Protocol.E131 ? E131_DATA_OFFSET : ART_NET_DATA_OFFSET;
+        this.colors = colors.createStage(width * height);
+        this.pixels = new int[width * height];
+        this.wired = new int[width * height];
+        this.channels = new byte[width * height * 3];
+
+        int pixels = width * height;
+        int universes = (pixels + PIXELS_PER_UNIVERSE - 1) / PIXELS_PER_UNIVERSE;
+        packets = new ByteBuffer[universes];
+        for (int i = 0; i < universes; i++) {
+            int channels = Math.min(PIXELS_PER_UNIVERSE, pixels - i * PIXELS_PER_UNIVERSE) * 3;
+            if (protocol == Protocol.E131) {
+                packets[i] = createE131Packet(firstUniverse + i, channels);
+            } else {
+                packets[i] = createArtNetPacket(firstUniverse + i, channels);
+            }
+        }
+
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        logger.log(Level.INFO, "DMX output to " + controller + " using " + universes
+                + " universe(s) via " + protocol);
+    }
+
+    // #########################################################################
+    // PACKETS
+    // #########################################################################
+
+    /**
+     * Writes everything of an E1.31 data packet except the sequence number
+     * and the channel data
+     */
+    private static ByteBuffer createE131Packet(int universe, int channels) {
+        // Channel count has to be even for some receivers
+        channels += channels % 2;
+        int length = E131_DATA_OFFSET + channels;
+        ByteBuffer packet = ByteBuffer.allocateDirect(length);
+
+        // Root layer
+        packet.putShort((short) 0x0010);
+        packet.putShort((short) 0x0000);
+        packet.put(ACN_IDENTIFIER);
+        packet.putShort((short) (0x7000 | (length - 16)));
+        packet.putInt(0x00000004);
+        byte[] cid = new byte[16];
+        new Random(SOURCE_NAME.hashCode()).nextBytes(cid);
+        packet.put(cid);
+
+        // Framing layer
+        packet.putShort((short) (0x7000 | (length - 38)));
+        packet.putInt(0x00000002);
+        byte[] name = new byte[64];
+        byte[] source = SOURCE_NAME.getBytes();
+        System.arraycopy(source, 0, name, 0, source.length);
+        packet.put(name);
+        packet.put((byte) 100); // priority
+        packet.putShort((short) 0); // synchronization address
+        packet.put((byte) 0); // sequence
+        packet.put((byte) 0); // options
+        packet.putShort((short) universe);
+
+        // DMP layer
+        packet.putShort((short) (0x7000 | (length - 115)));
+        packet.put((byte) 0x02);
+        packet.put((byte) 0xa1);
+        packet.putShort((short) 0x0000);
+        packet.putShort((short) 0x0001);
+        packet.putShort((short) (channels + 1));
+        packet.put((byte) 0x00); // start code
+        return packet;
+    }
+
+    /**
+     * Writes everything of an ArtDmx packet except the sequence number and
+     * the channel data
+     */
+    private static ByteBuffer createArtNetPacket(int universe, int channels) {
+        channels += channels % 2;
+        ByteBuffer packet = ByteBuffer.allocateDirect(ART_NET_DATA_OFFSET + channels);
+        packet.put(ART_NET_IDENTIFIER);
+        packet.put((byte) 0x00).put((byte) 0x50); // OpDmx, little endian
+        packet.put((byte) 0).put((byte) 14); // protocol version
+        packet.put((byte) 0); // sequence
+        packet.put((byte) 0); // physical
+        packet.put((byte) (universe & 0xFF));
+        packet.put((byte) ((universe >> 8) & 0x7F));
+        packet.putShort((short) channels);
+        return packet;
+    }
+
+    private int sequenceOffset() {
+        return protocol == Protocol.E131 ? 111 : 12;
+    }
+
+    // #########################################################################
+    // OUTPUT
+    // #########################################################################
+
+    @Override
+    public void sendFrame(GridFrame frame) {
+        BlockColors.toRgb(frame, pixels, random);
+        sendPixels(pixels, frame.getPublishNanos());
+    }
+
+    @Override
+    public void sendPixels(int[] source, long publishNanos) {
+        if (serpentine) {
+            int pixel = 0;
+            for (int y = 0; y < height; y++) {
+                if (y % 2 == 0) {
+                    System.arraycopy(source, y * width, wired, pixel, width);
+                    pixel += width;
+                } else {
+                    for (int x = width - 1; x >= 0; x--) {
+                        wired[pixel++] = source[y * width + x];
+                    }
+                }
+            }
+        } else {
+            System.arraycopy(source, 0, wired, 0, wired.length);
+        }
+        colors.applyAll(wired, wired, wired.length);
+        BlockColors.packRgb(wired, 0, wired.length, channels, 0);
+        for (int i = 0; i < packets.length; i++) {
+            int from = i * PIXELS_PER_UNIVERSE * 3;
+            ByteBuffer packet = packets[i];
+            packet.position(dataOffset);
+            packet.put(channels, from, Math.min(PIXELS_PER_UNIVERSE * 3, channels.length - from));
+        }
+
+        // Zero is reserved for "no sequence" in both protocols
+        sequence++;
+        if (sequence == 0) {
+            sequence = 1;
+        }
+        int sequenceOffset = sequenceOffset();
+        for (ByteBuffer packet : packets) {
+            packet.put(sequenceOffset, sequence);
+            packet.clear();
+            try {
+                if (channel.send(packet, controller) == 0) {
+                    droppedPackets++;
+                }
+            } catch (IOException e) {
+                droppedPackets++;
+                logger.log(Level.FINE, "Sending DMX packet failed " + e);
+            }
+        }
+        tickToSend.record(System.nanoTime() - publishNanos);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Closing DMX channel failed " + e);
+        }
+    }
+
+    /**
+     * @return number of universes used for one frame
+     */
+    public int getUniverseCount() {
+        return packets.length;
+    }
+
+    /**
+     * @return packets that couldn't be sent
+     */
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * @return time from publishing a frame until its last packet was sent
+     */
+    public LatencyHistogram getTickToSend() {
+        return tickToSend;
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Minimal receiver for the packets of a {@link DmxFrameSink}.</p>
+ * <p>Understands E1.31 data packets and ArtDmx packets and keeps the latest
+ * channel data of every universe. Meant to check the DMX output on loopback
+ * without a controller.</p>
+ */
+public class DmxReceiver {
+
+    private final DatagramChannel channel;
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(1024);
+
+    /* Latest channel data per universe */
+    private final Map<Integer, byte[]> universes = new HashMap<Integer, byte[]>();
+
+    private long packetsReceived = 0;
+    private long invalidPackets = 0;
+    private long lastPacketNanos = 0;
+
+    /**
+     * @param port Port to listen on, 0 picks a free one
+     */
+    public DmxReceiver(int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * Handles every packet that is waiting. Never blocks.
+     *
+     * @return number of packets handled
+     */
+    public int poll() throws IOException {
+        int handled = 0;
+        while (true) {
+            packet.clear();
+            if (channel.receive(packet) == null) {
+                return handled;
+            }
+            packet.flip();
+            lastPacketNanos = System.nanoTime();
+            if (parse()) {
+                packetsReceived++;
+            } else {
+                invalidPackets++;
+            }
+            handled++;
+        }
+    }
+
+    private boolean parse() {
+        int length = packet.limit();
+        if (length > DmxFrameSink.ART_NET_DATA_OFFSET && packet.get(0) == 'A'
+                && packet.get(8) == 0x00 && packet.get(9) == 0x50) {
+            int universe = (packet.get(14) & 0xFF) | ((packet.get(15) & 0x7F) << 8);
+            int channels = packet.getShort(16) & 0xFFFF;
+            return store(universe, DmxFrameSink.ART_NET_DATA_OFFSET, channels);
+        }
+        if (length > DmxFrameSink.E131_DATA_OFFSET && packet.getInt(18) == 0x00000004
+                && packet.getInt(40) == 0x00000002) {
+            int universe = packet.getShort(113) & 0xFFFF;
+            int channels = (packet.getShort(123) & 0xFFFF) - 1;
+            return store(universe, DmxFrameSink.E131_DATA_OFFSET, channels);
+        }
+        return false;
+    }
+
+    private boolean store(int universe, int offset, int channels) {
+        if (channels < 0 || offset + channels > packet.limit()) {
+            return false;
+        }
+        byte[] data = universes.get(universe);
+        if (data == null || data.length != channels) {
+            data = new byte[channels];
+            universes.put(universe, data);
+        }
+        packet.position(offset);
+        packet.get(data);
+        return true;
+    }
+
+    /**
+     * @param universe DMX universe
+     * @param pixel    Pixel within the universe
+     * @return RGB value of the pixel or -1 if nothing was received for it
+     */
+    public int getRgb(int universe, int pixel) {
+        byte[] data = universes.get(universe);
+        if (data == null || pixel * 3 + 2 >= data.length) {
+            return -1;
+        }
+        return ((data[pixel * 3] & 0xFF) << 16)
+                | ((data[pixel * 3 + 1] & 0xFF) << 8)
+                | (data[pixel * 3 + 2] & 0xFF);
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    public int getUniverseCount() {
+        return universes.size();
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    public long getInvalidPackets() {
+        return invalidPackets;
+    }
+
+    /**
+     * @return <code>System.nanoTime()</code> of the latest packet
+     */
+    public long getLastPacketNanos() {
+        return lastPacketNanos;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // #########################################################################
+    // LOOPBACK CHECK
+    // #########################################################################
+
+    /**
+     * <p>Runs a game on loopback and reports how long it takes from a game
+     * tick until the receiver has every packet of the frame.</p>
+     * <p>Usage: <code>DmxReceiver [e131|artnet] [frames]</code></p>
+     */
+    public static void main(String[] args) throws Exception {
+        DmxFrameSink.Protocol protocol = args.length > 0 && args[0].equals("artnet")
+                ? DmxFrameSink.Protocol.ART_NET : DmxFrameSink.Protocol.E131;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        DmxReceiver receiver = new DmxReceiver(0);
+        int width = 9, height = 14;
+        Falldown falldown = new Falldown(width, height, 3);
+        DmxFrameSink sink = new DmxFrameSink(protocol,
+                new InetSocketAddress("127.0.0.1", receiver.getPort()),
+                width, height, 1, false);
+
+        LatencyHistogram tickToReceive = new LatencyHistogram();
+        int mismatches = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            falldown.update(frame);
+            GridFrame gridFrame = falldown.acquireFrame();
+            sink.sendFrame(gridFrame);
+            int expected = (int) receiver.packetsReceived + sink.getUniverseCount();
+            while (receiver.packetsReceived < expected
+                    && System.nanoTime() - gridFrame.getPublishNanos() < 100000000L) {
+                receiver.poll();
+            }
+            tickToReceive.record(receiver.getLastPacketNanos() - gridFrame.getPublishNanos());
+
+            // Compare the first pixel that doesn't change randomly
+            int block = gridFrame.getBlock(0);
+            if (block != Falldown.RANDOM_BLOCK
+                    && (BlockColors.toRgb(block, null) & 0xFFFFFF) != receiver.getRgb(1, 0)) {
+                mismatches++;
+            }
+            gridFrame.release();
+        }
+        sink.close();
+        receiver.close();
+
+        System.out.println(protocol + ": " + frames + " frames, "
+                + sink.getUniverseCount() + " universe(s), "
+                + receiver.getPacketsReceived() + " packets received, "
+                + sink.getDroppedPackets() + " dropped, "
+                + receiver.getInvalidPackets() + " invalid, "
+                + mismatches + " mismatches");
+        System.out.println("tick to send    " + sink.getTickToSend());
+        System.out.println("tick to receive " + tickToReceive);
+    }
+}
@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Sends frames through a {@link FrameEncoder} to a TCP receiver.</p>
+ * <p>The connection is opened on the first frame and reopened after an
+ * error; the encoder is reset every time, so a new receiver always gets
+ * the full state first.</p>
+ * <p>The channel is non-blocking, the game never waits for the receiver.
+ * Frames are dropped while the connection is being set up and while the
+ * rest of an earlier frame doesn't fit into the socket buffer. A frame is
+ * only encoded once it can be sent, so the receiver still gets a complete
+ * stream.</p>
+ */
+public class EncodingFrameSink implements FrameSink {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    /* Time to wait before connecting again after an error */
+    private static final long RECONNECT_DELAY_NANOS = 1000000000L;
+
+    private final InetSocketAddress receiver;
+    private final FrameEncoder encoder;
+    /* Encoded frame, the bytes between position and limit aren't sent yet */
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+    private SocketChannel channel;
+    private long nextConnect = 0;
+    private long droppedFrames = 0;
+
+    /**
+     * @param receiver Address of the receiver
+     * @param encoder  Encoder used for every frame
+     */
+    public EncodingFrameSink(InetSocketAddress receiver, FrameEncoder encoder) {
+        this.receiver = receiver;
+        this.encoder = encoder;
+    }
+
+    @Override
+    public void sendFrame(GridFrame frame) {
+        if (channel == null && System.nanoTime() - nextConnect < 0) {
+            return;
+        }
+        try {
+            if (channel == null) {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.connect(receiver);
+                encoder.reset();
+                buffer.limit(0);
+            }
+            if (channel.isConnectionPending() && !channel.finishConnect()) {
+                droppedFrames++;
+                return;
+            }
+            if (buffer.hasRemaining()) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    droppedFrames++;
+                    return;
+                }
+            }
+
+            int size = encoder.getMaxEncodedSize(frame.getWidth(), frame.getHeight());
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocateDirect(size);
+            }
+            buffer.clear();
+            encoder.encode(frame, buffer);
+            buffer.flip();
+            // Whatever doesn't fit goes out before the next frame
+            channel.write(buffer);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Sending encoded frame to " + receiver + " failed " + e);
+            close();
+            nextConnect = System.nanoTime() + RECONNECT_DELAY_NANOS;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Closing channel failed " + e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * @return frames dropped because the receiver wasn't ready
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
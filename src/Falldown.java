@@ -1,4 +1,4 @@
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -11,16 +11,29 @@ public class Falldown {
     // Level parameters and indicators
     // #########################################################################
 
-    /* Current and next levelgrid */
-    private int[][] levelGrid;
+    /* Current and next levelgrid. Both are swapped after every grid update */
+    private volatile int[][] levelGrid;
     private int[][] nextGrid;
 
+    /* The next level is built into these while the treasure animation
+       plays and swapped in when it ends */
+    private int[][] preparedGrid;
+    private ChunkedWorld preparedWorld;
+    private volatile LevelStart nextLevelStart;
+
     /* Level bounds */
     private int columns;
+    /* Number of the first column on the wall, decides the directions */
+    private final int firstColumn;
     private int columnPixelWidth;
     private int gridWidth;
     private int gridHeight;
 
+    /* Field the columns scroll through, null if rows are generated at the
+       edge. The viewport of a column starts at its scroll row. */
+    private ChunkedWorld world;
+    private final long[] columnScroll;
+
     /* Treasure position */
     private int treasureX;
     private int treasureY;
@@ -29,7 +42,13 @@ public class Falldown {
     private int playerX;
     private int playerY;
 
-    private Random random = new Random();
+    private Random random;
+
+    /* Publishes a snapshot of the grid after every update */
+    private final FramePublisher framePublisher;
+
+    /* Tells animations, sessions and recorders what happened */
+    private final GameEventBus events = new GameEventBus();
 
     /* These Constants are used to identify blocks in the grid */
     public static final int EMPTY_BLOCK = 0;
@@ -41,15 +60,54 @@ public class Falldown {
     public static final int RANDOM_BLOCK = 6;
 
     /*Level specific settings */
-    private float[] level_refreshLevel = {1f, 1.2f, 1.5f};
-    private int[] level_maxTreasureSteps = {4, 3, 2};
-    private static final int levelCount = 3;
+    private final LevelParameters levelParameters;
+    private final int levelCount;
     private int currentLevel;
 
+    /**
+     * Possible causes of a player death
+     */
+    public enum DeathCause {
+        /** The player is alive */
+        NONE,
+        /** The player was pushed out at the top */
+        PUSHED_OUT_TOP,
+        /** The player fell down to the bottom */
+        FELL_TO_BOTTOM
+    }
+
+    /* Attempts to find a treasure position before giving up */
+    private static final int MAX_TREASURE_ATTEMPTS = 1000;
+
     /* Animation */
     private static final long ANIMATION_DELAY = 20; // milliseconds
-    private boolean animationActive = false;
-    private ArrayList<Thread> animationRunning = new ArrayList<Thread>();
+    /* An animation that fell further behind skips the missed cells */
+    private static final long MAX_ANIMATION_LAG_NANOS = 1000000000L;
+    /* Animations play this many times faster, for accelerated tests */
+    private volatile int animationSpeed = 1;
+    /* Animation advanced by every update, null if none plays. Animations
+       change the grid on the game thread only, so a published frame never
+       catches one halfway through a cell. */
+    private Animation animation;
+    /* Time the next cells of the animation are due */
+    private long animationDue;
+    private volatile boolean deathAnimationPlaying = false;
+    /* Set by the treasure animation when it ends, the next update
+       advances the level */
+    private boolean levelAdvancePending = false;
+    /* True while the next level is built in the background */
+    private volatile boolean levelPreparing = false;
+    /* Builds the next level while the treasure animation plays, null if
+       not animated */
+    private final AnimationPlayer levelBuilder;
+    /* Random colors of the game end animation */
+    private final Random animationRandom = new Random();
+
+    /**
+     * If false no animation is played and level transitions happen
+     * immediately. Used for headless simulations.
+     */
+    private final boolean animated;
 
     /**
      * The refresh level sets the speed the game Grid is being moved
@@ -85,6 +143,16 @@ public class Falldown {
      */
     private boolean playerDead = false;
 
+    /**
+     * Stores what killed the player
+     */
+    private DeathCause deathCause = DeathCause.NONE;
+
+    /**
+     * Indicates if the last level has been completed
+     */
+    private boolean gameWon = false;
+
     /**
      * Indicates if the game is Active
      * Can be triggered by the last level or if the game ends
@@ -95,14 +163,14 @@ public class Falldown {
     /**
      * Use logger from game applet
      */
-    private static Logger logger = FalldownApplet.getLogger();
+    private Logger logger = FalldownApplet.getLogger();
 
     /**
      * Set if holes should be generated through which the player can fall
      */
     private boolean generateHoles = false;
     /* Chance of regenerating a hole in percent */
-    private static final int HOLE_CHANCE = 20;
+    private final int holeChance;
 
 
     // #########################################################################
@@ -118,26 +186,129 @@ public class Falldown {
      * @param columns    Number of columns in the game
      */
     public Falldown(int gridWidth, int gridHeight, int columns) {
+        this(gridWidth, gridHeight, columns, LevelParameters.DEFAULT,
+                new Random(), true);
+    }
+
+    /**
+     * Sets up a new Falldown game with custom difficulty. Without animations
+     * the game runs entirely in the thread calling <code>update()</code>,
+     * which makes it usable for simulations.
+     *
+     * @param gridWidth       Width of the array used for the game
+     * @param gridHeight      Height of the array used for the game
+     * @param columns         Number of columns in the game
+     * @param levelParameters Difficulty of the levels
+     * @param random          Source of every random decision in the game
+     * @param animated        Set to false to skip every animation
+     */
+    public Falldown(int gridWidth, int gridHeight, int columns,
+                    LevelParameters levelParameters, Random random,
+                    boolean animated) {
+        this(gridWidth, gridHeight, columns, 0, levelParameters, random, animated);
+    }
+
+    /**
+     * Sets up a game covering a part of a larger wall. Columns keep the
+     * direction they have on the wall.
+     *
+     * @param gridWidth       Width of the array used for the game
+     * @param gridHeight      Height of the array used for the game
+     * @param columns         Number of columns in the game
+     * @param firstColumn     Number of the first column on the wall
+     * @param levelParameters Difficulty of the levels
+     * @param random          Source of every random decision in the game
+     * @param animated        Set to false to skip every animation
+     */
+    public Falldown(int gridWidth, int gridHeight, int columns, int firstColumn,
+                    LevelParameters levelParameters, Random random,
+                    boolean animated) {
         levelGrid = new int[gridWidth][gridHeight];
+        nextGrid = new int[gridWidth][gridHeight];
+        preparedGrid = new int[gridWidth][gridHeight];
         this.gridWidth = gridWidth;
         this.gridHeight = gridHeight;
         this.columns = columns;
+        this.firstColumn = firstColumn;
         this.columnPixelWidth = gridWidth / columns;
+        this.framePublisher = new FramePublisher(gridWidth, gridHeight);
+        this.levelParameters = levelParameters;
+        this.levelCount = levelParameters.getLevelCount();
+        this.holeChance = levelParameters.getHoleChance();
+        this.random = random;
+        this.animated = animated;
+        this.levelBuilder = animated ? new AnimationPlayer("Falldown level builder") : null;
+        events.subscribe(GameEvents.RECORDER, GameEvent.Type.LEVEL_ADVANCED,
+                GameEvent.Type.GAME_WON, GameEvent.Type.PLAYER_DIED);
+        if (animated) {
+            events.subscribe(animations, GameEvent.Type.TREASURE_REACHED,
+                    GameEvent.Type.GAME_WON, GameEvent.Type.PLAYER_DIED);
+        }
+        if (levelParameters.getTileHeight() > 0) {
+            this.world = new ChunkedWorld(columns, columnPixelWidth, gridHeight,
+                    levelParameters.getTileHeight(), 0, 0);
+            this.preparedWorld = new ChunkedWorld(columns, columnPixelWidth, gridHeight,
+                    levelParameters.getTileHeight(), 0, 0);
+            this.columnScroll = new long[columns];
+        } else {
+            this.world = null;
+            this.preparedWorld = null;
+            this.columnScroll = null;
+        }
         logger.log(Level.INFO, "Falldown game created");
         this.playPlaceholderAnimation();
     }
 
+    /**
+     * Creates an unanimated copy of a running game. Used by bots that try
+     * out moves before making them.
+     *
+     * @param random Source of every random decision of the copy
+     * @return independent copy of this game
+     */
+    public Falldown simulationCopy(Random random) {
+        Falldown copy = new Falldown(gridWidth, gridHeight, columns,
+                firstColumn, levelParameters, random, false);
+        int[][] grid = levelGrid;
+        for (int i = 0; i < gridWidth; i++) {
+            System.arraycopy(grid[i], 0, copy.levelGrid[i], 0, gridHeight);
+        }
+        copy.treasureX = treasureX;
+        copy.treasureY = treasureY;
+        copy.playerX = playerX;
+        copy.playerY = playerY;
+        copy.currentLevel = currentLevel;
+        copy.refreshLevel = refreshLevel;
+        copy.treasureReached = treasureReached;
+        copy.treasureOutOfBounds = treasureOutOfBounds;
+        copy.treasureSteps = treasureSteps;
+        copy.maxTreasureSteps = maxTreasureSteps;
+        copy.playerDead = playerDead;
+        copy.deathCause = deathCause;
+        copy.gameWon = gameWon;
+        copy.gameActive = gameActive;
+        copy.generateHoles = generateHoles;
+        if (world != null) {
+            // Same seed, same field. The copy generates its own tiles.
+            copy.world.reset(world.getSeed(), world.getHoleChance());
+            System.arraycopy(columnScroll, 0, copy.columnScroll, 0, columns);
+        }
+        return copy;
+    }
+
     /**
      * Resets the game to its initial state. This is equivalent of creating a
      * new instance with the same parameters
      */
     public void resetAndPurge() {
         logger.log(Level.INFO, "The game will be reset");
+        nextLevelStart = null;
         purge();
         initLevelGrid();
         currentLevel = 0;
         //Start with base level (0)
         setLevelParams(0);
+        publish(GameEvent.Type.GAME_STARTED);
     }
 
 
@@ -147,8 +318,11 @@ public class Falldown {
     private void purge() {
         logger.log(Level.FINE, "Purging game");
         endAllAnimations();
+        levelAdvancePending = false;
         treasureSteps = 0;
         playerDead = false;
+        deathCause = DeathCause.NONE;
+        gameWon = false;
         treasureReached = false;
         gameActive = true;
         generateHoles = false;
@@ -161,30 +335,125 @@ public class Falldown {
      */
     private void initLevelGrid() {
         logger.log(Level.INFO, "Initializing level grid");
+        LevelStart start = new LevelStart(currentLevel, levelGrid, world);
+        buildLevel(start, generateHoles);
+        installLevel(start);
+    }
+
+    /**
+     * Start of a level: grid, field and positions. Built apart from the
+     * running level so it can be prepared ahead of time.
+     */
+    private static final class LevelStart {
+        final int level;
+        final int[][] grid;
+        final ChunkedWorld world;
+        int playerX;
+        int playerY;
+        int treasureX;
+        int treasureY;
+
+        LevelStart(int level, int[][] grid, ChunkedWorld world) {
+            this.level = level;
+            this.grid = grid;
+            this.world = world;
+        }
+    }
+
+    /**
+     * Fills the grid of a level start with horizontal lines, places the
+     * player and finds a free position for the treasure. Touches nothing
+     * of the running level unless it is built into the level grid.
+     *
+     * @param start Level start to fill
+     * @param holes True if the lines get holes
+     */
+    private void buildLevel(LevelStart start, boolean holes) {
+        int[][] grid = start.grid;
         int holePosition;
-        levelGrid = new int[gridWidth][gridHeight];
-        for (int i = 0; i < levelGrid[0].length; i++) {
+        clearGrid(grid);
+        if (start.world != null) {
+            // Every level scrolls through a field of its own
+            start.world.reset(random.nextLong(), holes ? holeChance : 0);
+            for (int i = 0; i < gridWidth; i++) {
+                for (int j = 0; j < gridHeight; j++) {
+                    grid[i][j] = start.world.getBlock(i, j);
+                }
+            }
+        }
+        for (int i = 0; start.world == null && i < grid[0].length; i++) {
             // Generate random position for holes
-            holePosition = (int) (Math.random() * levelGrid.length - 1);
+            holePosition = (int) (random.nextDouble() * grid.length - 1);
             if (i % 3 == 0) {
-                for (int j = 0; j < levelGrid.length; j++) {
+                for (int j = 0; j < grid.length; j++) {
                     if (j == holePosition) {
-                        if (generateHoles) {
-                            levelGrid[j][i] = EMPTY_BLOCK;
+                        if (holes) {
+                            grid[j][i] = EMPTY_BLOCK;
                         } else {
-                            levelGrid[j][i] = NORMAL_BLOCK;
+                            grid[j][i] = NORMAL_BLOCK;
                         }
                     } else {
-                        levelGrid[j][i] = NORMAL_BLOCK;
+                        grid[j][i] = NORMAL_BLOCK;
                     }
                 }
             }
         }
-        // Currently the player has a fixed starting position
-        setPlayerPosition(4, 2);
-        levelGrid[4][2] = PLAYER_BLOCK;
+        // The player starts in the middle of the grid
+        start.playerX = gridWidth / 2;
+        start.playerY = 2;
+        grid[start.playerX][start.playerY] = PLAYER_BLOCK;
         // Treasure is placed randomly
-        setTreasurePositionRandom();
+        int position = findTreasurePosition(grid, "level start");
+        start.treasureX = position / gridHeight;
+        start.treasureY = position % gridHeight;
+    }
+
+    /**
+     * Makes a level start the running level. A prepared grid and field
+     * take the place of the current ones, which are reused for the next
+     * preparation.
+     *
+     * @param start Level start built by <code>buildLevel()</code>
+     */
+    private void installLevel(LevelStart start) {
+        if (start.grid != levelGrid) {
+            preparedGrid = levelGrid;
+            levelGrid = start.grid;
+        }
+        if (start.world != world) {
+            preparedWorld = world;
+            world = start.world;
+        }
+        if (world != null) {
+            Arrays.fill(columnScroll, 0);
+        }
+        setPlayerPosition(start.playerX, start.playerY);
+        treasureSteps = 0;
+        treasureOutOfBounds = false;
+        setTreasurePosition(start.treasureX, start.treasureY);
+    }
+
+    /**
+     * Builds the next level into the spare grid, so the end of the treasure
+     * animation only has to swap it in. Runs on the level builder thread
+     * while the game stands still.
+     */
+    private void prepareNextLevel() {
+        int level = currentLevel + 1;
+        if (level >= levelCount) {
+            return;
+        }
+        long start = System.nanoTime();
+        LevelStart next = new LevelStart(level, preparedGrid, preparedWorld);
+        buildLevel(next, level >= levelParameters.getHolesFromLevel());
+        // A build cancelled by a reset must not reach the new game
+        if (levelBuilder.isCurrent()) {
+            nextLevelStart = next;
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Prepared level " + level + " in "
+                    + (System.nanoTime() - start) / 1000 + " us");
+        }
     }
 
     /**
@@ -194,11 +463,16 @@ public class Falldown {
      * @param level Number of level to load
      */
     private void setLevelParams(int level) {
-        logger.log(Level.FINE, "Setting up level " + level);
-        maxTreasureSteps = level_maxTreasureSteps[level];
-        refreshLevel = level_refreshLevel[level];
-        if (currentLevel == 2) {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Setting up level " + level);
+        }
+        maxTreasureSteps = levelParameters.getMaxTreasureSteps(level);
+        refreshLevel = levelParameters.getRefreshLevel(level);
+        if (currentLevel >= levelParameters.getHolesFromLevel()) {
             generateHoles = true;
+            if (world != null) {
+                world.setHoleChance(holeChance);
+            }
         }
     }
 
@@ -210,11 +484,23 @@ public class Falldown {
         currentLevel++;
 
         if (currentLevel >= levelCount) {
-            playGameEndAnimation();
+            gameWon = true;
+            if (!animated) {
+                // Nothing left to play
+                gameActive = false;
+            }
+            publish(GameEvent.Type.GAME_WON);
         } else {
+            LevelStart start = nextLevelStart;
+            nextLevelStart = null;
             purge();
             setLevelParams(currentLevel);
-            initLevelGrid();
+            if (start != null && start.level == currentLevel) {
+                installLevel(start);
+            } else {
+                initLevelGrid();
+            }
+            publish(GameEvent.Type.LEVEL_ADVANCED);
         }
 
     }
@@ -230,6 +516,39 @@ public class Falldown {
      * @param frame Pass the frame number to determine if update is needed
      */
     public void update(int frame) {
+        GameEvents.Tick event = GameEvents.isRecording() ? new GameEvents.Tick() : null;
+        if (event != null) {
+            event.begin();
+        }
+        boolean gridMoved = step(frame);
+
+        // Hand the finished grid over to the readers
+        framePublisher.publish(levelGrid);
+
+        if (event != null && event.shouldCommit()) {
+            event.frame = frame;
+            event.level = currentLevel;
+            event.gridMoved = gridMoved;
+            event.active = gameActive;
+            event.commit();
+        }
+    }
+
+    /**
+     * Advances the game like <code>update()</code> without publishing a
+     * frame. Used when the grid is shown as part of a larger wall.
+     *
+     * @param frame Pass the frame number to determine if update is needed
+     * @return true if the grid moved
+     */
+    boolean step(int frame) {
+        boolean gridMoved = false;
+        // The treasure animation is over, the level changes in this thread
+        // once it is built
+        if (levelAdvancePending && !levelPreparing) {
+            levelAdvancePending = false;
+            advanceLevel();
+        }
         // update everything if the game is active
         if (gameActive) {
 
@@ -240,12 +559,14 @@ public class Falldown {
                     // Normal game update
                     if (frame % (int) (FalldownApplet.FPS / refreshLevel) == 0) {
                         updateGrid();
+                        gridMoved = true;
                     }
                     updateNonStatic();
                 }
             }
         }
-
+        advanceAnimation();
+        return gridMoved;
     }
 
     /**
@@ -270,22 +591,67 @@ public class Falldown {
      */
     private void updateGrid() {
         logger.log(Level.FINE, "Updating levelgrid");
-        nextGrid = new int[gridWidth][gridHeight];
+        GameEvents.GridUpdate event = GameEvents.isRecording()
+                ? new GameEvents.GridUpdate() : null;
+        if (event != null) {
+            event.begin();
+        }
+        clearGrid(nextGrid);
         treasureSteps++;
 
         // Process every column individually depending on the position
         for (int column = 0; column < columns; column++) {
 
-            // Calculate upward movement for even columns
-            if (column % 2 == 0) {
+            // Calculate upward movement for even columns of the wall
+            if ((firstColumn + column) % 2 == 0) {
                 updateColumnUpward(column);
+                if (world != null) {
+                    columnScroll[column]++;
+                }
                 // Calculate downward movement for even columns
             } else {
                 updateColumnDownward(column);
+                if (world != null) {
+                    columnScroll[column]--;
+                }
             }
         }
-        // Set new calculated grid
+        // Set new calculated grid, the old one is reused by the next update
+        int[][] previousGrid = levelGrid;
         levelGrid = nextGrid;
+        nextGrid = previousGrid;
+
+        if (event != null && event.shouldCommit()) {
+            event.level = currentLevel;
+            event.columns = columns;
+            event.treasureSteps = treasureSteps;
+            event.commit();
+        }
+    }
+
+    /**
+     * Sets every block of a grid to <code>EMPTY_BLOCK</code>
+     *
+     * @param grid Grid to clear
+     */
+    private void clearGrid(int[][] grid) {
+        fillGrid(grid, EMPTY_BLOCK);
+    }
+
+    private void fillGrid(int[][] grid, int block) {
+        for (int i = 0; i < grid.length; i++) {
+            Arrays.fill(grid[i], block);
+        }
+    }
+
+    /**
+     * Sets every block of the level to one block. Used to show the outcome
+     * of an unanimated game that is over.
+     *
+     * @param block Block identifier
+     */
+    void fillLevel(int block) {
+        fillGrid(levelGrid, block);
     }
 
     /**
@@ -303,8 +669,10 @@ public class Falldown {
                 colX = posX + column * columnPixelWidth;
 
                 // Do whatever is necessary to the specific block
-                logger.log(Level.FINEST, "Processing upward " + colX + "/"
-                        + posY);
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.log(Level.FINEST, "Processing upward " + colX + "/"
+                            + posY);
+                }
 
                 // Second position
                 if (posY == 1) {
@@ -324,17 +692,23 @@ public class Falldown {
 
                 // Bottom position
                 if (posY == gridHeight - 1) {
+                    if (world != null) {
+                        // Scroll the next row of the field into view
+                        nextGrid[colX][gridHeight - 1] =
+                                world.getBlock(colX, columnScroll[column] + gridHeight);
                     // Create new block
-                    if (isRowNonStatic(column, gridHeight - 1)&&
+                    } else if (isRowNonStatic(column, gridHeight - 1)&&
                             isRowNonStatic(column, gridHeight - 2)) {
-                        if(generateHoles && (random.nextInt(100) < HOLE_CHANCE)){
+                        if(generateHoles && (random.nextInt(100) < holeChance)){
                             nextGrid[colX][gridHeight - 1] = EMPTY_BLOCK;
                         } else {
                             nextGrid[colX][gridHeight - 1] = NORMAL_BLOCK;
                         }
 
-                        logger.log(Level.FINEST, "Created new block at " + colX
-                                + "/" + (gridHeight - 1));
+                        if (logger.isLoggable(Level.FINEST)) {
+                            logger.log(Level.FINEST, "Created new block at " + colX
+                                    + "/" + (gridHeight - 1));
+                        }
                     }
                 }
 
@@ -344,7 +718,8 @@ public class Falldown {
                     if (playerY == 0) {
                         logger.log(Level.FINE, "Player died moving up");
                         this.playerDead = true;
-                        playPlayerDeadAnimation();
+                        this.deathCause = DeathCause.PUSHED_OUT_TOP;
+                        publish(GameEvent.Type.PLAYER_DIED);
                     } else if (playerY > 0) {
                         logger.log(Level.FINE, "Moving player up");
                         setPlayerPosition(playerX, playerY - 1);
@@ -384,8 +759,10 @@ public class Falldown {
                 colX = posX + column * columnPixelWidth;
 
                 // Do whatever is necessary to the specific block
-                logger.log(Level.FINEST, "Processing downward " + colX + "/"
-                        + posY);
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.log(Level.FINEST, "Processing downward " + colX + "/"
+                            + posY);
+                }
 
                 // second last position
                 if (posY == gridHeight - 2) {
@@ -403,15 +780,20 @@ public class Falldown {
                 }
 
                 if (posY == 0) {
-                    if (isRowNonStatic(column, 0)
+                    if (world != null) {
+                        // Scroll the previous row of the field into view
+                        nextGrid[colX][0] = world.getBlock(colX, columnScroll[column] - 1);
+                    } else if (isRowNonStatic(column, 0)
                             && isRowNonStatic(column, 1)) {
-                        if(generateHoles && (random.nextInt(100) < HOLE_CHANCE)){
+                        if(generateHoles && (random.nextInt(100) < holeChance)){
                             nextGrid[colX][0] = EMPTY_BLOCK;
                         } else {
                             nextGrid[colX][0] = NORMAL_BLOCK;
                         }
-                        logger.log(Level.FINEST, "Created new block at " + colX
-                                + "/0");
+                        if (logger.isLoggable(Level.FINEST)) {
+                            logger.log(Level.FINEST, "Created new block at " + colX
+                                    + "/0");
+                        }
                     }
                     }
 
@@ -478,7 +860,7 @@ public class Falldown {
     private void updateTreasure() {
         // If treasure has been pushed out of bounds place it somewhere else
         if (treasureOutOfBounds) {
-            setTreasurePositionRandom();
+            setTreasurePositionRandom("out of bounds");
         }
         // Make the treasure fall
         if (treasureY < gridHeight - 1) {
@@ -488,7 +870,7 @@ public class Falldown {
         }
 
         if (treasureSteps == maxTreasureSteps) {
-            setTreasurePositionRandom();
+            setTreasurePositionRandom("steps");
         }
 
         if (treasureY == gridHeight - 1) {
@@ -507,8 +889,9 @@ public class Falldown {
         // Check if player has reached the bottom and therefore dies
         if (playerY == gridHeight - 1) {
             this.playerDead = true;
+            this.deathCause = DeathCause.FELL_TO_BOTTOM;
             logger.log(Level.FINE, "Player died at the bottom");
-            playPlayerDeadAnimation();
+            publish(GameEvent.Type.PLAYER_DIED);
             // Make the player "fall" if nothing is beneath it
         } else if (playerY < gridHeight - 1 && playerY != 0) {
             if (isNonStaticBlock(levelGrid[playerX][playerY + 1])) {
@@ -520,7 +903,10 @@ public class Falldown {
         if (playerX == treasureX && playerY == treasureY) {
             this.treasureReached = true;
             logger.log(Level.INFO, "Player reached treasure");
-            this.playTreasureFoundAnimation();
+            publish(GameEvent.Type.TREASURE_REACHED);
+            if (!animated) {
+                advanceLevel();
+            }
         }
 
         levelGrid[playerX][playerY] = PLAYER_BLOCK;
@@ -559,26 +945,94 @@ public class Falldown {
     /**
      * Sets the treasure to a random position and ensures for that position to
      * be empty
+     *
+     * @param reason Why the treasure is moved, recorded with the event
      */
-    private void setTreasurePositionRandom() {
+    private void setTreasurePositionRandom(String reason) {
         logger.log(Level.FINE, "Moving treasure to random position");
         treasureSteps = 0;
         treasureOutOfBounds = false;
+        int position = findTreasurePosition(levelGrid, reason);
+        setTreasurePosition(position / gridHeight, position % gridHeight);
+    }
+
+    /**
+     * Finds a random position for the treasure that is empty and lies on
+     * a static block. If none turns up in <code>MAX_TREASURE_ATTEMPTS</code>
+     * the grid is scanned for one, and a grid without one gets the first
+     * cell that isn't the player, the treasure falls from there.
+     *
+     * @param grid   Grid to search
+     * @param reason Why the treasure is moved, recorded with the event
+     * @return position as <code>x * gridHeight + y</code>
+     */
+    private int findTreasurePosition(int[][] grid, String reason) {
+        GameEvents.TreasureRespawn event = GameEvents.isRecording()
+                ? new GameEvents.TreasureRespawn() : null;
+        if (event != null) {
+            event.begin();
+        }
         boolean positionFound = false;
+        int attempts = 0;
         int x = random.nextInt(gridWidth);
         int y = random.nextInt(gridHeight - 2);
 
         // Find a free position
-        while (!positionFound) {
+        while (!positionFound && attempts < MAX_TREASURE_ATTEMPTS) {
+            attempts++;
             x = random.nextInt(gridWidth);
             y = random.nextInt(gridHeight - 2);
-            if (isStaticBlock(levelGrid[x][y + 1])) {
-                if (levelGrid[x][y] != PLAYER_BLOCK) {
+            if (isStaticBlock(grid[x][y + 1])) {
+                if (grid[x][y] != PLAYER_BLOCK) {
                     positionFound = true;
                 }
             }
         }
-        setTreasurePosition(x, y);
+        if (!positionFound) {
+            // Scan from the last position tried, the player must not get
+            // the treasure for free
+            int position = scanTreasurePosition(grid, x * (gridHeight - 2) + y, true);
+            if (position < 0) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "No free treasure position (" + reason + ")");
+                }
+                position = scanTreasurePosition(grid, x * (gridHeight - 2) + y, false);
+            }
+            x = position / (gridHeight - 2);
+            y = position % (gridHeight - 2);
+        }
+
+        if (event != null && event.shouldCommit()) {
+            event.reason = reason;
+            event.attempts = attempts;
+            event.treasureX = x;
+            event.treasureY = y;
+            event.commit();
+        }
+        return x * gridHeight + y;
+    }
+
+    /**
+     * Scans the grid for a treasure position in the rows a random position
+     * is picked from
+     *
+     * @param grid     Grid to search
+     * @param start    First cell to look at as <code>x * (gridHeight - 2) + y</code>
+     * @param onStatic Only accept cells above a static block
+     * @return cell in the form of <code>start</code>, -1 if there is none
+     */
+    private int scanTreasurePosition(int[][] grid, int start, boolean onStatic) {
+        int cells = gridWidth * (gridHeight - 2);
+        for (int i = 0; i < cells; i++) {
+            int cell = (start + i) % cells;
+            int x = cell / (gridHeight - 2);
+            int y = cell % (gridHeight - 2);
+            if (grid[x][y] != PLAYER_BLOCK
+                    && (!onStatic || isStaticBlock(grid[x][y + 1]))) {
+                return cell;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -631,213 +1085,325 @@ public class Falldown {
         }
     }
 
+    // #########################################################################
+    // EVENTS
+    // #########################################################################
+
+    private void publish(GameEvent.Type type) {
+        events.publish(type, currentLevel, deathCause, playerX, playerY);
+    }
+
+    /**
+     * Plays the animation of every event that has one
+     */
+    private final GameEventListener animations = new GameEventListener() {
+
+        @Override
+        public void onGameEvent(GameEvent event) {
+            switch (event.getType()) {
+                case TREASURE_REACHED:
+                    playTreasureFoundAnimation();
+                    break;
+                case PLAYER_DIED:
+                    playPlayerDeadAnimation();
+                    break;
+                case GAME_WON:
+                    playGameEndAnimation();
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
     // #########################################################################
     // ANIMATIONS
     // #########################################################################
 
-    private void playTreasureFoundAnimation() {
-        if (!animationActive) {
-            logger.log(Level.INFO, "Starting treasure-found-animation");
-            animationActive = true;
-            levelGrid[playerX][playerY] = PLAYER_BLOCK;
+    /**
+     * <p>Animation played cell by cell by <code>update()</code>.</p>
+     * <p>Every call of <code>nextCell()</code> changes the grid up to the
+     * next cell that is followed by a pause. The instances are reused, so
+     * playing an animation doesn't allocate.</p>
+     */
+    private abstract class Animation {
+        final String name;
+        /* Pause after a cell in milliseconds */
+        final long delay;
+        /* Begun when the animation started, null if not recording */
+        GameEvents.Animation event;
+
+        Animation(String name, long delay) {
+            this.name = name;
+            this.delay = delay;
+        }
 
-            // Start animation
-            Thread treasureAnimation = new Thread(new Runnable() {
-
-                @Override
-                public void run() {
-
-                    try {
-                        if (animationActive) {
-                            // Clear levelGrid
-                            for (int i = 0; i < gridWidth; i++) {
-                                for (int j = 0; j < gridHeight; j++) {
-                                    if (isStaticBlock(levelGrid[i][j])) {
-                                        if (animationActive) {
-                                            levelGrid[i][j] = EMPTY_BLOCK;
-                                        }
-                                        Thread.sleep(ANIMATION_DELAY);
-                                    }
-                                }
-                            }
-                        } else {
-                            Thread.currentThread().interrupt();
-                        }
+        /**
+         * Goes back to the first cell
+         */
+        abstract void rewind();
 
-                        if (animationActive) {
+        /**
+         * @return false once the animation is over, nothing was changed then
+         */
+        abstract boolean nextCell();
 
-                            // Fill gold
-                            for (int i = 0; i < gridHeight; i++) {
-                                for (int j = 0; j < gridWidth; j++) {
-                                    if (levelGrid[j][i] == EMPTY_BLOCK) {
-                                        if (animationActive) {
-                                            levelGrid[j][i] = TREASURE_BLOCK;
-                                        }
+        /**
+         * Called by the update after the last cell
+         */
+        void finished() {
+        }
+    }
 
-                                        Thread.sleep(ANIMATION_DELAY);
-                                    }
-                                }
-                            }
+    /**
+     * Starts an animation unless another one is playing
+     *
+     * @param next Animation to play
+     * @return true if it was started
+     */
+    private boolean playAnimation(Animation next) {
+        if (animation != null) {
+            return false;
+        }
+        if (logger.isLoggable(Level.INFO)) {
+            logger.log(Level.INFO, "Starting " + next.name + " animation");
+        }
+        next.rewind();
+        next.event = GameEvents.isRecording() ? new GameEvents.Animation() : null;
+        if (next.event != null) {
+            next.event.begin();
+        }
+        animation = next;
+        // The first cells change with the next update
+        animationDue = System.nanoTime();
+        return true;
+    }
 
-                        } else {
-                            Thread.currentThread().interrupt();
-                        }
-                    } catch (InterruptedException e) {
-                        logger.log(Level.WARNING,
-                                "Treasure-Animationthread interrupted (clear)"
-                                        + e);
-                    }
-                    animationActive = false;
-                    logger.log(Level.FINE,
-                            "Treasure-reached animation finished");
-                    advanceLevel();
+    /**
+     * Changes every cell of the running animation that is due
+     */
+    private void advanceAnimation() {
+        Animation running = animation;
+        if (running == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - animationDue > MAX_ANIMATION_LAG_NANOS) {
+            animationDue = now;
+        }
+        while (now - animationDue >= 0) {
+            if (!running.nextCell()) {
+                animation = null;
+                commitAnimation(running, false);
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, running.name + " animation finished");
                 }
+                running.finished();
+                return;
+            }
+            animationDue += running.delay * 1000000L / animationSpeed;
+        }
+    }
 
-            });
-            animationRunning.add(treasureAnimation);
-            treasureAnimation.start();
+    private void playTreasureFoundAnimation() {
+        if (playAnimation(treasureAnimation)) {
+            levelGrid[playerX][playerY] = PLAYER_BLOCK;
+            // The game stands still until the animation ends
+            levelPreparing = true;
+            levelBuilder.play(levelPreparation);
         }
     }
 
-    private void playPlayerDeadAnimation() {
-        if (!animationActive) {
-            logger.log(Level.INFO, "Starting player-dead-animation");
-            animationActive = true;
-
-            Thread playerDeadAnimation = new Thread(new Runnable() {
-
-                @Override
-                public void run() {
-                    try {
-                        for (int i = gridHeight - 1; i >= 0; i--) {
-                            for (int j = gridWidth - 1; j >= 0; j--) {
-
-                                if (animationActive) {
-                                    levelGrid[j][i] = RED_BLOCK;
-                                    Thread.sleep(ANIMATION_DELAY);
-                                } else {
-                                    Thread.currentThread().interrupt();
-                                }
-                            }
+    private final Runnable levelPreparation = new Runnable() {
 
-                        }
-                        animationActive = false;
-                        playPlaceholderAnimation();
-                    } catch (InterruptedException e) {
-                        logger.log(Level.WARNING,
-                                "Player-dead animationthread interrupted"
-                                        + e);
-                    }
-                    logger.log(Level.FINE, "Player-dead animation finished");
+        @Override
+        public void run() {
+            try {
+                prepareNextLevel();
+            } finally {
+                // A cancelled build is dropped by the reset
+                if (levelBuilder.isCurrent()) {
+                    levelPreparing = false;
                 }
+            }
+        }
+
+    };
 
-            });
-            animationRunning.add(playerDeadAnimation);
-            playerDeadAnimation.start();
+    private final Animation treasureAnimation = new Animation("treasure found", ANIMATION_DELAY) {
+        /* Clears the static blocks column by column, then fills the empty
+           cells with gold row by row */
+        int cell;
 
+        @Override
+        void rewind() {
+            cell = 0;
         }
-    }
 
-    private void playPlaceholderAnimation() {
-        // Init animation
-        if (!animationActive) {
-            logger.log(Level.INFO, "Starting placeholder-animation");
-            animationActive = true;
-            levelGrid = new int[gridWidth][gridHeight];
-
-            Thread placeholderAnimation = new Thread(new Runnable() {
-
-                @Override
-                public void run() {
-                    while (animationActive) {
-                        for (int i = 0; i < gridWidth; i++) {
-                            for (int j = 0; j < gridHeight; j++) {
-                                try {
-                                    if (animationActive) {
-                                        if (levelGrid[i][j] == EMPTY_BLOCK) {
-                                            levelGrid[i][j] = FADING_BLOCK;
-                                        } else {
-                                            levelGrid[i][j] = EMPTY_BLOCK;
-                                        }
-
-                                        Thread.sleep(ANIMATION_DELAY);
-                                    } else {
-                                        Thread.currentThread().interrupt();
-                                    }
-                                } catch (InterruptedException e) {
-                                    logger.log(Level.WARNING,
-                                            "Placeholder-Animationthread interrupted"
-                                                    + e);
-                                }
-                            }
-                        }
-                    }
-                    logger.log(Level.FINE, "Placeholder animation finished");
+        @Override
+        boolean nextCell() {
+            int cells = gridWidth * gridHeight;
+            while (cell < cells) {
+                int i = cell / gridHeight;
+                int j = cell % gridHeight;
+                cell++;
+                if (isStaticBlock(levelGrid[i][j])) {
+                    levelGrid[i][j] = EMPTY_BLOCK;
+                    return true;
+                }
+            }
+            while (cell < cells * 2) {
+                int i = (cell - cells) / gridWidth;
+                int j = (cell - cells) % gridWidth;
+                cell++;
+                if (levelGrid[j][i] == EMPTY_BLOCK) {
+                    levelGrid[j][i] = TREASURE_BLOCK;
+                    return true;
                 }
+            }
+            return false;
+        }
+
+        @Override
+        void finished() {
+            levelAdvancePending = true;
+        }
+    };
+
+    private void playPlayerDeadAnimation() {
+        if (playAnimation(playerDeadAnimation)) {
+            deathAnimationPlaying = true;
+        }
+    }
+
+    private final Animation playerDeadAnimation = new Animation("player dead", ANIMATION_DELAY) {
+        /* Fills the grid red from the bottom right */
+        int cell;
+
+        @Override
+        void rewind() {
+            cell = gridWidth * gridHeight;
+        }
+
+        @Override
+        boolean nextCell() {
+            if (cell == 0) {
+                return false;
+            }
+            cell--;
+            levelGrid[cell % gridWidth][cell / gridWidth] = RED_BLOCK;
+            return true;
+        }
 
-            });
-            animationRunning.add(placeholderAnimation);
-            placeholderAnimation.start();
+        @Override
+        void finished() {
+            deathAnimationPlaying = false;
+            playPlaceholderAnimation();
         }
+    };
 
+    private void playPlaceholderAnimation() {
+        if (!animated) {
+            return;
+        }
+        if (playAnimation(placeholderAnimation)) {
+            clearGrid(levelGrid);
+        }
     }
 
+    private final Animation placeholderAnimation = new Animation("placeholder", ANIMATION_DELAY) {
+        /* Toggles every cell column by column, over and over */
+        int cell;
+
+        @Override
+        void rewind() {
+            cell = 0;
+        }
+
+        @Override
+        boolean nextCell() {
+            int i = cell / gridHeight;
+            int j = cell % gridHeight;
+            if (levelGrid[i][j] == EMPTY_BLOCK) {
+                levelGrid[i][j] = FADING_BLOCK;
+            } else {
+                levelGrid[i][j] = EMPTY_BLOCK;
+            }
+            cell = (cell + 1) % (gridWidth * gridHeight);
+            return true;
+        }
+    };
+
     private void playGameEndAnimation() {
-        // Init animation
-        if (!animationActive) {
-            logger.log(Level.INFO, "Starting gameEnd-animation");
-            animationActive = true;
-            levelGrid = new int[gridWidth][gridHeight];
-
-            Thread gameEndAnimation = new Thread(new Runnable() {
-
-                @Override
-                public void run() {
-                    Random r = new Random();
-                    while (animationActive) {
-                        int randWidth = r.nextInt(gridWidth);
-                        int randHeight = r.nextInt(gridHeight);
-                        try {
-                            if (animationActive) {
-                                if (levelGrid[randWidth][randHeight] != RANDOM_BLOCK) {
-                                    levelGrid[randWidth][randHeight] = RANDOM_BLOCK;
-                                } else {
-                                    levelGrid[randWidth][randHeight] = EMPTY_BLOCK;
-                                }
-
-
-                                Thread.sleep(ANIMATION_DELAY * 3);
-                            } else {
-                                Thread.currentThread().interrupt();
-                            }
-                        } catch (InterruptedException e) {
-                            logger.log(Level.WARNING,
-                                    "GameEnd-Animationthread interrupted"
-                                            + e);
-                        }
-                    }
+        if (playAnimation(gameEndAnimation)) {
+            clearGrid(levelGrid);
+        }
+    }
 
-                    logger.log(Level.FINE, "GameEnd animation finished");
-                }
+    private final Animation gameEndAnimation = new Animation("game end", ANIMATION_DELAY * 3) {
 
-            });
-            animationRunning.add(gameEndAnimation);
-            gameEndAnimation.start();
+        @Override
+        void rewind() {
         }
 
+        @Override
+        boolean nextCell() {
+            // Toggles random cells until the game is reset
+            int randWidth = animationRandom.nextInt(gridWidth);
+            int randHeight = animationRandom.nextInt(gridHeight);
+            if (levelGrid[randWidth][randHeight] != RANDOM_BLOCK) {
+                levelGrid[randWidth][randHeight] = RANDOM_BLOCK;
+            } else {
+                levelGrid[randWidth][randHeight] = EMPTY_BLOCK;
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Records an animation that finished or was cancelled
+     *
+     * @param ended     Animation to record
+     * @param cancelled True if it didn't reach its end
+     */
+    private void commitAnimation(Animation ended, boolean cancelled) {
+        GameEvents.Animation event = ended.event;
+        if (event == null) {
+            return;
+        }
+        ended.event = null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.name = ended.name;
+            event.cancelled = cancelled;
+            event.commit();
+        }
     }
 
+    /**
+     * Stops the level builder thread. The game must not be used afterwards.
+     */
+    public void close() {
+        endAllAnimations();
+        if (levelBuilder != null) {
+            levelBuilder.shutdown();
+        }
+    }
 
     /**
      * Ends any animation running to prevent bugs
      */
     private void endAllAnimations() {
         logger.log(Level.FINE, "Ending Animations");
-        for (Thread animation : animationRunning) {
-            animation.interrupt();
+        if (animation != null) {
+            commitAnimation(animation, true);
+            animation = null;
+        }
+        deathAnimationPlaying = false;
+        if (levelBuilder != null) {
+            levelBuilder.cancel();
+            levelPreparing = false;
         }
-        animationActive = false;
-
     }
 
     // #########################################################################
@@ -845,7 +1411,9 @@ public class Falldown {
     // #########################################################################
 
     /**
-     * Used to obtain the latest level including the player
+     * Used to obtain the latest level including the player. The returned
+     * array is live and changed by the next <code>update()</code>, other
+     * threads use <code>acquireFrame()</code> for a consistent snapshot.
      *
      * @return current version of the level
      */
@@ -853,6 +1421,30 @@ public class Falldown {
         return levelGrid;
     }
 
+    /**
+     * Obtains the snapshot published by the latest <code>update()</code>.
+     * The frame has to be released by the caller.
+     *
+     * @return latest frame or null if <code>update()</code> was never called
+     */
+    public GridFrame acquireFrame() {
+        return framePublisher.acquire();
+    }
+
+    /**
+     * @return publisher of the grid snapshots, used to attach more readers
+     */
+    public FramePublisher getFramePublisher() {
+        return framePublisher;
+    }
+
+    /**
+     * @return bus the game publishes its events on, to subscribe to them
+     */
+    public GameEventBus getEvents() {
+        return events;
+    }
+
 
     public void playIdleAnimation(){
         this.playPlaceholderAnimation();
@@ -865,6 +1457,13 @@ public class Falldown {
         return this.playerDead;
     }
 
+    /**
+     * @return true while the player-dead animation is shown
+     */
+    public boolean isDeathAnimationPlaying() {
+        return deathAnimationPlaying;
+    }
+
     /**
      * Indicates whether the game is still running
      *
@@ -875,4 +1474,76 @@ public class Falldown {
 
     }
 
+    /**
+     * @return what killed the player, <code>NONE</code> while alive
+     */
+    public DeathCause getDeathCause() {
+        return deathCause;
+    }
+
+    /**
+     * Logs this game somewhere else than the applet logger. Has to be set
+     * before the game is started.
+     *
+     * @param logger Logger of this game
+     */
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Plays the animations faster than real time. Used by tests that run
+     * the frame loop at a multiple of <code>FPS</code>.
+     *
+     * @param speed Factor, 1 for real time
+     */
+    public void setAnimationSpeed(int speed) {
+        this.animationSpeed = Math.max(1, speed);
+    }
+
+    /**
+     * @return true if every level has been completed
+     */
+    public boolean isGameWon() {
+        return gameWon;
+    }
+
+    /**
+     * @return number of the current level starting at 0
+     */
+    public int getCurrentLevel() {
+        return currentLevel;
+    }
+
+    /**
+     * @return number of levels in this game
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    public int getPlayerX() {
+        return playerX;
+    }
+
+    public int getPlayerY() {
+        return playerY;
+    }
+
+    public int getTreasureX() {
+        return treasureX;
+    }
+
+    public int getTreasureY() {
+        return treasureY;
+    }
+
+    public int getGridWidth() {
+        return gridWidth;
+    }
+
+    public int getGridHeight() {
+        return gridHeight;
+    }
+
 }
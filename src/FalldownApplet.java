@@ -1,6 +1,11 @@
 import hsrw.illumination.client.intern.*;
-import hsrw.illumination.client.intern.arbiter.*;
 
+import java.awt.Insets;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Random;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
@@ -8,6 +13,7 @@ import java.util.logging.Logger;
 
 import processing.core.PApplet;
 import processing.core.PImage;
+import processing.event.KeyEvent;
 /**
  * Created by Peter Mösenthin.
  */
@@ -20,21 +26,15 @@ public class FalldownApplet extends PApplet {
 
     /* Setup for the server */
     PImage serverImage;
+    /* Colour correction of the server image */
+    private ColorPipeline.Stage serverColors;
     //APIClientIntern(String ip, int port, String uname, String upass)
     APIClientIntern client;
 
     /**
-     * Saves connected player
+     * Handles players and controls of the server
      */
-    private Player player;
-    private boolean playerIsGaming = false;
-
-    /*
-    Control constants used by the server
-     */
-    private static final String CTL_LEFT = "1";
-    private static final String CTL_RIGHT = "3";
-    private static final String CTL_SPECIAL = "0";
+    private ServerSession session;
 
 
     /**
@@ -51,6 +51,77 @@ public class FalldownApplet extends PApplet {
     private static final String SERVER_PASSWORD = "12345678";
     private static final String SCHEDULE_NAME = "Falldown";
 
+    /**
+     * Servers of the facade segments as "ip:port". If set, every segment
+     * gets its own share of the columns in addition to the main canvas.
+     * The number of columns has to be a multiple of the segment count.
+     */
+    private static final String[] SEGMENT_SERVERS = {};
+    /**
+     * Segments are palette receivers instead of illumination servers. The
+     * canvas of a server has no room for the frame sequence number, the
+     * palette stream carries it with every shard.
+     */
+    private static final boolean SEGMENT_ENCODED = false;
+
+    /**
+     * Receivers of palette encoded frames as "ip:port". Each one gets every
+     * frame with three bits per block.
+     */
+    private static final String[] ENCODED_RECEIVERS = {};
+
+    /**
+     * LED controllers fed directly with DMX over UDP as "ip" or "ip:port".
+     * Pixels start at universe <code>DMX_FIRST_UNIVERSE</code> on each.
+     */
+    private static final String[] DMX_CONTROLLERS = {};
+    private static final DmxFrameSink.Protocol DMX_PROTOCOL = DmxFrameSink.Protocol.E131;
+    private static final int DMX_FIRST_UNIVERSE = 1;
+    private static final boolean DMX_SERPENTINE = false;
+    /**
+     * Refresh rate of the DMX output. Above <code>FPS</code> the cells fade
+     * smoothly between game ticks, 0 sends every game frame as it is.
+     */
+    private static final int DMX_OUTPUT_HZ = 0;
+
+    /**
+     * Memory mapped file other local processes can read the frames from,
+     * empty to disable. See <code>MappedFrameSink</code> for the layout.
+     */
+    private static final String FRAME_RING_FILE = "";
+    private static final int FRAME_RING_SLOTS = 64;
+
+    /**
+     * Port of the browser live view, 0 to disable. Viewers get at most
+     * <code>LIVE_VIEW_FPS</code> frames per second.
+     */
+    private static final int LIVE_VIEW_PORT = 0;
+    private static final int LIVE_VIEW_FPS = 15;
+
+    /**
+     * Log every game of a server player is recorded in, empty to disable.
+     * See <code>SessionStatsReport</code> for the numbers.
+     */
+    private static final String STATS_FILE = "";
+    private static final int STATS_QUEUE = 1024;
+
+    /**
+     * Ticks played without an audience before the lobby opens, 0 to go live
+     * right away. 50000 reach the steady state on most machines but delay
+     * the lobby on every start. See <code>WarmUp</code>.
+     */
+    private static final int WARM_UP_TICKS = 0;
+
+
+    /**
+     * Colour correction of everything that goes to LEDs: the server canvas,
+     * the segments and DMX, empty to send the colours unchanged. See
+     * <code>ColorPipeline</code> for the format, LED walls usually want
+     * <code>gamma=2.2;dither=true</code>.
+     */
+    private static final String LED_COLORS = "";
+    private static final ColorPipeline LED_PIPELINE = LED_COLORS.length() == 0
+            ? ColorPipeline.LINEAR : ColorPipeline.parse(LED_COLORS);
 
     /* Bounds of grid/display */
     public int GRID_X = 9;
@@ -100,6 +171,28 @@ public class FalldownApplet extends PApplet {
     /** Game instance */
     Falldown falldown;
 
+    /**
+     * Drops the debug preview when frames run late. See
+     * <code>getFrameBudget()</code> for its metrics.
+     */
+    private final FrameBudget frameBudget = new FrameBudget(FPS);
+
+    /** Additional outputs that receive every frame */
+    private ArrayList<FrameSink> frameSinks = new ArrayList<FrameSink>();
+
+    /* Startup time, used to report the time to the first frame */
+    private long setupNanos;
+    private boolean firstFrameDrawn = false;
+
+    /*
+    Filled in by the connection thread. The session is written last and
+    taken over by draw() together with everything before it
+    */
+    private volatile ServerSession connectedSession;
+    private int serverGridX;
+    private int serverGridY;
+    private FrameSink segmentRouter;
+
     // #########################################################################
     // PROCESSING SPECIFIC METHODS
     // #########################################################################
@@ -108,6 +201,8 @@ public class FalldownApplet extends PApplet {
      * Used by processing to initialize the applet
      */
     public void setup() {
+        setupNanos = System.nanoTime();
+
         // Set Log-level
         System.out.println("LOGGING LEVEL: " + LOG_LEVEL);
         logger.setLevel(LOG_LEVEL);
@@ -116,23 +211,36 @@ public class FalldownApplet extends PApplet {
         logger.addHandler(handler);
         logger.setUseParentHandlers(false);
 
-        // Log into the server
+        // Log into the server in the background. The game starts with the
+        // default grid and takes over the viewport once the server answered
         if (serverAPI) {
-            connectApiClient();
+            Thread connection = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    connectApiClient();
+                }
+
+            }, "server-connect");
+            connection.setDaemon(true);
+            connection.start();
         }
 
 
         // window size
-        size(GRID_X * (int) (14 * SCALE_FACTOR), GRID_Y
-                * (int) (11 * SCALE_FACTOR));
+        size(getWindowWidth(), getWindowHeight());
 
         logger.log(Level.INFO, "Grid set to " + GRID_X + "x" + GRID_Y);
 
         // Set up the falldown game
         falldown = new Falldown(GRID_X, GRID_Y, COLUMNS);
 
-        // This image will be sent to the server
+        openFrameSinks();
+
+        // This image will be sent to the server. It is reused every frame
+        // since every pixel gets overwritten
         serverImage = createImage(GRID_X, GRID_Y, RGB);
+        serverColors = LED_PIPELINE.createStage(GRID_X * GRID_Y);
 
         // Disable AA to prevent weird fading in the preview window
         noSmooth();
@@ -141,98 +249,260 @@ public class FalldownApplet extends PApplet {
         frameRate(FPS);
     }
 
+    /**
+     * Opens the local outputs for the current grid size
+     */
+    private void openFrameSinks() {
+        for (String receiver : ENCODED_RECEIVERS) {
+            String[] address = receiver.split(":");
+            frameSinks.add(new EncodingFrameSink(
+                    new InetSocketAddress(address[0], Integer.parseInt(address[1])),
+                    new PaletteFrameEncoder()));
+        }
 
+        for (String controller : DMX_CONTROLLERS) {
+            String[] address = controller.split(":");
+            int port = address.length > 1 ? Integer.parseInt(address[1]) : DMX_PROTOCOL.getPort();
+            try {
+                DmxFrameSink dmx = new DmxFrameSink(DMX_PROTOCOL,
+                        new InetSocketAddress(address[0], port),
+                        GRID_X, GRID_Y, DMX_FIRST_UNIVERSE, DMX_SERPENTINE,
+                        LED_PIPELINE);
+                if (DMX_OUTPUT_HZ > 0) {
+                    frameSinks.add(new FrameInterpolator(dmx, GRID_X, GRID_Y, DMX_OUTPUT_HZ));
+                } else {
+                    frameSinks.add(dmx);
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "DMX output to " + controller + " failed " + e);
+            }
+        }
+
+        if (FRAME_RING_FILE.length() > 0) {
+            try {
+                frameSinks.add(new MappedFrameSink(new File(FRAME_RING_FILE),
+                        GRID_X, GRID_Y, FRAME_RING_SLOTS));
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Frame ring " + FRAME_RING_FILE + " failed " + e);
+            }
+        }
+
+        if (LIVE_VIEW_PORT > 0) {
+            try {
+                frameSinks.add(new LiveViewServer(LIVE_VIEW_PORT, LIVE_VIEW_FPS));
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Live view on port " + LIVE_VIEW_PORT + " failed " + e);
+            }
+        }
+    }
+
+    /**
+     * Closes every output
+     */
+    private void closeFrameSinks() {
+        for (FrameSink sink : frameSinks) {
+            sink.close();
+        }
+        frameSinks.clear();
+    }
+
+
+    /**
+     * Logs into the server and prepares the session. Blocks until the
+     * server answered, the result is taken over by <code>draw()</code>.
+     */
     public void connectApiClient(){
-        client = new APIClientIntern(SERVER_IP,
+        long start = System.nanoTime();
+        APIClientIntern client = new TimedAPIClient(SERVER_IP,
                 SERVER_PORT,
                 SERVER_LOGIN,
                 SERVER_PASSWORD);
         client.debug = true;
-        GRID_X = client.getViewportWidth();
-        GRID_Y = client.getViewportHeight();
-        client.scheduleAddGame(SCHEDULE_NAME);
-        client.createCanvas(GRID_X, GRID_Y);
+        int gridX = client.getViewportWidth();
+        int gridY = client.getViewportHeight();
+        client.createCanvas(gridX, gridY);
+
+        if (SEGMENT_SERVERS.length > 0) {
+            segmentRouter = connectSegments(gridX, gridY);
+        }
+        serverGridX = gridX;
+        serverGridY = gridY;
+        this.client = client;
+        logger.log(Level.INFO, "Server connected after "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        // The lobby starts with the session, the first player gets compiled code
+        if (WARM_UP_TICKS > 0) {
+            WarmUp warmUp = new WarmUp(gridX, gridY, LED_PIPELINE);
+            warmUp.run(WARM_UP_TICKS);
+            warmUp.close();
+        }
+        connectedSession = new ServerSession(client, SCHEDULE_NAME, openStatsStore());
     }
 
     /**
-     * Called every frame to update and display everything
+     * @return store of the game statistics or null if disabled or failed
      */
-    public void draw() {
-        logger.log(Level.FINEST, "Frame " + frameCount);
-
-        //Handle client API if activated
-        if(serverAPI) {
-            //Accept newest player while no one is playing
-	        if(client.playerWantsToEnterGame() && !playerIsGaming) {
-	        	logger.log(Level.INFO, "Player wants to enter game");
-                if(player != null){
-                    logger.log(Level.INFO,"Kicking player with ID: " + player.getId());
-                    player.kick();
-                }
-	        	player = client.getEnteringPlayer();
-                logger.log(Level.INFO,"Player entered with ID: " + player.getId());
-	        	player.accept();
-	        	logger.log(Level.INFO, "Player(" + player.getId() + ") accepted");
-            }
+    private SessionStatsStore openStatsStore() {
+        if (STATS_FILE.length() == 0) {
+            return null;
+        }
+        try {
+            return new SessionStatsStore(new File(STATS_FILE), STATS_QUEUE);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Stats log " + STATS_FILE + " failed " + e);
+            return null;
+        }
+    }
 
-            if(client.isLive() && !playerIsGaming){
-                logger.log(Level.INFO, "Client is live");
-                if(player != null){
-                logger.log(Level.INFO, "Starting liveplay");
-                playerIsGaming = true;
-                falldown.resetAndPurge();
-                }
-            }
+    /**
+     * Takes over the server connection. Rebuilds the game and the outputs
+     * if the viewport of the server differs from the current grid.
+     */
+    private void adoptServerConnection() {
+        if (serverGridX != GRID_X || serverGridY != GRID_Y) {
+            logger.log(Level.INFO, "Adopting viewport " + serverGridX + "x" + serverGridY);
+            GRID_X = serverGridX;
+            GRID_Y = serverGridY;
+            falldown.close();
+            falldown = new Falldown(GRID_X, GRID_Y, COLUMNS);
+            serverImage = createImage(GRID_X, GRID_Y, RGB);
+            serverColors = LED_PIPELINE.createStage(GRID_X * GRID_Y);
+            closeFrameSinks();
+            openFrameSinks();
+            resizeWindow();
+        }
+        if (segmentRouter != null) {
+            frameSinks.add(segmentRouter);
+        }
+        session = connectedSession;
+    }
 
-            // Go to idle state for next play
-            if(falldown.isPlayerDead()){
-                if(player != null){
-                    player.kick();
-                    player = null;
-                }
-                playerIsGaming = false;
-                falldown.playIdleAnimation();
-                client.scheduleAddGame(SCHEDULE_NAME);
-                //connectApiClient();
+    /**
+     * Connects to every segment server and routes a share of the columns to
+     * each of them
+     *
+     * @param gridX Width of the viewport
+     * @param gridY Height of the viewport
+     * @return router feeding every segment
+     */
+    private FrameSink connectSegments(int gridX, int gridY) {
+        FrameSink[] segments = new FrameSink[SEGMENT_SERVERS.length];
+        int[] segmentX = ShardedOutputRouter.splitColumns(gridX, COLUMNS, segments.length);
+        for (int i = 0; i < SEGMENT_SERVERS.length; i++) {
+            String[] address = SEGMENT_SERVERS[i].split(":");
+            if (SEGMENT_ENCODED) {
+                segments[i] = new EncodingFrameSink(new InetSocketAddress(address[0],
+                        Integer.parseInt(address[1])), new PaletteFrameEncoder());
+            } else {
+                APIClientIntern segmentClient = new APIClientIntern(address[0],
+                        Integer.parseInt(address[1]),
+                        SERVER_LOGIN,
+                        SERVER_PASSWORD);
+                // The last segment also gets the blocks left over by the split
+                segments[i] = new CanvasFrameSink(segmentClient,
+                        ShardedOutputRouter.getShardWidth(segmentX, i, gridX), gridY,
+                        LED_PIPELINE);
             }
+            logger.log(Level.INFO, "Segment " + i + " connected to " + SEGMENT_SERVERS[i]);
+        }
+        return new ShardedOutputRouter(segments, segmentX, gridX, gridY);
+    }
 
-            if(client.isLive()){
-                manageServerControls();
-            }
+    /**
+     * Called every frame to update and display everything
+     */
+    public void draw() {
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.log(Level.FINEST, "Frame " + frameCount);
+        }
+        frameBudget.beginFrame();
+        boolean preview = !frameBudget.isShed(FrameBudget.Shedding.DEBUG_PREVIEW);
+
+        // Take over the server once it answered
+        frameBudget.beginPhase(FrameBudget.Phase.SESSION);
+        if (session == null && connectedSession != null) {
+            adoptServerConnection();
+        }
+
+        //Handle client API once connected
+        if (session != null) {
+            session.update(falldown);
         }
 
 
         //Static output like the debug grid
+        frameBudget.beginPhase(FrameBudget.Phase.PREVIEW);
         background(150);
         translate(GRID_OFFSET, GRID_OFFSET);
         scale(SCALE_FACTOR);
-        drawGridLines();
-
+        if (preview) {
+            drawGridLines();
+        }
 
-        // Reset the image
-        serverImage = createImage(GRID_X, GRID_Y, RGB);
 
         // Update game behavior every frame
+        frameBudget.beginPhase(FrameBudget.Phase.GAME);
         falldown.update(frameCount);
 
+        // Both outputs read the same snapshot so they can't tear
+        GridFrame gridFrame = falldown.acquireFrame();
+        long sequence = gridFrame.getSequence();
+        if (session != null) {
+            session.getInputLatency().tickApplied(sequence);
+        }
+
         // Draw level to the debug grid
-        drawToGrid(falldown.getLevelGrid());
+        frameBudget.beginPhase(FrameBudget.Phase.PREVIEW);
+        if (preview) {
+            drawToGrid(gridFrame);
+        }
 
         // Fill the image for the server
-        drawOutputImage(falldown.getLevelGrid());
+        frameBudget.beginPhase(FrameBudget.Phase.OUTPUT);
+        drawOutputImage(gridFrame);
+
+        for (int i = 0; i < frameSinks.size(); i++) {
+            GameEvents.sendFrame(frameSinks.get(i), gridFrame);
+        }
+
+        gridFrame.release();
 
         // Debug output
-        image(serverImage, GRID_X * 12, GRID_Y);
+        frameBudget.beginPhase(FrameBudget.Phase.PREVIEW);
+        if (preview) {
+            image(serverImage, GRID_X * 12, GRID_Y);
+        }
 
         // Send the created image to the server
-        if(serverAPI){
+        frameBudget.beginPhase(FrameBudget.Phase.OUTPUT);
+        if (session != null) {
             logger.log(Level.FINEST, "Sending game image to the Server");
-            client.drawCanvas(serverImage);
+            GameEvents.FrameSend event = GameEvents.isRecording()
+                    ? new GameEvents.FrameSend() : null;
+            if (event != null) {
+                event.begin();
+            }
+            // The lobby thread sends through the same socket
+            synchronized (client) {
+                client.drawCanvas(serverImage);
+            }
+            if (event != null && event.shouldCommit()) {
+                event.output = "server canvas";
+                event.sequence = sequence;
+                event.commit();
+            }
+            session.getInputLatency().frameSent(sequence);
         }
+        frameBudget.endFrame();
 
 
-
-
+        if (!firstFrameDrawn) {
+            firstFrameDrawn = true;
+            logger.log(Level.INFO, "First frame after "
+                    + (System.nanoTime() - setupNanos) / 1000000 + " ms in setup, "
+                    + ManagementFactory.getRuntimeMXBean().getUptime()
+                    + " ms since start");
+        }
 
         // Count frames to determine updates in falldown game
         frameCount++;
@@ -260,22 +530,19 @@ public class FalldownApplet extends PApplet {
         }
     }
 
-    public void manageServerControls(){
-        if(client.hasMessageReceived()) {
-            APIMessage m = client.getReceivedMessage();
-            System.out.println("Server: " + m.getMessage());
-            if(m.getMessage().equals(CTL_LEFT)) {
-                falldown.movePlayerLeft();
-                logger.log(Level.INFO, "Client received message: LEFT");
-            } else if(m.getMessage().equals(CTL_RIGHT)) {
-                falldown.movePlayerRight();
-                logger.log(Level.INFO, "Client received message: RIGHT");
-            }else if(m.getMessage().equals(CTL_SPECIAL)) {
-                falldown.resetAndPurge();
-                logger.log(Level.INFO, "Client received message: SPECIAL");
-            }
+    /**
+     * Stamps moves for the input latency of the session before handling the
+     * key
+     */
+    @Override
+    public void keyPressed(KeyEvent event) {
+        char pressed = event.getKey();
+        if ((pressed == 'a' || pressed == 'd') && session != null) {
+            // The event knows when the key went down, before it was queued
+            long age = System.currentTimeMillis() - event.getMillis();
+            session.getInputLatency().inputReceived(System.nanoTime() - age * 1000000);
         }
-
+        keyPressed();
     }
 
     // #########################################################################
@@ -301,38 +568,39 @@ public class FalldownApplet extends PApplet {
     }
 
     /**
-     * Draws an array to the screen / debug grid
+     * Draws a frame to the screen / debug grid
      *
-     * @param frame The Array to display
+     * @param frame The frame to display
      */
-    private void drawToGrid(int[][] frame) {
+    private void drawToGrid(GridFrame frame) {
         int gap = 0;
-        for (int i = 0; i < frame.length; i++) {
+        for (int i = 0; i < frame.getWidth(); i++) {
             if (i % (GRID_X / COLUMNS) == 0) {
                 gap += COLUMN_GAP;
             }
-            for (int j = 0; j < frame[0].length; j++) {
-                if (frame[i][j] == Falldown.NORMAL_BLOCK) {
+            for (int j = 0; j < frame.getHeight(); j++) {
+                int block = frame.getBlock(i, j);
+                if (block == Falldown.NORMAL_BLOCK) {
                     stroke(0, 255, 0);
                     fill(0, 255, 0);
                     rect(i * 10 + 1 + gap, j * 10 + 1, 8, 8);
-                } else if (frame[i][j] == Falldown.FADING_BLOCK) {
+                } else if (block == Falldown.FADING_BLOCK) {
                     stroke(0, 255, 0, 100);
                     fill(0, 255, 0, 100);
                     rect(i * 10 + 1 + gap, j * 10 + 1, 8, 8);
-                } else if (frame[i][j] == Falldown.PLAYER_BLOCK) {
+                } else if (block == Falldown.PLAYER_BLOCK) {
                     stroke(0, 0, 200);
                     fill(0, 0, 200);
                     rect(i * 10 + 1 + gap, j * 10 + 1, 8, 8);
-                } else if (frame[i][j] == Falldown.TREASURE_BLOCK) {
+                } else if (block == Falldown.TREASURE_BLOCK) {
                     stroke(255, 255, 0);
                     fill(255, 255, 0);
                     rect(i * 10 + 1 + gap, j * 10 + 1, 8, 8);
-                } else if (frame[i][j] == Falldown.RED_BLOCK) {
+                } else if (block == Falldown.RED_BLOCK) {
                     stroke(255, 0, 0);
                     fill(255, 0, 0);
                     rect(i * 10 + 1 + gap, j * 10 + 1, 8, 8);
-                } else if(frame[i][j] == Falldown.RANDOM_BLOCK){
+                } else if(block == Falldown.RANDOM_BLOCK){
                     int r = random.nextInt(255);
                     int g = random.nextInt(255);
                     int b = random.nextInt(255);
@@ -347,35 +615,42 @@ public class FalldownApplet extends PApplet {
 
     /**
      * <p>Draws the image that will be sent to server Image</p>
-     * <p>Size is set by <code>GRID_X</code> and <code>GRID_Y</code></p>
+     * <p>Size is set by <code>GRID_X</code> and <code>GRID_Y</code>. Colours
+     * are corrected for the LEDs with <code>LED_COLORS</code>.</p>
      *
-     * @param grid The grid that will be drawn to the image
-     */
-    private void drawOutputImage(int[][] grid) {
-        int count = 0;
-        for (int i = 0; i < grid[0].length; i++) {
-            for (int j = 0; j < grid.length; j++) {
-                if (grid[j][i] == Falldown.EMPTY_BLOCK) {
-                    serverImage.pixels[count] = color(0, 0, 0);
-                } else if (grid[j][i] == Falldown.NORMAL_BLOCK) {
-                    serverImage.pixels[count] = color(0, 255, 0);
-                } else if (grid[j][i] == Falldown.FADING_BLOCK) {
-                    serverImage.pixels[count] = color(0, 150, 0);
-                } else if (grid[j][i] == Falldown.PLAYER_BLOCK) {
-                    serverImage.pixels[count] = color(0, 0, 255);
-                } else if (grid[j][i] == Falldown.TREASURE_BLOCK) {
-                    serverImage.pixels[count] = color(255, 255, 0);
-                } else if (grid[j][i] == Falldown.RED_BLOCK) {
-                    serverImage.pixels[count] = color(255, 0, 0);
-                }else if(grid[j][i] == Falldown.RANDOM_BLOCK){
-                    int r = random.nextInt(255);
-                    int g = random.nextInt(255);
-                    int b = random.nextInt(255);
-                    serverImage.pixels[count] = color(r, g, b);
-                }
-                count++;
-            }
+     * @param frame The frame that will be drawn to the image
+     */
+    private void drawOutputImage(GridFrame frame) {
+        BlockColors.toRgb(frame, serverImage.pixels, random);
+        serverColors.applyAll(serverImage.pixels, serverImage.pixels,
+                frame.getWidth() * frame.getHeight());
+        serverImage.updatePixels();
+    }
+
+    /**
+     * @return width of the window for the current grid
+     */
+    private int getWindowWidth() {
+        return GRID_X * (int) (14 * SCALE_FACTOR);
+    }
+
+    /**
+     * @return height of the window for the current grid
+     */
+    private int getWindowHeight() {
+        return GRID_Y * (int) (11 * SCALE_FACTOR);
+    }
+
+    /**
+     * Fits the window to a changed grid
+     */
+    private void resizeWindow() {
+        if (frame != null) {
+            Insets insets = frame.getInsets();
+            frame.setSize(getWindowWidth() + insets.left + insets.right,
+                    getWindowHeight() + insets.top + insets.bottom);
         }
+        setSize(getWindowWidth(), getWindowHeight());
     }
 
     // #########################################################################
@@ -390,4 +665,11 @@ public class FalldownApplet extends PApplet {
         return logger;
     }
 
+    /**
+     * @return controller of the frame time with its shedding metrics
+     */
+    public FrameBudget getFrameBudget() {
+        return frameBudget;
+    }
+
 }
@@ -0,0 +1,297 @@
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Keeps frames within their time budget by dropping optional work.</p>
+ * <p>The frame loop marks the start of every frame and of every phase in
+ * it. At the end of a frame the budget compares the smoothed frame time
+ * and the time from one frame to the next with the budget. If the budget
+ * is at risk for <code>SHED_FRAMES</code> frames in a row, the next
+ * {@link Shedding} step is taken, for now only the debug preview. Once
+ * frames stay well within the budget for <code>RESTORE_FRAMES</code>,
+ * including the cost a shed preview had, the last step is undone. Game ticks and outputs are never shed.</p>
+ * <p>Every decision is logged, counted and recorded as a flight recorder
+ * event. Has to be used from the frame loop thread only.</p>
+ */
+public class FrameBudget {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    /**
+     * Parts of a frame
+     */
+    public enum Phase {
+        /** Server session, controls and lobby */
+        SESSION,
+        /** Debug grid and preview image */
+        PREVIEW,
+        /** Game update */
+        GAME,
+        /** Server canvas and every other output */
+        OUTPUT
+    }
+
+    /**
+     * Optional work, in the order it is dropped
+     */
+    public enum Shedding {
+        /** Everything runs */
+        NONE,
+        /** The debug grid and preview image aren't drawn */
+        DEBUG_PREVIEW
+    }
+
+    /* Share of the budget a frame may take before it is at risk */
+    private static final double HIGH_WATER = 0.8;
+    /* Share of the budget a frame may take to undo a step */
+    private static final double LOW_WATER = 0.5;
+    /* A frame that starts this much later than planned is late */
+    private static final double LATE_RATIO = 1.1;
+
+    /* Frames at risk in a row before shedding */
+    private static final int SHED_FRAMES = 3;
+    /* Frames within the low water mark before restoring */
+    private static final int RESTORE_FRAMES = FalldownApplet.FPS * 2;
+    /* Frames after a decision before the next one, lets the averages follow */
+    private static final int SETTLE_FRAMES = FalldownApplet.FPS / 2;
+
+    /* Weight of the latest frame in the smoothed times */
+    private static final double SMOOTHING = 0.2;
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Shedding[] STEPS = Shedding.values();
+
+    private final long budgetNanos;
+
+    /* Frame in progress */
+    private long frameStart;
+    private long phaseStart;
+    private int phase = -1;
+    private final long[] phaseNanos = new long[PHASES.length];
+
+    /* Smoothed times */
+    private double frameAverage;
+    private double intervalAverage;
+    private final double[] phaseAverage = new double[PHASES.length];
+
+    /* Preview time before it was shed, the cost of bringing it back */
+    private double shedPreviewCost;
+
+    private volatile Shedding level = Shedding.NONE;
+    private int riskyFrames;
+    private int calmFrames;
+    private int settleFrames;
+
+    /* Metrics */
+    private final LatencyHistogram frameTimes = new LatencyHistogram();
+    private final LatencyHistogram[] phaseTimes = new LatencyHistogram[PHASES.length];
+    private final long[] shedCounts = new long[STEPS.length];
+    private final long[] restoreCounts = new long[STEPS.length];
+    private final long[] framesAt = new long[STEPS.length];
+
+    /**
+     * @param fps Frame rate the loop runs at
+     */
+    public FrameBudget(int fps) {
+        this.budgetNanos = 1000000000L / fps;
+        for (int i = 0; i < phaseTimes.length; i++) {
+            phaseTimes[i] = new LatencyHistogram();
+        }
+    }
+
+    // #########################################################################
+    // FRAME LOOP
+    // #########################################################################
+
+    /**
+     * Marks the start of a frame
+     */
+    public void beginFrame() {
+        long now = System.nanoTime();
+        if (frameStart != 0) {
+            intervalAverage = smooth(intervalAverage, now - frameStart);
+        }
+        frameStart = now;
+        phase = -1;
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = 0;
+        }
+    }
+
+    /**
+     * Ends the running phase and starts another one. A phase may occur
+     * several times in a frame.
+     */
+    public void beginPhase(Phase next) {
+        long now = System.nanoTime();
+        if (phase >= 0) {
+            phaseNanos[phase] += now - phaseStart;
+        }
+        phase = next.ordinal();
+        phaseStart = now;
+    }
+
+    /**
+     * Ends the frame and decides whether optional work has to be shed or
+     * may come back
+     */
+    public void endFrame() {
+        long now = System.nanoTime();
+        if (phase >= 0) {
+            phaseNanos[phase] += now - phaseStart;
+            phase = -1;
+        }
+        long frameNanos = now - frameStart;
+        frameTimes.record(frameNanos);
+        frameAverage = smooth(frameAverage, frameNanos);
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseTimes[i].record(phaseNanos[i]);
+            phaseAverage[i] = smooth(phaseAverage[i], phaseNanos[i]);
+        }
+        framesAt[level.ordinal()]++;
+        decide();
+    }
+
+    private void decide() {
+        if (settleFrames > 0) {
+            settleFrames--;
+            return;
+        }
+        boolean late = intervalAverage > budgetNanos * LATE_RATIO;
+        if (late || frameAverage > budgetNanos * HIGH_WATER) {
+            calmFrames = 0;
+            if (++riskyFrames >= SHED_FRAMES && level.ordinal() < STEPS.length - 1) {
+                riskyFrames = 0;
+                shed();
+            }
+            return;
+        }
+        riskyFrames = 0;
+        // Bringing the preview back costs what it took before
+        double restoreCost = level == Shedding.DEBUG_PREVIEW ? shedPreviewCost : 0;
+        if (level != Shedding.NONE
+                && frameAverage + restoreCost < budgetNanos * LOW_WATER) {
+            if (++calmFrames >= RESTORE_FRAMES) {
+                calmFrames = 0;
+                restore();
+            }
+        } else {
+            calmFrames = 0;
+        }
+    }
+
+    private void shed() {
+        Shedding next = STEPS[level.ordinal() + 1];
+        if (next == Shedding.DEBUG_PREVIEW) {
+            shedPreviewCost = phaseAverage[Phase.PREVIEW.ordinal()];
+        }
+        shedCounts[next.ordinal()]++;
+        level = next;
+        settleFrames = SETTLE_FRAMES;
+        record(next, true);
+    }
+
+    private void restore() {
+        Shedding restored = level;
+        restoreCounts[restored.ordinal()]++;
+        level = STEPS[restored.ordinal() - 1];
+        settleFrames = SETTLE_FRAMES;
+        record(restored, false);
+    }
+
+    private void record(Shedding step, boolean shed) {
+        logger.log(Level.INFO, (shed ? "Shedding " : "Restoring ") + step
+                + String.format(", frame %.1f ms, interval %.1f ms of %.1f ms",
+                frameAverage / 1e6, intervalAverage / 1e6, budgetNanos / 1e6));
+        if (GameEvents.isRecording()) {
+            GameEvents.LoadShed event = new GameEvents.LoadShed();
+            if (event.shouldCommit()) {
+                event.step = step.name();
+                event.shed = shed;
+                event.frameMillis = frameAverage / 1e6;
+                event.intervalMillis = intervalAverage / 1e6;
+                event.commit();
+            }
+        }
+    }
+
+    private static double smooth(double average, long nanos) {
+        return average == 0 ? nanos : average + (nanos - average) * SMOOTHING;
+    }
+
+    // #########################################################################
+    // DECISIONS
+    // #########################################################################
+
+    /**
+     * @return true if the given work is dropped right now
+     */
+    public boolean isShed(Shedding step) {
+        return step != Shedding.NONE && level.ordinal() >= step.ordinal();
+    }
+
+    /**
+     * @return last step taken, <code>NONE</code> if everything runs
+     */
+    public Shedding getLevel() {
+        return level;
+    }
+
+    // #########################################################################
+    // METRICS
+    // #########################################################################
+
+    /**
+     * @return time from the start to the end of every frame
+     */
+    public LatencyHistogram getFrameTimes() {
+        return frameTimes;
+    }
+
+    /**
+     * @return time of a phase in every frame, 0 if it didn't run
+     */
+    public LatencyHistogram getPhaseTimes(Phase phase) {
+        return phaseTimes[phase.ordinal()];
+    }
+
+    /**
+     * @return how often a step was taken
+     */
+    public long getShedCount(Shedding step) {
+        return shedCounts[step.ordinal()];
+    }
+
+    /**
+     * @return how often a step was undone
+     */
+    public long getRestoreCount(Shedding step) {
+        return restoreCounts[step.ordinal()];
+    }
+
+    /**
+     * @return frames that ran with a step as the last one taken
+     */
+    public long getFramesAt(Shedding step) {
+        return framesAt[step.ordinal()];
+    }
+
+    public long getBudgetNanos() {
+        return budgetNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("level ").append(level);
+        for (Shedding step : STEPS) {
+            text.append(", ").append(step).append(' ').append(framesAt[step.ordinal()])
+                    .append(" frames");
+            if (step != Shedding.NONE) {
+                text.append(" shed ").append(shedCounts[step.ordinal()])
+                        .append(" restored ").append(restoreCounts[step.ordinal()]);
+            }
+        }
+        return text.toString();
+    }
+}
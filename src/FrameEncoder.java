@@ -0,0 +1,32 @@
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Turns frames into bytes for an output that speaks a binary
+ * format.</p>
+ * <p>Encoders may keep state between frames (like a palette that only has
+ * to be sent once), so a new receiver requires a <code>reset()</code>.</p>
+ */
+public interface FrameEncoder {
+
+    /**
+     * Writes everything the receiver needs to show the frame
+     *
+     * @param frame  Frame to encode
+     * @param target Buffer with at least <code>getMaxEncodedSize()</code>
+     *               bytes remaining
+     */
+    void encode(GridFrame frame, ByteBuffer target);
+
+    /**
+     * @param width  Width of the frames
+     * @param height Height of the frames
+     * @return upper bound of the bytes written by one <code>encode()</code>
+     */
+    int getMaxEncodedSize(int width, int height);
+
+    /**
+     * Forgets everything that has been sent, the next frame is encoded as
+     * if it was the first one
+     */
+    void reset();
+}
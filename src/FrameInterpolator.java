@@ -0,0 +1,214 @@
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Feeds a {@link PixelSink} at a higher rate than the game ticks and
+ * crossfades every cell from its previous to its new colour.</p>
+ * <p>The grid only moves a few times per second, so on the facade blocks
+ * jump from one cell to the next. This output renders on its own thread at
+ * a fixed rate and fades changed cells over the time between two changes
+ * of the picture, measured while running. Only cells that changed are
+ * touched; a picture without changes costs nothing but sending it.</p>
+ * <p>The picture lags behind the game by up to one tick, the price of
+ * knowing where a fade has to end.</p>
+ */
+public class FrameInterpolator implements FrameSink, Runnable {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    /* Bounds of the fade time */
+    private static final long MIN_FADE_NANOS = 20000000L;
+    private static final long MAX_FADE_NANOS = 500000000L;
+
+    private final PixelSink sink;
+    private final int pixelCount;
+    private final long frameNanos;
+    private final Random random = new Random();
+    private final Thread thread;
+
+    /* Colours of the latest tick, guarded by this */
+    private final int[] target;
+    /* Colours at the start of the current fade, guarded by this */
+    private final int[] from;
+    /* Colours on the output, only changed by the render thread */
+    private final int[] shown;
+
+    /* Cells that are fading, guarded by this */
+    private final int[] changed;
+    private final boolean[] fading;
+    private int changedCount = 0;
+
+    /* Timing of the current fade, guarded by this */
+    private long fadeStart;
+    private long fadeNanos = MAX_FADE_NANOS;
+    private long lastChange = 0;
+    private long publishNanos;
+
+    private volatile boolean running = true;
+    private long renderedFrames = 0;
+    private long interpolatedCells = 0;
+
+    /**
+     * @param sink   Output to feed
+     * @param width  Width of the frames
+     * @param height Height of the frames
+     * @param hz     Output frames per second
+     */
+    public FrameInterpolator(PixelSink sink, int width, int height, int hz) {
+        this.sink = sink;
+        this.pixelCount = width * height;
+        this.frameNanos = 1000000000L / hz;
+        this.target = new int[pixelCount];
+        this.from = new int[pixelCount];
+        this.shown = new int[pixelCount];
+        this.changed = new int[pixelCount];
+        this.fading = new boolean[pixelCount];
+
+        thread = new Thread(this, "frame-interpolator");
+        thread.setDaemon(true);
+        thread.start();
+        logger.log(Level.INFO, "Interpolating output at " + hz + " Hz");
+    }
+
+    // #########################################################################
+    // GAME SIDE
+    // #########################################################################
+
+    /**
+     * Takes a new tick. Cells with a new colour start fading from the
+     * colour they show right now.
+     */
+    @Override
+    public synchronized void sendFrame(GridFrame frame) {
+        boolean anyChange = false;
+        for (int i = 0; i < pixelCount; i++) {
+            int rgb = BlockColors.toRgb(frame.getBlock(i), random) & 0xFFFFFF;
+            if (rgb != target[i]) {
+                target[i] = rgb;
+                if (!fading[i]) {
+                    fading[i] = true;
+                    changed[changedCount++] = i;
+                }
+                anyChange = true;
+            }
+        }
+        if (!anyChange) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (lastChange != 0) {
+            // Fade over the time the last picture stood, smoothed a little
+            long interval = Math.max(MIN_FADE_NANOS, Math.min(MAX_FADE_NANOS, now - lastChange));
+            fadeNanos = (fadeNanos * 3 + interval) / 4;
+        }
+        lastChange = now;
+        fadeStart = now;
+        publishNanos = frame.getPublishNanos();
+
+        // Running fades continue from where they are
+        for (int k = 0; k < changedCount; k++) {
+            int i = changed[k];
+            from[i] = shown[i];
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        sink.close();
+    }
+
+    // #########################################################################
+    // RENDER THREAD
+    // #########################################################################
+
+    @Override
+    public void run() {
+        long nextFrame = System.nanoTime();
+        while (running) {
+            long tickNanos = render(System.nanoTime());
+            // Nothing to show before the first tick
+            if (tickNanos != 0) {
+                sink.sendPixels(shown, tickNanos);
+                renderedFrames++;
+            }
+
+            nextFrame += frameNanos;
+            long wait = nextFrame - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+            } else {
+                nextFrame = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Moves every fading cell to its colour at the given time
+     *
+     * @return publish time of the tick the picture is based on
+     */
+    private synchronized long render(long now) {
+        if (changedCount == 0) {
+            return publishNanos;
+        }
+        // Progress of the fade in 1/256
+        int progress = (int) Math.min(256, (now - fadeStart) * 256 / fadeNanos);
+        for (int k = 0; k < changedCount; k++) {
+            int i = changed[k];
+            shown[i] = blend(from[i], target[i], progress);
+        }
+        interpolatedCells += changedCount;
+        if (progress == 256) {
+            for (int k = 0; k < changedCount; k++) {
+                fading[changed[k]] = false;
+            }
+            changedCount = 0;
+        }
+        return publishNanos;
+    }
+
+    /**
+     * @param from     Colour at progress 0
+     * @param to       Colour at progress 256
+     * @param progress Position between both colours
+     * @return mixed colour
+     */
+    private static int blend(int from, int to, int progress) {
+        int r = (from >> 16) & 0xFF;
+        int g = (from >> 8) & 0xFF;
+        int b = from & 0xFF;
+        r += (((to >> 16) & 0xFF) - r) * progress >> 8;
+        g += (((to >> 8) & 0xFF) - g) * progress >> 8;
+        b += ((to & 0xFF) - b) * progress >> 8;
+        return r << 16 | g << 8 | b;
+    }
+
+    /**
+     * @return pictures sent to the sink
+     */
+    public long getRenderedFrames() {
+        return renderedFrames;
+    }
+
+    /**
+     * @return cell updates computed over all pictures
+     */
+    public synchronized long getInterpolatedCells() {
+        return interpolatedCells;
+    }
+
+    /**
+     * @return current fade time in milliseconds
+     */
+    public synchronized double getFadeMillis() {
+        return fadeNanos / 1e6;
+    }
+}
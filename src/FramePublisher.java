@@ -0,0 +1,124 @@
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>Publishes completed grids as immutable {@link GridFrame} snapshots.</p>
+ * <p>There is a single writer (the game update) and any number of readers.
+ * The latest frame is exchanged through one atomic swap, so readers never
+ * see a half written grid and never block the writer. Buffers are recycled
+ * through a small lock-free pool once the last reader released them.</p>
+ */
+public class FramePublisher {
+
+    /* Number of recycled buffers kept around */
+    private static final int POOL_SIZE = 4;
+
+    private final int width;
+    private final int height;
+
+    private final AtomicReference<GridFrame> latest = new AtomicReference<GridFrame>();
+    private final AtomicReferenceArray<GridFrame> pool =
+            new AtomicReferenceArray<GridFrame>(POOL_SIZE);
+
+    private long sequence = 0;
+
+    /**
+     * @param width  Width of the published frames
+     * @param height Height of the published frames
+     */
+    public FramePublisher(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Takes a snapshot of the grid and makes it the latest frame. Must only
+     * be called from one thread.
+     *
+     * @param grid Grid indexed as <code>grid[x][y]</code>
+     */
+    public void publish(int[][] grid) {
+        GridFrame frame = obtain();
+        frame.fill(grid, ++sequence);
+        frame.open();
+        GridFrame previous = latest.getAndSet(frame);
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Cuts a region of the size of this publisher out of another frame. The
+     * result keeps the sequence number of the source and is not published;
+     * the caller holds the only reference and has to release it.
+     *
+     * @param source Frame to copy from
+     * @param fromX  Left border of the region within the source
+     * @param fromY  Upper border of the region within the source
+     * @return copy of the region
+     */
+    public GridFrame crop(GridFrame source, int fromX, int fromY) {
+        GridFrame frame = obtain();
+        frame.fillRegion(source, fromX, fromY);
+        frame.open();
+        return frame;
+    }
+
+    /**
+     * Returns the latest frame with a reference taken for the caller. The
+     * caller has to <code>release()</code> it when done.
+     *
+     * @return latest frame or null if nothing has been published yet
+     */
+    public GridFrame acquire() {
+        while (true) {
+            GridFrame frame = latest.get();
+            if (frame == null || frame.retain()) {
+                return frame;
+            }
+            // The frame got recycled in between, try the newer one
+        }
+    }
+
+    /**
+     * @return sequence number of the latest published frame
+     */
+    public long getSequence() {
+        GridFrame frame = latest.get();
+        return frame == null ? 0 : frame.getSequence();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Takes a free buffer from the pool or creates a new one if every buffer
+     * is still in use
+     */
+    GridFrame obtain() {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            GridFrame frame = pool.getAndSet(i, null);
+            if (frame != null) {
+                return frame;
+            }
+        }
+        return new GridFrame(this, width, height);
+    }
+
+    /**
+     * Puts a buffer back into the pool. Surplus buffers are left to the
+     * garbage collector.
+     */
+    void recycle(GridFrame frame) {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (pool.compareAndSet(i, null, frame)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * <p>Receiver of finished frames.</p>
+ * <p>Implementations get every frame the game publishes and are responsible
+ * for bringing it to its destination (server, LED controller, file, ...).
+ * The frame is only valid during the call; a sink that needs it longer has
+ * to copy the blocks or take its own reference.</p>
+ */
+public interface FrameSink {
+
+    /**
+     * Sends a frame to the destination of this sink
+     *
+     * @param frame Frame to send
+     */
+    void sendFrame(GridFrame frame);
+
+    /**
+     * Frees every resource held by the sink
+     */
+    void close();
+}
@@ -0,0 +1,97 @@
+/**
+ * <p>Something that happened in a game.</p>
+ * <p>Events are handed out by a {@link GameEventBus}, which owns and
+ * reuses them. An event is only valid during the call to the subscriber; a
+ * subscriber that needs it longer has to copy the fields.</p>
+ */
+public final class GameEvent {
+
+    /**
+     * Kinds of events
+     */
+    public enum Type {
+        /** The game was reset and a new game begins at level 0 */
+        GAME_STARTED,
+        /** The player reached the treasure, the level is over */
+        TREASURE_REACHED,
+        /** The next level started */
+        LEVEL_ADVANCED,
+        /** The last level was completed, the level equals the level count */
+        GAME_WON,
+        /** The player died, see the death cause */
+        PLAYER_DIED
+    }
+
+    private Type type;
+
+    /* Running number of the event, set by the bus */
+    private long sequence;
+
+    /* System.nanoTime() when the event was published */
+    private long publishNanos;
+
+    private int level;
+    private Falldown.DeathCause deathCause = Falldown.DeathCause.NONE;
+    private int playerX;
+    private int playerY;
+
+    /**
+     * Fills the event before it is dispatched. Called by the bus only.
+     */
+    void fill(Type type, long sequence, int level, Falldown.DeathCause deathCause,
+              int playerX, int playerY) {
+        this.type = type;
+        this.sequence = sequence;
+        this.publishNanos = System.nanoTime();
+        this.level = level;
+        this.deathCause = deathCause;
+        this.playerX = playerX;
+        this.playerY = playerY;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return <code>System.nanoTime()</code> when the event was published
+     */
+    public long getPublishNanos() {
+        return publishNanos;
+    }
+
+    /**
+     * @return level the event happened in, or the level reached for
+     * <code>LEVEL_ADVANCED</code> and <code>GAME_WON</code>
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return what killed the player, <code>NONE</code> unless the event is
+     * <code>PLAYER_DIED</code>
+     */
+    public Falldown.DeathCause getDeathCause() {
+        return deathCause;
+    }
+
+    public int getPlayerX() {
+        return playerX;
+    }
+
+    public int getPlayerY() {
+        return playerY;
+    }
+
+    @Override
+    public String toString() {
+        return type + " #" + sequence + " level " + level
+                + (type == Type.PLAYER_DIED ? " " + deathCause : "")
+                + " at " + playerX + "/" + playerY;
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Hands the events of a game to everyone interested.</p>
+ * <p>There is a single publisher, the thread updating the game. Every
+ * event is filled into one of <code>RING_SIZE</code> preallocated
+ * {@link GameEvent} objects and dispatched right away to the subscribers of
+ * its type, in the order they subscribed. The ring lets a subscriber cause
+ * another event without overwriting the one it is handling.</p>
+ * <p>Subscribers may come and go from any thread without locks. The list
+ * is replaced as a whole by a compare and set, a dispatch that is running
+ * meanwhile finishes with the list it started with. Publishing allocates
+ * nothing.</p>
+ */
+public class GameEventBus {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    /* Events that may be dispatched inside each other */
+    private static final int RING_SIZE = 4;
+
+    private static final Subscription[] NONE = new Subscription[0];
+
+    /**
+     * Listener and the types it wants, as a bit per ordinal
+     */
+    private static final class Subscription {
+        final GameEventListener listener;
+        final int types;
+
+        Subscription(GameEventListener listener, int types) {
+            this.listener = listener;
+            this.types = types;
+        }
+    }
+
+    private final GameEvent[] ring = new GameEvent[RING_SIZE];
+    private final AtomicReference<Subscription[]> subscriptions =
+            new AtomicReference<Subscription[]>(NONE);
+
+    /* Publisher only */
+    private long sequence = 0;
+    private long failures = 0;
+
+    public GameEventBus() {
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new GameEvent();
+        }
+    }
+
+    // #########################################################################
+    // SUBSCRIBERS
+    // #########################################################################
+
+    /**
+     * Adds a subscriber. May be called from any thread.
+     *
+     * @param listener Subscriber
+     * @param types    Types it gets, every type if none is given
+     */
+    public void subscribe(GameEventListener listener, GameEvent.Type... types) {
+        int mask = 0;
+        for (GameEvent.Type type : types) {
+            mask |= 1 << type.ordinal();
+        }
+        Subscription added = new Subscription(listener, types.length == 0 ? -1 : mask);
+        while (true) {
+            Subscription[] current = subscriptions.get();
+            Subscription[] next = new Subscription[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = added;
+            if (subscriptions.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes every subscription of a listener. May be called from any
+     * thread; the listener may still get an event being dispatched.
+     */
+    public void unsubscribe(GameEventListener listener) {
+        while (true) {
+            Subscription[] current = subscriptions.get();
+            int kept = 0;
+            for (Subscription subscription : current) {
+                if (subscription.listener != listener) {
+                    kept++;
+                }
+            }
+            if (kept == current.length) {
+                return;
+            }
+            Subscription[] next = kept == 0 ? NONE : new Subscription[kept];
+            int i = 0;
+            for (Subscription subscription : current) {
+                if (subscription.listener != listener) {
+                    next[i++] = subscription;
+                }
+            }
+            if (subscriptions.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    // #########################################################################
+    // PUBLISHER
+    // #########################################################################
+
+    /**
+     * Dispatches an event to its subscribers. Must only be called from one
+     * thread. A subscriber that throws is logged and skipped.
+     *
+     * @param type       Type of the event
+     * @param level      Level the event happened in
+     * @param deathCause What killed the player, <code>NONE</code> if alive
+     * @param playerX    Player position
+     * @param playerY    Player position
+     */
+    public void publish(GameEvent.Type type, int level, Falldown.DeathCause deathCause,
+                        int playerX, int playerY) {
+        Subscription[] current = subscriptions.get();
+        if (current.length == 0) {
+            sequence++;
+            return;
+        }
+        GameEvent event = ring[(int) (sequence % RING_SIZE)];
+        event.fill(type, ++sequence, level, deathCause, playerX, playerY);
+        int bit = 1 << type.ordinal();
+        for (int i = 0; i < current.length; i++) {
+            if ((current[i].types & bit) == 0) {
+                continue;
+            }
+            try {
+                current[i].listener.onGameEvent(event);
+            } catch (RuntimeException e) {
+                failures++;
+                logger.log(Level.WARNING, "Subscriber failed on " + event + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * @return events published so far
+     */
+    public long getPublishedCount() {
+        return sequence;
+    }
+
+    /**
+     * @return subscriber calls that threw
+     */
+    public long getFailureCount() {
+        return failures;
+    }
+}
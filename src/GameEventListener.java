@@ -0,0 +1,15 @@
+/**
+ * <p>Subscriber of a {@link GameEventBus}.</p>
+ * <p>Called in the thread that updates the game, in the middle of the
+ * update. Implementations must return quickly and must neither block nor
+ * change the game; work that takes longer is handed to another thread.</p>
+ */
+public interface GameEventListener {
+
+    /**
+     * Reacts to an event
+     *
+     * @param event Event, only valid during the call
+     */
+    void onGameEvent(GameEvent event);
+}
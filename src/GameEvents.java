@@ -0,0 +1,225 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>Flight recorder events of the game.</p>
+ * <p>Game behaviour shows up on the same timeline as GC, JIT and thread
+ * events, so a recording of a show explains every hitch. Record with
+ * <code>-XX:StartFlightRecording=filename=show.jfr</code> and open the
+ * file in JDK Mission Control or print it with
+ * <code>jfr print --categories Falldown show.jfr</code>.</p>
+ * <p>Events are only created once the flight recorder is running, so the
+ * frame loop stays free of allocations otherwise. Their fields are only
+ * filled if <code>shouldCommit()</code> says they will be written.</p>
+ */
+public final class GameEvents {
+
+    private GameEvents() {
+    }
+
+    /**
+     * @return true once the flight recorder runs in this JVM. Events are
+     * only worth creating then.
+     */
+    public static boolean isRecording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    @Name("falldown.Tick")
+    @Label("Game Tick")
+    @Category("Falldown")
+    @Description("One call of Falldown.update(), including the publish of the frame")
+    @StackTrace(false)
+    public static class Tick extends Event {
+        @Label("Frame")
+        public int frame;
+        @Label("Level")
+        public int level;
+        @Label("Grid Moved")
+        public boolean gridMoved;
+        @Label("Active")
+        public boolean active;
+    }
+
+    @Name("falldown.GridUpdate")
+    @Label("Grid Update")
+    @Category("Falldown")
+    @Description("Moves every column of the grid by one block")
+    @StackTrace(false)
+    public static class GridUpdate extends Event {
+        @Label("Level")
+        public int level;
+        @Label("Columns")
+        public int columns;
+        @Label("Treasure Steps")
+        public int treasureSteps;
+    }
+
+    @Name("falldown.LevelAdvance")
+    @Label("Level Advance")
+    @Category("Falldown")
+    @StackTrace(false)
+    public static class LevelAdvance extends Event {
+        @Label("Level")
+        @Description("Level reached, equals the level count once the game is won")
+        public int level;
+        @Label("Game Won")
+        public boolean gameWon;
+    }
+
+    @Name("falldown.PlayerDeath")
+    @Label("Player Death")
+    @Category("Falldown")
+    @StackTrace(false)
+    public static class PlayerDeath extends Event {
+        @Label("Cause")
+        public String cause;
+        @Label("Level")
+        public int level;
+        @Label("Player X")
+        public int playerX;
+        @Label("Player Y")
+        public int playerY;
+    }
+
+    @Name("falldown.TreasureRespawn")
+    @Label("Treasure Respawn")
+    @Category("Falldown")
+    @Description("Search for a free random treasure position")
+    @StackTrace(false)
+    public static class TreasureRespawn extends Event {
+        @Label("Reason")
+        public String reason;
+        @Label("Attempts")
+        @Description("Random positions tried until a free one was found")
+        public int attempts;
+        @Label("Treasure X")
+        public int treasureX;
+        @Label("Treasure Y")
+        public int treasureY;
+    }
+
+    @Name("falldown.Animation")
+    @Label("Animation")
+    @Category("Falldown")
+    @Description("An animation from its start until it finished or was cancelled")
+    @StackTrace(false)
+    public static class Animation extends Event {
+        @Label("Name")
+        public String name;
+        @Label("Cancelled")
+        public boolean cancelled;
+    }
+
+    @Name("falldown.FrameSend")
+    @Label("Frame Send")
+    @Category("Falldown")
+    @Description("Hand over of a frame to an output")
+    @StackTrace(false)
+    public static class FrameSend extends Event {
+        @Label("Output")
+        public String output;
+        @Label("Sequence")
+        public long sequence;
+    }
+
+    @Name("falldown.LoadShed")
+    @Label("Load Shed")
+    @Category("Falldown")
+    @Description("A step of optional work dropped or restored by the frame budget")
+    @StackTrace(false)
+    public static class LoadShed extends Event {
+        @Label("Step")
+        public String step;
+        @Label("Shed")
+        @Description("True if the step was taken, false if it was undone")
+        public boolean shed;
+        @Label("Frame Time")
+        @Description("Smoothed time of a frame in milliseconds")
+        public double frameMillis;
+        @Label("Frame Interval")
+        @Description("Smoothed time from one frame to the next in milliseconds")
+        public double intervalMillis;
+    }
+
+    // #########################################################################
+    // RECORDING
+    // #########################################################################
+
+    /**
+     * Hands a frame to an output and records how long it took
+     *
+     * @param sink  Output to send to
+     * @param frame Frame to send
+     */
+    public static void sendFrame(FrameSink sink, GridFrame frame) {
+        if (!isRecording()) {
+            sink.sendFrame(frame);
+            return;
+        }
+        FrameSend event = new FrameSend();
+        event.begin();
+        sink.sendFrame(frame);
+        event.end();
+        if (event.shouldCommit()) {
+            event.output = sink.getClass().getSimpleName();
+            event.sequence = frame.getSequence();
+            event.commit();
+        }
+    }
+
+    /**
+     * Records the level advances, wins and deaths a game publishes
+     */
+    static final GameEventListener RECORDER = new GameEventListener() {
+
+        @Override
+        public void onGameEvent(GameEvent event) {
+            switch (event.getType()) {
+                case LEVEL_ADVANCED:
+                    levelAdvance(event.getLevel(), false);
+                    break;
+                case GAME_WON:
+                    levelAdvance(event.getLevel(), true);
+                    break;
+                case PLAYER_DIED:
+                    playerDeath(event.getDeathCause(), event.getLevel(),
+                            event.getPlayerX(), event.getPlayerY());
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    private static void levelAdvance(int level, boolean gameWon) {
+        if (!isRecording()) {
+            return;
+        }
+        LevelAdvance event = new LevelAdvance();
+        if (event.shouldCommit()) {
+            event.level = level;
+            event.gameWon = gameWon;
+            event.commit();
+        }
+    }
+
+    private static void playerDeath(Falldown.DeathCause cause, int level, int playerX, int playerY) {
+        if (!isRecording()) {
+            return;
+        }
+        PlayerDeath event = new PlayerDeath();
+        if (event.shouldCommit()) {
+            event.cause = cause.name();
+            event.level = level;
+            event.playerX = playerX;
+            event.playerY = playerY;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Immutable snapshot of a completed level grid.</p>
+ * <p>Frames are handed out by a {@link FramePublisher}. A reader that
+ * obtained a frame through <code>FramePublisher.acquire()</code> owns a
+ * reference and has to call <code>release()</code> once it is done, so the
+ * buffer can be recycled for a later frame.</p>
+ * <p>Blocks are stored row by row, which is the same order the pixels of the
+ * output image are filled.</p>
+ */
+public final class GridFrame {
+
+    private final int width;
+    private final int height;
+    private final int[] blocks;
+
+    /* Running number of the frame, set by the publisher */
+    private long sequence;
+
+    /* System.nanoTime() when the frame was taken */
+    private long publishNanos;
+
+    /* Reference count. Zero means the buffer is pooled or being written */
+    private final AtomicInteger references = new AtomicInteger(0);
+
+    private final FramePublisher owner;
+
+    GridFrame(FramePublisher owner, int width, int height) {
+        this.owner = owner;
+        this.width = width;
+        this.height = height;
+        this.blocks = new int[width * height];
+    }
+
+    // #########################################################################
+    // PUBLISHER SIDE
+    // #########################################################################
+
+    /**
+     * Copies a column major level grid into this buffer. Only called by the
+     * publisher while nobody else holds a reference.
+     *
+     * @param grid     Grid indexed as <code>grid[x][y]</code>
+     * @param sequence Sequence number of the new frame
+     */
+    void fill(int[][] grid, long sequence) {
+        this.sequence = sequence;
+        this.publishNanos = System.nanoTime();
+        int index = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                blocks[index++] = grid[x][y];
+            }
+        }
+    }
+
+    /**
+     * Copies a region of another frame into this buffer. Used to cut frames
+     * into shards while keeping the sequence number.
+     *
+     * @param source Frame to copy from
+     * @param fromX  Left border of the region within the source
+     * @param fromY  Upper border of the region within the source
+     */
+    void fillRegion(GridFrame source, int fromX, int fromY) {
+        this.sequence = source.sequence;
+        this.publishNanos = source.publishNanos;
+        int index = 0;
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(source.blocks, (y + fromY) * source.width + fromX,
+                    blocks, index, width);
+            index += width;
+        }
+    }
+
+    /**
+     * Hands the frame over to readers with a single reference held by the
+     * publisher
+     */
+    void open() {
+        references.set(1);
+    }
+
+    /**
+     * Tries to take another reference. Fails if the frame has already been
+     * returned to the pool.
+     *
+     * @return true if a reference was taken
+     */
+    boolean retain() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // #########################################################################
+    // READER SIDE
+    // #########################################################################
+
+    /**
+     * Gives back a reference. The last reference returns the buffer to the
+     * pool of the publisher.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            owner.recycle(this);
+        }
+    }
+
+    /**
+     * @param x Column of the block
+     * @param y Row of the block
+     * @return block identifier as defined in <code>Falldown</code>
+     */
+    public int getBlock(int x, int y) {
+        return blocks[y * width + x];
+    }
+
+    /**
+     * @param index Row major index of the block
+     * @return block identifier as defined in <code>Falldown</code>
+     */
+    public int getBlock(int index) {
+        return blocks[index];
+    }
+
+    /**
+     * @return the blocks in row major order for bulk conversions, must not
+     * be changed
+     */
+    int[] getBlockArray() {
+        return blocks;
+    }
+
+    /**
+     * Copies all blocks in row major order into the given array
+     *
+     * @param target Array of at least <code>width * height</code> entries
+     */
+    public void copyBlocks(int[] target) {
+        System.arraycopy(blocks, 0, target, 0, blocks.length);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return running number of this frame. Increases with every publish.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return <code>System.nanoTime()</code> at the moment the game tick
+     * that produced this frame was published
+     */
+    public long getPublishNanos() {
+        return publishNanos;
+    }
+}
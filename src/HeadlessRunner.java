@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Runs a game without the processing window.</p>
+ * <p>Does what the applet does every frame, minus the preview: handles the
+ * server session, updates the game and hands the frame to every sink. The
+ * loop keeps a fixed frame rate and measures how long every frame took.
+ * Without a preview the {@link FrameBudget} has nothing to shed and only
+ * measures.</p>
+ */
+public class HeadlessRunner implements Runnable {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    private final Falldown falldown;
+    private final ServerSession session;
+    private final int fps;
+    private final ArrayList<FrameSink> frameSinks = new ArrayList<FrameSink>();
+
+    private final LatencyHistogram frameTimes = new LatencyHistogram();
+    private final FrameBudget frameBudget;
+
+    private volatile boolean running = false;
+    private volatile int frameCount = 0;
+
+    /**
+     * @param falldown Game to run
+     * @param session  Server session or null to run offline
+     * @param fps      Frames per second, 0 runs as fast as possible
+     */
+    public HeadlessRunner(Falldown falldown, ServerSession session, int fps) {
+        this.falldown = falldown;
+        this.session = session;
+        this.fps = fps;
+        this.frameBudget = new FrameBudget(fps > 0 ? fps : FalldownApplet.FPS);
+    }
+
+    /**
+     * Adds an output. Must be called before the runner is started.
+     */
+    public void addFrameSink(FrameSink sink) {
+        frameSinks.add(sink);
+    }
+
+    @Override
+    public void run() {
+        running = true;
+        long frameNanos = fps > 0 ? 1000000000L / fps : 0;
+        long nextFrame = System.nanoTime();
+
+        while (running) {
+            long start = System.nanoTime();
+            runFrame();
+            frameTimes.record(System.nanoTime() - start);
+
+            if (frameNanos > 0) {
+                nextFrame += frameNanos;
+                long wait = nextFrame - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                } else {
+                    // Running late, don't try to catch up
+                    nextFrame = System.nanoTime();
+                }
+            }
+        }
+        logger.log(Level.FINE, "Headless runner stopped after " + frameCount + " frames");
+    }
+
+    /**
+     * Runs exactly one frame in the calling thread
+     */
+    public void runFrame() {
+        frameBudget.beginFrame();
+        frameBudget.beginPhase(FrameBudget.Phase.SESSION);
+        if (session != null) {
+            session.update(falldown);
+        }
+        frameBudget.beginPhase(FrameBudget.Phase.GAME);
+        falldown.update(frameCount);
+
+        frameBudget.beginPhase(FrameBudget.Phase.OUTPUT);
+        GridFrame frame = falldown.acquireFrame();
+        long sequence = frame.getSequence();
+        if (session != null) {
+            session.getInputLatency().tickApplied(sequence);
+        }
+        for (int i = 0; i < frameSinks.size(); i++) {
+            GameEvents.sendFrame(frameSinks.get(i), frame);
+        }
+        frame.release();
+        // Every sink has the frame, the canvas among them
+        if (session != null) {
+            session.getInputLatency().frameSent(sequence);
+        }
+        frameBudget.endFrame();
+        frameCount++;
+    }
+
+    /**
+     * Stops the loop after the current frame
+     */
+    public void stop() {
+        running = false;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return time spent in every frame, excluding the wait for the next one
+     */
+    public LatencyHistogram getFrameTimes() {
+        return frameTimes;
+    }
+
+    /**
+     * @return controller of the frame time with its shedding metrics
+     */
+    public FrameBudget getFrameBudget() {
+        return frameBudget;
+    }
+
+    public Falldown getFalldown() {
+        return falldown;
+    }
+}
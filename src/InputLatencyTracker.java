@@ -0,0 +1,112 @@
+/**
+ * <p>Measures the time from a control to the first frame showing it.</p>
+ * <p>An input is stamped when it is received, tagged with the sequence of
+ * the frame published by the game tick that applied it and completed once
+ * a frame with that sequence or a later one was handed to the output. The
+ * time from receipt to the tick is the queue latency, the time from
+ * receipt to the output the latency players feel.</p>
+ * <p>Every call has to come from the frame loop thread. Nothing is
+ * allocated; inputs beyond <code>CAPACITY</code> waiting at once are
+ * dropped and counted.</p>
+ */
+public class InputLatencyTracker {
+
+    /* Inputs that may wait for their tick or their frame */
+    public static final int CAPACITY = 64;
+
+    /* Received, waiting for the tick */
+    private final long[] pendingNanos = new long[CAPACITY];
+    private int pendingCount = 0;
+
+    /* Applied, waiting for the frame, oldest first */
+    private final long[] appliedNanos = new long[CAPACITY];
+    private final long[] appliedSequence = new long[CAPACITY];
+    private int appliedFirst = 0;
+    private int appliedCount = 0;
+
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long droppedInputs = 0;
+
+    /**
+     * Notes an input. It has to be applied to the game before the next
+     * tick.
+     *
+     * @param receivedNanos <code>System.nanoTime()</code> at receipt
+     */
+    public void inputReceived(long receivedNanos) {
+        if (pendingCount == CAPACITY) {
+            droppedInputs++;
+            return;
+        }
+        pendingNanos[pendingCount++] = receivedNanos;
+    }
+
+    /**
+     * Tags the inputs received since the last tick with the frame the
+     * tick published
+     *
+     * @param sequence Sequence of the frame published by the tick
+     */
+    public void tickApplied(long sequence) {
+        long now = System.nanoTime();
+        for (int i = 0; i < pendingCount; i++) {
+            if (appliedCount == CAPACITY) {
+                // The output stalled, forget the oldest
+                appliedFirst = (appliedFirst + 1) % CAPACITY;
+                appliedCount--;
+                droppedInputs++;
+            }
+            int slot = (appliedFirst + appliedCount) % CAPACITY;
+            appliedNanos[slot] = pendingNanos[i];
+            appliedSequence[slot] = sequence;
+            appliedCount++;
+            queueLatency.record(now - pendingNanos[i]);
+        }
+        pendingCount = 0;
+    }
+
+    /**
+     * Completes every input shown by a frame that left for the output
+     *
+     * @param sequence Sequence of the frame
+     */
+    public void frameSent(long sequence) {
+        if (appliedCount == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        while (appliedCount > 0 && appliedSequence[appliedFirst] <= sequence) {
+            latency.record(now - appliedNanos[appliedFirst]);
+            appliedFirst = (appliedFirst + 1) % CAPACITY;
+            appliedCount--;
+        }
+    }
+
+    /**
+     * Forgets inputs still on their way, for example when a round ends
+     */
+    public void clearPending() {
+        pendingCount = 0;
+        appliedCount = 0;
+    }
+
+    /**
+     * @return time from the receipt of an input to the output of the first
+     * frame showing it
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return time from the receipt of an input to the tick applying it
+     */
+    public LatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
+
+    public long getDroppedInputs() {
+        return droppedInputs;
+    }
+}
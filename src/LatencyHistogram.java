@@ -0,0 +1,113 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Lock-free histogram of durations.</p>
+ * <p>Buckets are 100 microseconds wide up to one second, everything above
+ * lands in an overflow bucket. Recording never allocates and may happen
+ * from any thread.</p>
+ */
+public class LatencyHistogram {
+
+    private static final long BUCKET_NANOS = 100000;
+    private static final int BUCKETS = 10000;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos Duration to record
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int bucket = (int) Math.min(nanos / BUCKET_NANOS, BUCKETS);
+        counts.incrementAndGet(bucket);
+        total.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Adds every recorded value of another histogram to this one
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i <= BUCKETS; i++) {
+            counts.addAndGet(i, other.counts.get(i));
+        }
+        total.addAndGet(other.total.get());
+        sumNanos.addAndGet(other.sumNanos.get());
+        long max = other.maxNanos.get();
+        if (max > maxNanos.get()) {
+            maxNanos.set(max);
+        }
+    }
+
+    /**
+     * Forgets every recorded value
+     */
+    public void reset() {
+        for (int i = 0; i <= BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sumNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * @return mean in milliseconds
+     */
+    public double getMeanMillis() {
+        long count = total.get();
+        return count == 0 ? 0 : sumNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * @return largest recorded value in milliseconds
+     */
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * @param percentile Percentile between 0 and 1
+     * @return upper bound of the bucket holding the percentile in
+     * milliseconds
+     */
+    public double getPercentileMillis(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return (i + 1) * BUCKET_NANOS / 1e6;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * @return short summary like <code>n=10 mean=1.2ms p50=1.1ms ...</code>
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                getCount(), getMeanMillis(), getPercentileMillis(0.5),
+                getPercentileMillis(0.9), getPercentileMillis(0.99), getMaxMillis());
+    }
+}
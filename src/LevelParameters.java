@@ -0,0 +1,134 @@
+import java.util.Arrays;
+
+/**
+ * <p>Difficulty settings of every level in a game.</p>
+ * <p>Can be written as a compact string like
+ * <code>refresh=1,1.2,1.5;steps=4,3,2;holes=20;holesFrom=2</code> to pass
+ * parameter sets to tools like the {@link DifficultyAnalyzer}.
+ * <code>tiles=16</code> scrolls the columns through a {@link ChunkedWorld}
+ * with tiles of that many rows instead of generating rows at the edge.</p>
+ */
+public final class LevelParameters {
+
+    /**
+     * The settings the game is played with at the exhibition
+     */
+    public static final LevelParameters DEFAULT = new LevelParameters(
+            new float[]{1f, 1.2f, 1.5f}, new int[]{4, 3, 2}, 20, 2);
+
+    private final float[] refreshLevels;
+    private final int[] maxTreasureSteps;
+    private final int holeChance;
+    private final int holesFromLevel;
+    private final int tileHeight;
+
+    /**
+     * @param refreshLevels    Speed of the grid for every level
+     * @param maxTreasureSteps Grid steps before the treasure is replaced,
+     *                         for every level
+     * @param holeChance       Chance of a new block being a hole in percent
+     * @param holesFromLevel   First level (starting at 0) with holes
+     */
+    public LevelParameters(float[] refreshLevels, int[] maxTreasureSteps,
+                           int holeChance, int holesFromLevel) {
+        this(refreshLevels, maxTreasureSteps, holeChance, holesFromLevel, 0);
+    }
+
+    /**
+     * @param refreshLevels    Speed of the grid for every level
+     * @param maxTreasureSteps Grid steps before the treasure is replaced,
+     *                         for every level
+     * @param holeChance       Chance of a new block being a hole in percent
+     * @param holesFromLevel   First level (starting at 0) with holes
+     * @param tileHeight       Rows per tile of the scrolling world, 0 to
+     *                         generate rows at the edge of the grid
+     */
+    public LevelParameters(float[] refreshLevels, int[] maxTreasureSteps,
+                           int holeChance, int holesFromLevel, int tileHeight) {
+        if (refreshLevels.length != maxTreasureSteps.length) {
+            throw new IllegalArgumentException("Every level needs a speed and treasure steps");
+        }
+        this.refreshLevels = refreshLevels.clone();
+        this.maxTreasureSteps = maxTreasureSteps.clone();
+        this.holeChance = holeChance;
+        this.holesFromLevel = holesFromLevel;
+        this.tileHeight = tileHeight;
+    }
+
+    /**
+     * Parses a parameter set. Missing keys are taken from the defaults.
+     *
+     * @param text Parameters in the form <code>key=value;key=value</code>
+     * @return parsed parameters
+     */
+    public static LevelParameters parse(String text) {
+        float[] refresh = DEFAULT.refreshLevels;
+        int[] steps = DEFAULT.maxTreasureSteps;
+        int holes = DEFAULT.holeChance;
+        int holesFrom = DEFAULT.holesFromLevel;
+        int tiles = DEFAULT.tileHeight;
+        for (String entry : text.split(";")) {
+            String[] pair = entry.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid parameter: " + entry);
+            }
+            String[] values = pair[1].split(",");
+            if (pair[0].equals("refresh")) {
+                refresh = new float[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    refresh[i] = Float.parseFloat(values[i]);
+                }
+            } else if (pair[0].equals("steps")) {
+                steps = new int[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    steps[i] = Integer.parseInt(values[i]);
+                }
+            } else if (pair[0].equals("holes")) {
+                holes = Integer.parseInt(pair[1]);
+            } else if (pair[0].equals("holesFrom")) {
+                holesFrom = Integer.parseInt(pair[1]);
+            } else if (pair[0].equals("tiles")) {
+                tiles = Integer.parseInt(pair[1]);
+            } else {
+                throw new IllegalArgumentException("Unknown parameter: " + pair[0]);
+            }
+        }
+        return new LevelParameters(refresh, steps, holes, holesFrom, tiles);
+    }
+
+    public int getLevelCount() {
+        return refreshLevels.length;
+    }
+
+    public float getRefreshLevel(int level) {
+        return refreshLevels[level];
+    }
+
+    public int getMaxTreasureSteps(int level) {
+        return maxTreasureSteps[level];
+    }
+
+    public int getHoleChance() {
+        return holeChance;
+    }
+
+    public int getHolesFromLevel() {
+        return holesFromLevel;
+    }
+
+    /**
+     * @return rows per tile of the scrolling world, 0 if not used
+     */
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "refresh=" + Arrays.toString(refreshLevels)
+                + " steps=" + Arrays.toString(maxTreasureSteps)
+                + " holes=" + holeChance + "%"
+                + " holesFrom=" + holesFromLevel
+                + (tileHeight > 0 ? " tiles=" + tileHeight : "");
+    }
+}
@@ -0,0 +1,345 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Embedded HTTP server to watch the output from a browser.</p>
+ * <p>Endpoints:</p>
+ * <ul>
+ * <li><code>/</code> page that draws the live stream</li>
+ * <li><code>/stream</code> server-sent events, one JSON frame per event</li>
+ * <li><code>/snapshot</code> latest frame as JSON</li>
+ * </ul>
+ * <p>A frame is <code>{"sequence":n,"width":w,"height":h,"pixels":"..."}</code>
+ * with six hex digits RRGGBB per pixel, row major, coloured like the
+ * server image.</p>
+ * <p>The game only copies the blocks of a frame and only while someone is
+ * watching. Viewers always get the latest frame and skip the ones they
+ * missed, limited to <code>maxViewerFps</code>. Every frame is encoded once
+ * no matter how many viewers are connected, on a viewer thread from a copy
+ * taken under the frame lock, so encoding never holds up the game. Frames
+ * kept from before anyone watched aren't sent, a viewer waits for the next
+ * one.</p>
+ */
+public class LiveViewServer implements FrameSink {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    /* Viewers above this are turned away */
+    public static final int MAX_VIEWERS = 16;
+
+    /* Comment sent to idle streams to detect closed connections */
+    private static final long KEEP_ALIVE_MILLIS = 15000;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final byte[] DATA_PREFIX = {'d', 'a', 't', 'a', ':', ' '};
+    private static final byte[] EVENT_END = {'\n', '\n'};
+
+    private static final String PAGE = "<!DOCTYPE html>\n"
+            + "<html><head><meta name=\"viewport\" content=\"width=device-width\">"
+            + "<title>Falldown</title></head>\n"
+            + "<body style=\"background:#222;margin:0\">\n"
+            + "<canvas id=\"view\" style=\"width:100%;image-rendering:pixelated\"></canvas>\n"
+            + "<script>\n"
+            + "var canvas = document.getElementById('view');\n"
+            + "var context = canvas.getContext('2d');\n"
+            + "new EventSource('stream').onmessage = function (event) {\n"
+            + "  var frame = JSON.parse(event.data);\n"
+            + "  canvas.width = frame.width; canvas.height = frame.height;\n"
+            + "  var image = context.createImageData(frame.width, frame.height);\n"
+            + "  for (var i = 0; i < frame.width * frame.height; i++) {\n"
+            + "    var rgb = parseInt(frame.pixels.substr(i * 6, 6), 16);\n"
+            + "    image.data[i * 4] = rgb >> 16; image.data[i * 4 + 1] = (rgb >> 8) & 255;\n"
+            + "    image.data[i * 4 + 2] = rgb & 255; image.data[i * 4 + 3] = 255;\n"
+            + "  }\n"
+            + "  context.putImageData(image, 0, 0);\n"
+            + "};\n"
+            + "</script></body></html>\n";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long minViewerNanos;
+    private final AtomicInteger viewers = new AtomicInteger();
+    private final Random random = new Random();
+
+    /* Latest frame, guarded by this */
+    private int[] blocks = new int[0];
+    private int width;
+    private int height;
+    private long sequence = 0;
+
+    /* Encoded version of a frame and the copy it is made from, guarded by
+       encodeLock. Taken before this if both are needed. */
+    private final Object encodeLock = new Object();
+    private int[] encodeBlocks = new int[0];
+    private byte[] encoded;
+    private long encodedSequence = -1;
+
+    /**
+     * @param port         Port to listen on
+     * @param maxViewerFps Frames per second sent to a viewer at most
+     */
+    public LiveViewServer(int port, int maxViewerFps) throws IOException {
+        this.minViewerNanos = 1000000000L / maxViewerFps;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "live-view-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (!exchange.getRequestURI().getPath().equals("/")) {
+                    send(exchange, 404, "text/plain", "Not found\n".getBytes("UTF-8"));
+                } else {
+                    send(exchange, 200, "text/html; charset=utf-8", PAGE.getBytes("UTF-8"));
+                }
+            }
+
+        });
+        server.createContext("/snapshot", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // The game doesn't copy frames for nobody, the kept one may
+                // be old, so wait for the next one
+                viewers.incrementAndGet();
+                try {
+                    synchronized (LiveViewServer.this) {
+                        awaitFrame(sequence, 1000);
+                    }
+                } finally {
+                    viewers.decrementAndGet();
+                }
+                byte[] frame = encodeLatest();
+                if (frame == null) {
+                    send(exchange, 503, "text/plain", "No frame yet\n".getBytes("UTF-8"));
+                } else {
+                    send(exchange, 200, "application/json", frame);
+                }
+            }
+
+        });
+        server.createContext("/stream", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                stream(exchange);
+            }
+
+        });
+        server.start();
+        logger.log(Level.INFO, "Live view on port " + getPort());
+    }
+
+    // #########################################################################
+    // GAME SIDE
+    // #########################################################################
+
+    @Override
+    public void sendFrame(GridFrame frame) {
+        if (viewers.get() == 0) {
+            return;
+        }
+        synchronized (this) {
+            if (blocks.length != frame.getWidth() * frame.getHeight()) {
+                blocks = new int[frame.getWidth() * frame.getHeight()];
+            }
+            width = frame.getWidth();
+            height = frame.getHeight();
+            frame.copyBlocks(blocks);
+            sequence = frame.getSequence();
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // #########################################################################
+    // VIEWER SIDE
+    // #########################################################################
+
+    /**
+     * Sends frames to one viewer until the connection closes
+     */
+    private void stream(HttpExchange exchange) throws IOException {
+        if (viewers.incrementAndGet() > MAX_VIEWERS) {
+            viewers.decrementAndGet();
+            send(exchange, 503, "text/plain", "Too many viewers\n".getBytes("UTF-8"));
+            return;
+        }
+        logger.log(Level.INFO, "Viewer connected from " + exchange.getRemoteAddress());
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+
+            long sent;
+            synchronized (this) {
+                // Kept from before anyone watched
+                sent = sequence;
+            }
+            long nextFrame = System.nanoTime();
+            while (true) {
+                long latest;
+                synchronized (this) {
+                    awaitFrame(sent, KEEP_ALIVE_MILLIS);
+                    latest = sequence;
+                }
+                byte[] frame = latest > sent ? encodeLatest() : null;
+                sent = latest;
+                if (frame == null) {
+                    out.write(": keep-alive\n\n".getBytes("UTF-8"));
+                } else {
+                    out.write(DATA_PREFIX);
+                    out.write(frame);
+                    out.write(EVENT_END);
+                }
+                out.flush();
+
+                // Frames arriving meanwhile are skipped
+                nextFrame += minViewerNanos;
+                long wait = nextFrame - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } else {
+                    nextFrame = System.nanoTime();
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.INFO, "Viewer disconnected from " + exchange.getRemoteAddress());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            viewers.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    /**
+     * Waits until a frame newer than <code>sent</code> arrived. Must be
+     * called while holding the lock.
+     */
+    private void awaitFrame(long sent, long timeoutMillis) {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        long left = timeoutMillis;
+        while (sequence <= sent && left > 0) {
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            left = end - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Encodes the latest frame unless that already happened for another
+     * viewer. Must be called without holding the frame lock.
+     *
+     * @return JSON of the latest frame or null if there is none
+     */
+    private byte[] encodeLatest() {
+        synchronized (encodeLock) {
+            long copied;
+            int copiedWidth;
+            int copiedHeight;
+            synchronized (this) {
+                if (sequence == 0 || sequence == encodedSequence) {
+                    return encoded;
+                }
+                if (encodeBlocks.length != blocks.length) {
+                    encodeBlocks = new int[blocks.length];
+                }
+                System.arraycopy(blocks, 0, encodeBlocks, 0, blocks.length);
+                copied = sequence;
+                copiedWidth = width;
+                copiedHeight = height;
+            }
+
+            StringBuilder json = new StringBuilder(64 + encodeBlocks.length * 6);
+            json.append("{\"sequence\":").append(copied)
+                    .append(",\"width\":").append(copiedWidth)
+                    .append(",\"height\":").append(copiedHeight)
+                    .append(",\"pixels\":\"");
+            for (int i = 0; i < copiedWidth * copiedHeight; i++) {
+                int rgb = BlockColors.toRgb(encodeBlocks[i], random);
+                for (int shift = 20; shift >= 0; shift -= 4) {
+                    json.append(HEX[(rgb >> shift) & 0xF]);
+                }
+            }
+            json.append("\"}");
+            try {
+                encoded = json.toString().getBytes("UTF-8");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            encodedSequence = copied;
+            return encoded;
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String type, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        exchange.close();
+    }
+
+    /**
+     * @return number of connected stream viewers
+     */
+    public int getViewerCount() {
+        return viewers.get();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // #########################################################################
+    // STANDALONE
+    // #########################################################################
+
+    /**
+     * <p>Serves an unattended game, useful to try the page without the
+     * applet.</p>
+     * <p>Usage: <code>LiveViewServer [port]</code></p>
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        Falldown falldown = new Falldown(9, 14, 3);
+        HeadlessRunner runner = new HeadlessRunner(falldown, null, FalldownApplet.FPS);
+        runner.addFrameSink(new LiveViewServer(port, 15));
+        runner.run();
+    }
+}
@@ -0,0 +1,171 @@
+import hsrw.illumination.client.intern.APIClientIntern;
+
+import java.io.File;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * <p>Measures the game against a local {@link StandInServer}.</p>
+ * <p>Starts the stand-in server and a number of headless game sessions that
+ * connect to it like the applet connects to the real server. After the
+ * given time it reports, per session and in total, the frame rate reached
+ * by the client and seen by the server, the time spent sending a frame and
+ * the time from a control message to the first frame showing the move,
+ * as seen by the server and as measured by the session from the receipt of
+ * the control until the canvas went out.
+ * With <code>-stats</code> every game is recorded in a
+ * {@link SessionStatsStore} shared by the sessions. With
+ * <code>-warmup</code> a {@link WarmUp} runs the given ticks before the
+ * sessions log in, like the applet does.</p>
+ *
+ * <p>Usage: <code>LoadTest [-sessions n] [-seconds n] [-rate
+ * inputsPerSecond] [-entry milliseconds] [-width n] [-height n]
+ * [-stats file] [-warmup ticks]</code></p>
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        int sessions = 1;
+        int seconds = 30;
+        double rate = 4;
+        long entry = 500;
+        int width = 9;
+        int height = 14;
+        String statsFile = null;
+        int warmUpTicks = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-sessions")) {
+                sessions = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-seconds")) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-rate")) {
+                rate = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-entry")) {
+                entry = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-width")) {
+                width = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-height")) {
+                height = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-stats")) {
+                statsFile = args[++i];
+            } else if (args[i].equals("-warmup")) {
+                warmUpTicks = Integer.parseInt(args[++i]);
+            }
+        }
+        FalldownApplet.getLogger().setLevel(Level.WARNING);
+
+        if (warmUpTicks > 0) {
+            WarmUp warmUp = new WarmUp(width, height, ColorPipeline.LINEAR);
+            warmUp.run(warmUpTicks);
+            warmUp.close();
+            System.out.println("warm up: " + warmUp.getTicks() + " ticks, steady after "
+                    + warmUp.getSteadyTick());
+        }
+
+        StandInServer server = new StandInServer(0, width, height);
+        server.setInputRate(rate);
+        server.setEntryDelayMillis(entry);
+        server.start();
+        SessionStatsStore stats = statsFile != null
+                ? new SessionStatsStore(new File(statsFile), 1024) : null;
+
+        HeadlessRunner[] runners = new HeadlessRunner[sessions];
+        ServerSession[] serverSessions = new ServerSession[sessions];
+        TimedFrameSink[] outputs = new TimedFrameSink[sessions];
+        Thread[] threads = new Thread[sessions];
+        for (int i = 0; i < sessions; i++) {
+            APIClientIntern client = new TimedAPIClient("127.0.0.1", server.getPort(),
+                    "load-test", "load-test");
+            client.debug = false;
+            int gridX = client.getViewportWidth();
+            int gridY = client.getViewportHeight();
+            outputs[i] = new TimedFrameSink(new CanvasFrameSink(client, gridX, gridY));
+            serverSessions[i] = new ServerSession(client, "Falldown", stats);
+            runners[i] = new HeadlessRunner(
+                    new Falldown(gridX, gridY, FalldownApplet.COLUMNS),
+                    serverSessions[i], FalldownApplet.FPS);
+            runners[i].addFrameSink(outputs[i]);
+            threads[i] = new Thread(runners[i], "load-test-session-" + i);
+            threads[i].start();
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        for (HeadlessRunner runner : runners) {
+            runner.stop();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        List<StandInServer.Session> standInSessions = server.getSessions();
+        LatencyHistogram frameTimes = new LatencyHistogram();
+        LatencyHistogram sendTimes = new LatencyHistogram();
+        LatencyHistogram inputLatency = new LatencyHistogram();
+        LatencyHistogram inputToTick = new LatencyHistogram();
+        LatencyHistogram inputToCanvas = new LatencyHistogram();
+        for (int i = 0; i < sessions; i++) {
+            StandInServer.Session serverSession = standInSessions.get(i);
+            InputLatencyTracker tracker = serverSessions[i].getInputLatency();
+            System.out.println(String.format(
+                    "session %d: client %.1f fps, server %.1f fps, %d games, %d inputs",
+                    i, runners[i].getFrameCount() / elapsed, serverSession.getReceivedFps(),
+                    serverSession.getGamesStarted(), serverSession.getInputsSent()));
+            System.out.println("  frame time     " + runners[i].getFrameTimes());
+            System.out.println("  send time      " + outputs[i].getSendTimes());
+            System.out.println("  input to frame " + serverSession.getInputLatency());
+            System.out.println("  input to tick  " + tracker.getQueueLatency());
+            System.out.println("  input to canvas " + tracker.getLatency());
+            frameTimes.merge(runners[i].getFrameTimes());
+            sendTimes.merge(outputs[i].getSendTimes());
+            inputLatency.merge(serverSession.getInputLatency());
+            inputToTick.merge(tracker.getQueueLatency());
+            inputToCanvas.merge(tracker.getLatency());
+        }
+        System.out.println("total (" + sessions + " sessions, " + seconds + " s):");
+        System.out.println("  frame time     " + frameTimes);
+        System.out.println("  send time      " + sendTimes);
+        System.out.println("  input to frame " + inputLatency);
+        System.out.println("  input to tick  " + inputToTick);
+        System.out.println("  input to canvas " + inputToCanvas);
+        if (stats != null) {
+            stats.close();
+            System.out.println("stats: " + stats.getStoredRecords() + " games stored, "
+                    + stats.getDroppedRecords() + " dropped");
+        }
+
+        // The client library keeps retrying on closed connections, so the
+        // server is left running until the JVM exits
+        System.exit(0);
+    }
+
+    /**
+     * Measures how long another sink takes for every frame
+     */
+    static class TimedFrameSink implements FrameSink {
+
+        private final FrameSink sink;
+        private final LatencyHistogram sendTimes = new LatencyHistogram();
+
+        TimedFrameSink(FrameSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void sendFrame(GridFrame frame) {
+            long start = System.nanoTime();
+            sink.sendFrame(frame);
+            sendTimes.record(System.nanoTime() - start);
+        }
+
+        @Override
+        public void close() {
+            sink.close();
+        }
+
+        LatencyHistogram getSendTimes() {
+            return sendTimes;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>Reads frames from a ring file written by {@link MappedFrameSink}.</p>
+ * <p>Works in any process on the same machine. Reading never blocks the
+ * writer; a frame that got overwritten while it was copied is reported as
+ * missed and the reader continues with newer frames.</p>
+ */
+public class MappedFrameReader {
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int width;
+    private final int height;
+    private final int slots;
+    private final int slotSize;
+
+    private long sequence = 0;
+    private long publishNanos = 0;
+    private long missedFrames = 0;
+
+    /**
+     * @param path Ring file, has to be created by the writer first
+     */
+    public MappedFrameReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MappedFrameSink.MAGIC || buffer.getInt(4) != MappedFrameSink.VERSION) {
+            file.close();
+            throw new IOException(path + " is not a frame ring");
+        }
+        MemoryFences.acquire();
+        width = buffer.getInt(MappedFrameSink.OFFSET_WIDTH);
+        height = buffer.getInt(MappedFrameSink.OFFSET_HEIGHT);
+        slots = buffer.getInt(MappedFrameSink.OFFSET_SLOTS);
+        slotSize = buffer.getInt(MappedFrameSink.OFFSET_SLOT_SIZE);
+    }
+
+    /**
+     * @return sequence of the latest complete frame in the ring
+     */
+    public long getLatestSequence() {
+        long latest = buffer.getLong(MappedFrameSink.OFFSET_LATEST);
+        MemoryFences.acquire();
+        return latest;
+    }
+
+    /**
+     * Copies the latest frame if it is newer than the last one read
+     *
+     * @param pixels Array of at least <code>width * height</code> entries
+     * @return true if a new frame was copied
+     */
+    public boolean readLatest(int[] pixels) {
+        long latest = getLatestSequence();
+        if (latest <= sequence) {
+            return false;
+        }
+        if (sequence > 0 && latest > sequence + 1) {
+            missedFrames += latest - sequence - 1;
+        }
+        if (read(latest, pixels)) {
+            return true;
+        }
+        // Overwritten while copying, count it and try again next time
+        missedFrames++;
+        sequence = latest;
+        return false;
+    }
+
+    /**
+     * Copies a frame if it is still in the ring
+     *
+     * @param wanted Sequence of the frame
+     * @param pixels Array of at least <code>width * height</code> entries
+     * @return false if the slot held another frame or was written meanwhile
+     */
+    public boolean read(long wanted, int[] pixels) {
+        int offset = MappedFrameSink.HEADER_SIZE + (int) (wanted % slots) * slotSize;
+
+        long lock = buffer.getLong(offset);
+        MemoryFences.acquire();
+        if ((lock & 1) != 0 || buffer.getLong(offset + 8) != wanted) {
+            return false;
+        }
+        long nanos = buffer.getLong(offset + 16);
+        int pixel = offset + MappedFrameSink.SLOT_HEADER_SIZE;
+        int count = width * height;
+        for (int i = 0; i < count; i++) {
+            pixels[i] = buffer.getInt(pixel);
+            pixel += 4;
+        }
+        // Every copied value has to be loaded before the lock is checked
+        MemoryFences.acquire();
+        if (buffer.getLong(offset) != lock) {
+            return false;
+        }
+        sequence = wanted;
+        publishNanos = nanos;
+        return true;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return sequence of the last frame read
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return writer's <code>System.nanoTime()</code> of the last frame
+     * read. Only comparable within the writing process.
+     */
+    public long getPublishNanos() {
+        return publishNanos;
+    }
+
+    /**
+     * @return frames that were skipped or overwritten before they were read
+     */
+    public long getMissedFrames() {
+        return missedFrames;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    // #########################################################################
+    // MONITOR
+    // #########################################################################
+
+    /**
+     * <p>Follows a ring file and prints frame rate and missed frames every
+     * second.</p>
+     * <p>Usage: <code>MappedFrameReader file</code></p>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: MappedFrameReader file");
+            System.exit(2);
+        }
+        MappedFrameReader reader = new MappedFrameReader(new File(args[0]));
+        System.out.println("Reading " + reader.getWidth() + "x" + reader.getHeight()
+                + " frames from " + args[0]);
+        int[] pixels = new int[reader.getWidth() * reader.getHeight()];
+        int frames = 0;
+        long nextReport = System.currentTimeMillis() + 1000;
+        while (true) {
+            if (reader.readLatest(pixels)) {
+                frames++;
+            } else {
+                Thread.sleep(1);
+            }
+            if (System.currentTimeMillis() >= nextReport) {
+                System.out.println(frames + " fps, sequence " + reader.getSequence()
+                        + ", missed " + reader.getMissedFrames()
+                        + ", first pixel " + Integer.toHexString(pixels[0]));
+                frames = 0;
+                nextReport += 1000;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Publishes the output frames into a memory mapped file, so other local
+ * processes can read them without sockets.</p>
+ * <p>The file is a ring of slots behind a header, all values little
+ * endian:</p>
+ * <pre>
+ * header  0 int  magic "FDRB"
+ *         4 int  version
+ *         8 int  width
+ *        12 int  height
+ *        16 int  slot count
+ *        20 int  slot size in bytes
+ *        24 long sequence of the latest complete frame
+ * slot    0 long seqlock, odd while the slot is written
+ *         8 long frame sequence
+ *        16 long publish time (System.nanoTime() of the writer)
+ *        24 int  one 0x00RRGGBB pixel per block, row major
+ * </pre>
+ * <p>Frame <code>n</code> goes to slot <code>n % slots</code>. A reader
+ * reads the seqlock, copies the slot and reads the seqlock again; the copy
+ * is valid if both values are equal and even. The writer never waits for
+ * readers, a slow reader only skips frames.</p>
+ * <p>A release fence comes before the even seqlock value and the latest
+ * sequence, and after the odd value. Readers pair them with acquire fences
+ * after loading the seqlock and before checking it again. Fences order the
+ * memory accesses of the CPU, so they hold for a reader in another process
+ * as well. The longs are aligned, so each is stored in one piece. See
+ * {@link MemoryFences} for why they aren't <code>VarHandle</code>
+ * calls.</p>
+ * <p>An existing file is reused and only grows, a reader that still maps
+ * it never loses its pages. Readers have to reopen the file when the
+ * writer restarts.</p>
+ */
+public class MappedFrameSink implements FrameSink {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    public static final int MAGIC = 0x42524446; // "FDRB" little endian
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int SLOT_HEADER_SIZE = 24;
+
+    static final int OFFSET_WIDTH = 8;
+    static final int OFFSET_HEIGHT = 12;
+    static final int OFFSET_SLOTS = 16;
+    static final int OFFSET_SLOT_SIZE = 20;
+    static final int OFFSET_LATEST = 24;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int width;
+    private final int height;
+    private final int slots;
+    private final int slotSize;
+    private final Random random = new Random();
+
+    /**
+     * Creates the ring file or takes over an existing one. Its header and
+     * slots are reset, and it is grown if it is too small but never
+     * shrunk.
+     *
+     * @param path   File to map, e.g. on a tmpfs
+     * @param width  Width of the frames
+     * @param height Height of the frames
+     * @param slots  Number of frames kept in the ring
+     */
+    public MappedFrameSink(File path, int width, int height, int slots) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.slots = slots;
+        this.slotSize = slotSize(width, height);
+
+        file = new RandomAccessFile(path, "rw");
+        long size = HEADER_SIZE + (long) slots * slotSize;
+        // Truncating a file someone still maps kills the reader with SIGBUS
+        if (file.length() < size) {
+            file.setLength(size);
+        }
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(0, 0);
+        MemoryFences.release();
+        buffer.putInt(4, VERSION);
+        buffer.putInt(OFFSET_WIDTH, width);
+        buffer.putInt(OFFSET_HEIGHT, height);
+        buffer.putInt(OFFSET_SLOTS, slots);
+        buffer.putInt(OFFSET_SLOT_SIZE, slotSize);
+        buffer.putLong(OFFSET_LATEST, 0);
+        // A writer that died in the middle of a frame left its slot odd
+        for (int i = 0; i < slots; i++) {
+            int offset = HEADER_SIZE + i * slotSize;
+            long lock = buffer.getLong(offset);
+            buffer.putLong(offset, lock + (lock & 1));
+            buffer.putLong(offset + 8, -1);
+        }
+        // Readers wait for the magic number
+        MemoryFences.release();
+        buffer.putInt(0, MAGIC);
+        logger.log(Level.INFO, "Publishing frames to " + path + " in " + slots + " slots");
+    }
+
+    /**
+     * @return size of one slot for the given frame size, rounded up to
+     * whole cache lines
+     */
+    static int slotSize(int width, int height) {
+        int size = SLOT_HEADER_SIZE + width * height * 4;
+        return (size + 63) & ~63;
+    }
+
+    @Override
+    public void sendFrame(GridFrame frame) {
+        long sequence = frame.getSequence();
+        int offset = HEADER_SIZE + (int) (sequence % slots) * slotSize;
+
+        long lock = buffer.getLong(offset);
+        buffer.putLong(offset, lock + 1);
+        // The slot must be odd before any of its contents change
+        MemoryFences.release();
+
+        buffer.putLong(offset + 8, sequence);
+        buffer.putLong(offset + 16, frame.getPublishNanos());
+        int pixel = offset + SLOT_HEADER_SIZE;
+        int blocks = width * height;
+        for (int i = 0; i < blocks; i++) {
+            buffer.putInt(pixel, BlockColors.toRgb(frame.getBlock(i), random) & 0xFFFFFF);
+            pixel += 4;
+        }
+
+        MemoryFences.release();
+        buffer.putLong(offset, lock + 2);
+        MemoryFences.release();
+        buffer.putLong(OFFSET_LATEST, sequence);
+    }
+
+    @Override
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Closing frame ring failed " + e);
+        }
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+}
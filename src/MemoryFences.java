@@ -0,0 +1,73 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * <p>Memory fences for data shared with other processes through a mapped
+ * file.</p>
+ * <p>Java 9 and later have them in <code>VarHandle</code>, Java 8 only in
+ * <code>sun.misc.Unsafe</code>. Both are looked up at run time, so the
+ * sources still compile on Java 8. The handles are constants, the JIT
+ * turns a call into the bare fence.</p>
+ */
+final class MemoryFences {
+
+    /* Earlier loads and stores before later stores */
+    private static final MethodHandle RELEASE;
+    /* Earlier loads before later loads and stores */
+    private static final MethodHandle ACQUIRE;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType type = MethodType.methodType(void.class);
+        try {
+            MethodHandle release;
+            MethodHandle acquire;
+            try {
+                Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+                release = lookup.findStatic(varHandle, "releaseFence", type);
+                acquire = lookup.findStatic(varHandle, "acquireFence", type);
+            } catch (ClassNotFoundException e) {
+                // Java 8
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                Object unsafe = field.get(null);
+                release = lookup.findVirtual(unsafeClass, "storeFence", type).bindTo(unsafe);
+                acquire = lookup.findVirtual(unsafeClass, "loadFence", type).bindTo(unsafe);
+            }
+            RELEASE = release;
+            ACQUIRE = acquire;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No memory fences available", e);
+        }
+    }
+
+    private MemoryFences() {
+    }
+
+    /**
+     * Keeps every load and store before the fence ahead of the stores
+     * after it
+     */
+    static void release() {
+        try {
+            RELEASE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Keeps every load before the fence ahead of the loads and stores after
+     * it
+     */
+    static void acquire() {
+        try {
+            ACQUIRE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
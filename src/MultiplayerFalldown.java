@@ -0,0 +1,388 @@
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Lets several players play at once on one wall.</p>
+ * <p>The wall is split into lanes of <code>columnsPerPlayer</code> columns.
+ * Every lane is a game of its own with its own player, treasure and level,
+ * while the columns keep the direction they have on the wall. All lanes
+ * advance in the same tick and are published as one frame. The lanes own
+ * the columns of the wall grid, so putting the frame together only copies
+ * references. A tick costs the same per lane no matter how many players
+ * there are.</p>
+ * <p>Lanes run without animations: a reached treasure loads the next level
+ * right away, a lost or won game is shown in red or random colours for
+ * <code>OUTCOME_FRAMES</code> before the lane is free again.</p>
+ * <p>Moves may be sent from any thread and are applied in the next tick.
+ * Everything else has to be called from the thread calling
+ * <code>update()</code>.</p>
+ */
+public class MultiplayerFalldown {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    /* Frames the outcome of a game is shown */
+    public static final int OUTCOME_FRAMES = FalldownApplet.FPS * 2;
+
+    /**
+     * State of a lane
+     */
+    public enum LaneState {
+        /** Nobody is playing */
+        IDLE,
+        /** A game is running */
+        PLAYING,
+        /** The player died, the lane shows it */
+        LOST,
+        /** The player completed every level, the lane shows it */
+        WON
+    }
+
+    private final Falldown[] lanes;
+    private final LaneState[] states;
+    private final int[] outcomeFrames;
+    private final int laneWidth;
+    private final int gridWidth;
+    private final int gridHeight;
+
+    /* Moves not applied yet, negative is left */
+    private final AtomicIntegerArray moves;
+
+    /* Columns of the wall, taken from the lanes after every tick */
+    private final int[][] wallGrid;
+    private final FramePublisher framePublisher;
+
+    /**
+     * @param gridWidth        Width of the wall
+     * @param gridHeight       Height of the wall
+     * @param columns          Number of columns on the wall
+     * @param columnsPerPlayer Columns of one lane, has to divide
+     *                         <code>columns</code>
+     * @param levelParameters  Difficulty of the levels
+     * @param random           Source of the random seeds of the lanes
+     */
+    public MultiplayerFalldown(int gridWidth, int gridHeight, int columns,
+                               int columnsPerPlayer, LevelParameters levelParameters,
+                               Random random) {
+        if (columnsPerPlayer < 1 || columns % columnsPerPlayer != 0) {
+            throw new IllegalArgumentException(columnsPerPlayer
+                    + " columns per player don't divide " + columns + " columns");
+        }
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.laneWidth = gridWidth / columns * columnsPerPlayer;
+
+        int laneCount = columns / columnsPerPlayer;
+        lanes = new Falldown[laneCount];
+        states = new LaneState[laneCount];
+        outcomeFrames = new int[laneCount];
+        moves = new AtomicIntegerArray(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Falldown(laneWidth, gridHeight, columnsPerPlayer,
+                    i * columnsPerPlayer, levelParameters,
+                    new Random(random.nextLong()), false);
+            states[i] = LaneState.IDLE;
+        }
+
+        // Pixels left over by the columns stay empty
+        wallGrid = new int[gridWidth][];
+        int[] emptyColumn = new int[gridHeight];
+        for (int x = laneCount * laneWidth; x < gridWidth; x++) {
+            wallGrid[x] = emptyColumn;
+        }
+        framePublisher = new FramePublisher(gridWidth, gridHeight);
+        logger.log(Level.INFO, "Multiplayer wall with " + laneCount + " lanes of "
+                + laneWidth + "x" + gridHeight);
+    }
+
+    // #########################################################################
+    // PLAYERS
+    // #########################################################################
+
+    /**
+     * Starts a new game in a lane
+     *
+     * @param lane Number of the lane
+     */
+    public void start(int lane) {
+        moves.set(lane, 0);
+        lanes[lane].resetAndPurge();
+        states[lane] = LaneState.PLAYING;
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Game started in lane " + lane);
+        }
+    }
+
+    /**
+     * Starts a game in the first idle lane
+     *
+     * @return number of the lane or -1 if every lane is taken
+     */
+    public int startInFreeLane() {
+        for (int i = 0; i < lanes.length; i++) {
+            if (states[i] == LaneState.IDLE) {
+                start(i);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Ends the game in a lane and clears it
+     *
+     * @param lane Number of the lane
+     */
+    public void stop(int lane) {
+        states[lane] = LaneState.IDLE;
+        moves.set(lane, 0);
+        lanes[lane].fillLevel(Falldown.EMPTY_BLOCK);
+    }
+
+    /**
+     * Moves the player of a lane one pixel to the left in the next tick.
+     * May be called from any thread.
+     */
+    public void movePlayerLeft(int lane) {
+        moves.decrementAndGet(lane);
+    }
+
+    /**
+     * Moves the player of a lane one pixel to the right in the next tick.
+     * May be called from any thread.
+     */
+    public void movePlayerRight(int lane) {
+        moves.incrementAndGet(lane);
+    }
+
+    // #########################################################################
+    // UPDATE
+    // #########################################################################
+
+    /**
+     * Advances every lane by one frame and publishes the wall
+     *
+     * @param frame Frame number, decides when the grids move
+     */
+    public void update(int frame) {
+        for (int i = 0; i < lanes.length; i++) {
+            Falldown lane = lanes[i];
+            if (states[i] == LaneState.PLAYING) {
+                applyMoves(i, lane);
+                lane.step(frame);
+                if (lane.isPlayerDead()) {
+                    endGame(i, LaneState.LOST, Falldown.RED_BLOCK);
+                } else if (!lane.isActive()) {
+                    endGame(i, LaneState.WON, Falldown.RANDOM_BLOCK);
+                }
+            } else if (states[i] != LaneState.IDLE && --outcomeFrames[i] == 0) {
+                stop(i);
+            }
+
+            // The lane swaps its grids, so take the columns every time
+            int[][] grid = lane.getLevelGrid();
+            System.arraycopy(grid, 0, wallGrid, i * laneWidth, laneWidth);
+        }
+        framePublisher.publish(wallGrid);
+    }
+
+    private void applyMoves(int index, Falldown lane) {
+        // Nobody needs more moves than the lane is wide
+        int move = Math.max(-laneWidth, Math.min(laneWidth, moves.getAndSet(index, 0)));
+        for (; move < 0; move++) {
+            lane.movePlayerLeft();
+        }
+        for (; move > 0; move--) {
+            lane.movePlayerRight();
+        }
+    }
+
+    private void endGame(int lane, LaneState state, int block) {
+        states[lane] = state;
+        outcomeFrames[lane] = OUTCOME_FRAMES;
+        lanes[lane].fillLevel(block);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Game in lane " + lane + " " + state
+                    + " in level " + lanes[lane].getCurrentLevel());
+        }
+    }
+
+    // #########################################################################
+    // ACCESSORS
+    // #########################################################################
+
+    /**
+     * Obtains the wall published by the latest <code>update()</code>. The
+     * frame has to be released by the caller.
+     *
+     * @return latest frame or null if <code>update()</code> was never called
+     */
+    public GridFrame acquireFrame() {
+        return framePublisher.acquire();
+    }
+
+    /**
+     * @return publisher of the wall snapshots, used to attach more readers
+     */
+    public FramePublisher getFramePublisher() {
+        return framePublisher;
+    }
+
+    /**
+     * @param lane Number of the lane
+     * @return game of the lane, positions are relative to the lane. Must
+     * not be changed.
+     */
+    public Falldown getLane(int lane) {
+        return lanes[lane];
+    }
+
+    public LaneState getState(int lane) {
+        return states[lane];
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public int getLaneWidth() {
+        return laneWidth;
+    }
+
+    public int getGridWidth() {
+        return gridWidth;
+    }
+
+    public int getGridHeight() {
+        return gridHeight;
+    }
+
+    /**
+     * @return number of lanes with a running game
+     */
+    public int getPlayingCount() {
+        int count = 0;
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == LaneState.PLAYING) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // #########################################################################
+    // STANDALONE
+    // #########################################################################
+
+    /**
+     * <p>Fills a wall with bots, one per lane, and reports the cost of a
+     * tick per player. Lanes that end are restarted right away. Optionally
+     * serves the wall to browsers.</p>
+     * <p>Usage: <code>MultiplayerFalldown [-players n] [-columnsPerPlayer n]
+     * [-height n] [-seconds n] [-bot name] [-view port]</code></p>
+     */
+    public static void main(String[] args) throws Exception {
+        int players = 32;
+        int columnsPerPlayer = 1;
+        int height = 14;
+        int seconds = 10;
+        String botName = "greedy";
+        int viewPort = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-players")) {
+                players = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-columnsPerPlayer")) {
+                columnsPerPlayer = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-height")) {
+                height = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-seconds")) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-bot")) {
+                botName = args[++i];
+            } else if (args[i].equals("-view")) {
+                viewPort = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        // Columns as wide as the ones of the applet
+        int columnWidth = 3;
+        int columns = players * columnsPerPlayer;
+        Random random = new Random();
+        MultiplayerFalldown wall = new MultiplayerFalldown(columns * columnWidth, height,
+                columns, columnsPerPlayer, LevelParameters.DEFAULT, random);
+        BotPlayer[] bots = new BotPlayer[players];
+        for (int i = 0; i < players; i++) {
+            bots[i] = BotPlayer.create(botName, new Random(random.nextLong()));
+        }
+        LiveViewServer view = viewPort > 0 ? new LiveViewServer(viewPort, 15) : null;
+
+        int[] games = new int[players];
+        int[] won = new int[players];
+        boolean[] counted = new boolean[players];
+        int frame = 0;
+        long frameNanos = 1000000000L / FalldownApplet.FPS;
+        long nextFrame = System.nanoTime();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        LatencyHistogram tickTimes = new LatencyHistogram();
+        while (System.currentTimeMillis() < end) {
+            long start = System.nanoTime();
+            for (int i = 0; i < players; i++) {
+                if (wall.getState(i) == LaneState.IDLE) {
+                    wall.start(i);
+                    games[i]++;
+                } else if (wall.getState(i) == LaneState.PLAYING) {
+                    int move = bots[i].decide(wall.getLane(i), frame);
+                    if (move == BotPlayer.LEFT) {
+                        wall.movePlayerLeft(i);
+                    } else if (move == BotPlayer.RIGHT) {
+                        wall.movePlayerRight(i);
+                    }
+                }
+            }
+            wall.update(frame);
+            tickTimes.record(System.nanoTime() - start);
+            for (int i = 0; i < players; i++) {
+                if (wall.getState(i) == LaneState.WON && !counted[i]) {
+                    won[i]++;
+                }
+                counted[i] = wall.getState(i) == LaneState.WON;
+            }
+
+            GridFrame gridFrame = wall.acquireFrame();
+            if (view != null) {
+                view.sendFrame(gridFrame);
+            }
+            gridFrame.release();
+            frame++;
+
+            nextFrame += frameNanos;
+            long wait = nextFrame - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } else {
+                nextFrame = System.nanoTime();
+            }
+        }
+
+        int totalGames = 0;
+        int totalWon = 0;
+        for (int i = 0; i < players; i++) {
+            totalGames += games[i];
+            totalWon += won[i];
+        }
+        System.out.println(players + " players on " + wall.getGridWidth() + "x" + height
+                + ", " + frame + " frames, " + totalGames + " games, " + totalWon + " won");
+        System.out.println("tick " + tickTimes);
+        System.out.println(String.format("mean tick per player %.2f us",
+                tickTimes.getMeanMillis() * 1000 / players));
+        if (view != null) {
+            view.close();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Receiving side of the {@link PaletteFrameEncoder}.</p>
+ * <p>Keeps the latest palette and turns frame messages back into block
+ * indices and colours. Not thread safe, every receiver uses its own
+ * decoder.</p>
+ * <p>Nothing on the wire is trusted: lengths, sizes and palette indices
+ * are checked before they are used, and a message that doesn't fit fails
+ * with an <code>IOException</code>.</p>
+ *
+ * <p>Started on its own it acts as a simple local receiver:
+ * <code>PaletteFrameDecoder [port]</code> accepts one sender at a time and
+ * prints the frame rate and the received bytes per frame.</p>
+ */
+public class PaletteFrameDecoder {
+
+    /* Largest message accepted, far above any facade */
+    public static final int MAX_MESSAGE_SIZE = 1 << 24;
+
+    private static final int FRAME_HEADER_SIZE = 8 + 2 + 2 + 1;
+
+    private int[] palette = new int[0];
+    private int[] indices = new int[0];
+    private int[] spareIndices = new int[0];
+    private int width;
+    private int height;
+    private long sequence = -1;
+    private int lastMessageSize;
+    private byte[] message = new byte[64];
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 4050;
+        ServerSocket server = new ServerSocket(port);
+        System.out.println("Waiting for frames on port " + port);
+        while (true) {
+            Socket socket = server.accept();
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            PaletteFrameDecoder decoder = new PaletteFrameDecoder();
+            long frames = 0;
+            long start = System.nanoTime();
+            try {
+                while (true) {
+                    if (decoder.read(in)) {
+                        frames++;
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    if (elapsed > 1000000000L) {
+                        System.out.println(String.format("%.1f fps, %dx%d, %d bytes per frame, sequence %d",
+                                frames * 1e9 / elapsed, decoder.getWidth(), decoder.getHeight(),
+                                decoder.getLastMessageSize(), decoder.getSequence()));
+                        frames = 0;
+                        start = System.nanoTime();
+                    }
+                }
+            } catch (EOFException e) {
+                System.out.println("Sender disconnected");
+            } catch (IOException e) {
+                System.out.println("Dropped sender: " + e.getMessage());
+            }
+            socket.close();
+        }
+    }
+
+    /**
+     * Reads and decodes the next message of a stream
+     *
+     * @param in Stream written by an <code>EncodingFrameSink</code>
+     * @return true if the message was a frame, false for a palette
+     */
+    public boolean read(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        int length = in.readInt();
+        checkLength(length);
+        if (message.length < length) {
+            message = new byte[length];
+        }
+        in.readFully(message, 0, length);
+        lastMessageSize = PaletteFrameEncoder.HEADER_SIZE + length;
+        return decode(type, ByteBuffer.wrap(message, 0, length));
+    }
+
+    /**
+     * Decodes every message in the buffer
+     *
+     * @param buffer Encoded messages, the position is moved past them
+     * @return true if at least one frame was decoded
+     */
+    public boolean decode(ByteBuffer buffer) throws IOException {
+        boolean frame = false;
+        while (buffer.remaining() >= PaletteFrameEncoder.HEADER_SIZE) {
+            byte type = buffer.get();
+            int length = buffer.getInt();
+            checkLength(length);
+            if (length > buffer.remaining()) {
+                throw new IOException("Message of " + length + " bytes cut off after "
+                        + buffer.remaining());
+            }
+            ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+            buffer.position(buffer.position() + length);
+            frame |= decode(type, payload);
+        }
+        return frame;
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_MESSAGE_SIZE) {
+            throw new IOException("Invalid message length " + length);
+        }
+    }
+
+    private boolean decode(byte type, ByteBuffer payload) throws IOException {
+        if (type == PaletteFrameEncoder.MESSAGE_PALETTE) {
+            if (payload.remaining() < 1) {
+                throw new IOException("Empty palette message");
+            }
+            int count = payload.get() & 0xFF;
+            if (payload.remaining() != count * 3) {
+                throw new IOException("Palette of " + count + " colours in "
+                        + payload.remaining() + " bytes");
+            }
+            palette = new int[count];
+            for (int i = 0; i < count; i++) {
+                palette[i] = 0xFF000000
+                        | (payload.get() & 0xFF) << 16
+                        | (payload.get() & 0xFF) << 8
+                        | (payload.get() & 0xFF);
+            }
+            return false;
+        } else if (type == PaletteFrameEncoder.MESSAGE_FRAME) {
+            if (payload.remaining() < FRAME_HEADER_SIZE) {
+                throw new IOException("Frame message of " + payload.remaining() + " bytes");
+            }
+            long frameSequence = payload.getLong();
+            int frameWidth = payload.getShort() & 0xFFFF;
+            int frameHeight = payload.getShort() & 0xFFFF;
+            int bitsPerBlock = payload.get();
+            // A palette has at most 256 colours
+            if (bitsPerBlock < 1 || bitsPerBlock > 8) {
+                throw new IOException("Invalid bits per block " + bitsPerBlock);
+            }
+            int count = frameWidth * frameHeight;
+            long packed = ((long) count * bitsPerBlock + 7) / 8;
+            if (payload.remaining() != packed) {
+                throw new IOException(frameWidth + "x" + frameHeight + " blocks in "
+                        + payload.remaining() + " bytes");
+            }
+            // Decoded aside, a bad frame leaves the last good one in place
+            int[] decoded = spare(count);
+            int mask = (1 << bitsPerBlock) - 1;
+            long bits = 0;
+            int bitCount = 0;
+            for (int i = 0; i < count; i++) {
+                while (bitCount < bitsPerBlock) {
+                    bits |= (long) (payload.get() & 0xFF) << bitCount;
+                    bitCount += 8;
+                }
+                int index = (int) (bits & mask);
+                if (index >= palette.length) {
+                    throw new IOException("Palette index " + index + " of "
+                            + palette.length + " colours");
+                }
+                decoded[i] = index;
+                bits >>>= bitsPerBlock;
+                bitCount -= bitsPerBlock;
+            }
+            spareIndices = indices;
+            indices = decoded;
+            sequence = frameSequence;
+            width = frameWidth;
+            height = frameHeight;
+            return true;
+        }
+        throw new IOException("Unknown message type " + type);
+    }
+
+    /**
+     * @return the buffer of the frame before the last one, reused if it
+     * has the right size
+     */
+    private int[] spare(int count) {
+        return spareIndices.length == count ? spareIndices : new int[count];
+    }
+
+    /**
+     * @return block index of the latest frame
+     */
+    public int getBlock(int x, int y) {
+        return indices[y * width + x];
+    }
+
+    /**
+     * @return colour of a block of the latest frame as
+     * <code>0xAARRGGBB</code>
+     */
+    public int getRgb(int x, int y) {
+        // The palette may have shrunk since the frame arrived
+        int index = indices[y * width + x];
+        return index < palette.length ? palette[index] : BlockColors.EMPTY;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return bytes of the latest message read from a stream, including its
+     * header
+     */
+    public int getLastMessageSize() {
+        return lastMessageSize;
+    }
+}
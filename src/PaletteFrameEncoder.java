@@ -0,0 +1,141 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * <p>Encodes frames as palette indices with three bits per block.</p>
+ * <p>The game only knows seven block types, so every block is sent as its
+ * index into a palette of colours. The palette itself is only sent at the
+ * start of a session and whenever a colour changes, which currently only
+ * happens for <code>RANDOM_BLOCK</code>. Compared to 24 bit RGB this is an
+ * eighth of the data.</p>
+ *
+ * <p>Every message starts with a one byte type and a four byte big endian
+ * payload length:</p>
+ * <ul>
+ * <li><code>PALETTE</code>: colour count (one byte), then three bytes RGB
+ * per colour</li>
+ * <li><code>FRAME</code>: sequence (eight bytes), width and height (two
+ * bytes each), bits per block (one byte), then the packed indices, row by
+ * row, least significant bit first</li>
+ * </ul>
+ * <p>See {@link PaletteFrameDecoder} for the receiving side.</p>
+ */
+public class PaletteFrameEncoder implements FrameEncoder {
+
+    public static final byte MESSAGE_PALETTE = 1;
+    public static final byte MESSAGE_FRAME = 2;
+
+    /** Bits needed for every block */
+    public static final int BITS_PER_BLOCK = 3;
+
+    /** Size of type and length in front of every message */
+    public static final int HEADER_SIZE = 5;
+
+    private static final int PALETTE_SIZE = Falldown.RANDOM_BLOCK + 1;
+    private static final int FRAME_HEADER_SIZE = 8 + 2 + 2 + 1;
+
+    private final int[] palette = new int[PALETTE_SIZE];
+    private final Random random = new Random();
+    private final int randomColorFrames;
+
+    private boolean paletteSent = false;
+    private int framesSinceRandomColor = 0;
+
+    /**
+     * @param randomColorFrames Number of frames a colour of
+     *                          <code>RANDOM_BLOCK</code> is kept
+     */
+    public PaletteFrameEncoder(int randomColorFrames) {
+        this.randomColorFrames = randomColorFrames;
+        palette[Falldown.EMPTY_BLOCK] = BlockColors.EMPTY;
+        palette[Falldown.NORMAL_BLOCK] = BlockColors.NORMAL;
+        palette[Falldown.FADING_BLOCK] = BlockColors.FADING;
+        palette[Falldown.PLAYER_BLOCK] = BlockColors.PLAYER;
+        palette[Falldown.TREASURE_BLOCK] = BlockColors.TREASURE;
+        palette[Falldown.RED_BLOCK] = BlockColors.RED;
+        palette[Falldown.RANDOM_BLOCK] = BlockColors.randomColor(random);
+    }
+
+    public PaletteFrameEncoder() {
+        this(3);
+    }
+
+    @Override
+    public void encode(GridFrame frame, ByteBuffer target) {
+        int count = frame.getWidth() * frame.getHeight();
+
+        // Pick a new random colour now and then while it is visible
+        framesSinceRandomColor++;
+        if (framesSinceRandomColor >= randomColorFrames && containsRandomBlock(frame, count)) {
+            palette[Falldown.RANDOM_BLOCK] = BlockColors.randomColor(random);
+            framesSinceRandomColor = 0;
+            paletteSent = false;
+        }
+
+        if (!paletteSent) {
+            writePalette(target);
+            paletteSent = true;
+        }
+
+        target.put(MESSAGE_FRAME);
+        target.putInt(FRAME_HEADER_SIZE + packedSize(count));
+        target.putLong(frame.getSequence());
+        target.putShort((short) frame.getWidth());
+        target.putShort((short) frame.getHeight());
+        target.put((byte) BITS_PER_BLOCK);
+
+        long bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < count; i++) {
+            int block = frame.getBlock(i);
+            if (block < 0 || block >= PALETTE_SIZE) {
+                block = Falldown.EMPTY_BLOCK;
+            }
+            bits |= (long) block << bitCount;
+            bitCount += BITS_PER_BLOCK;
+            while (bitCount >= 8) {
+                target.put((byte) bits);
+                bits >>>= 8;
+                bitCount -= 8;
+            }
+        }
+        if (bitCount > 0) {
+            target.put((byte) bits);
+        }
+    }
+
+    private void writePalette(ByteBuffer target) {
+        target.put(MESSAGE_PALETTE);
+        target.putInt(1 + PALETTE_SIZE * 3);
+        target.put((byte) PALETTE_SIZE);
+        for (int color : palette) {
+            target.put((byte) (color >> 16));
+            target.put((byte) (color >> 8));
+            target.put((byte) color);
+        }
+    }
+
+    private boolean containsRandomBlock(GridFrame frame, int count) {
+        for (int i = 0; i < count; i++) {
+            if (frame.getBlock(i) == Falldown.RANDOM_BLOCK) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int packedSize(int blocks) {
+        return (blocks * BITS_PER_BLOCK + 7) / 8;
+    }
+
+    @Override
+    public int getMaxEncodedSize(int width, int height) {
+        return HEADER_SIZE + 1 + PALETTE_SIZE * 3
+                + HEADER_SIZE + FRAME_HEADER_SIZE + packedSize(width * height);
+    }
+
+    @Override
+    public void reset() {
+        paletteSent = false;
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * Output that takes finished colours instead of blocks. Used for outputs
+ * that show more than the block colours, like interpolated frames.
+ */
+public interface PixelSink {
+
+    /**
+     * Sends one picture. The array is only read during the call.
+     *
+     * @param pixels       Colours as <code>0xRRGGBB</code>, row major
+     * @param publishNanos <code>System.nanoTime()</code> of the game tick
+     *                     the picture is based on
+     */
+    void sendPixels(int[] pixels, long publishNanos);
+
+    /**
+     * Releases the output
+     */
+    void close();
+}
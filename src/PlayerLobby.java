@@ -0,0 +1,237 @@
+import hsrw.illumination.client.intern.APIClientIntern;
+import hsrw.illumination.client.intern.arbiter.Player;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Admits players on a background thread.</p>
+ * <p>Players knocking at the game are queued in arrival order. The first
+ * one is accepted as soon as nobody is playing; once the server went live
+ * for that player the game is asked to start. When the game reports the
+ * end of a round, the player is kicked and the next one accepted right
+ * away, so the next round is ready while the death animation is still
+ * running. Players waiting too long, or not going live after being
+ * accepted, are kicked. A new game is scheduled only when nobody is left
+ * waiting.</p>
+ * <p>The render loop only touches two flags: <code>takeStart()</code> and
+ * <code>roundOver()</code>. Every call into the client concerning players
+ * happens on the lobby thread.</p>
+ * <p>The library writes a message straight to the socket without a lock,
+ * players included. Every send holds the monitor of the client, which the
+ * frame loop holds to draw the canvas.</p>
+ */
+public class PlayerLobby implements Runnable {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    /* Interval the client is checked in */
+    private static final long POLL_MILLIS = 5;
+
+    /* Time the server gets to stop live play of a kicked player */
+    private static final long LIVE_STOP_MILLIS = 1000;
+
+    private final APIClientIntern client;
+    private final String scheduleName;
+    private final long waitTimeoutMillis;
+    private final long startTimeoutMillis;
+
+    /* Signals between the render loop and the lobby */
+    private final AtomicBoolean startPending = new AtomicBoolean(false);
+    private final AtomicBoolean roundOver = new AtomicBoolean(false);
+
+    /* Only used by the lobby thread */
+    private final LinkedList<Player> queue = new LinkedList<Player>();
+    private final LinkedList<Long> queuedSince = new LinkedList<Long>();
+    private Player current;
+    private long acceptedAt;
+    private boolean playing = false;
+    private boolean scheduled = false;
+    private boolean liveStopped = true;
+    private long kickedAt;
+
+    private volatile boolean running = false;
+    private volatile int waitingPlayers = 0;
+    private volatile int livePlayerId = -1;
+    private Thread thread;
+
+    /**
+     * @param client             Logged in client
+     * @param scheduleName       Name the game is scheduled with
+     * @param waitTimeoutMillis  Time a player may wait in the queue
+     * @param startTimeoutMillis Time the server gets to go live for an
+     *                           accepted player
+     */
+    public PlayerLobby(APIClientIntern client, String scheduleName,
+                       long waitTimeoutMillis, long startTimeoutMillis) {
+        this.client = client;
+        this.scheduleName = scheduleName;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+        this.startTimeoutMillis = startTimeoutMillis;
+    }
+
+    /**
+     * Starts the lobby thread
+     */
+    public void start() {
+        running = true;
+        thread = new Thread(this, "player-lobby");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the lobby thread after the current check
+     */
+    public void stop() {
+        running = false;
+    }
+
+    // #########################################################################
+    // RENDER LOOP SIDE
+    // #########################################################################
+
+    /**
+     * Takes the request to start a game for the next player
+     *
+     * @return true once per player that went live
+     */
+    public boolean takeStart() {
+        return startPending.get() && startPending.compareAndSet(true, false);
+    }
+
+    /**
+     * Tells the lobby the round of the current player is over
+     */
+    public void roundOver() {
+        roundOver.set(true);
+    }
+
+    /**
+     * @return number of players waiting in the queue
+     */
+    public int getWaitingPlayers() {
+        return waitingPlayers;
+    }
+
+    /**
+     * @return id of the player whose start was taken last, -1 before the
+     * first player went live
+     */
+    public int getLivePlayerId() {
+        return livePlayerId;
+    }
+
+    // #########################################################################
+    // LOBBY THREAD
+    // #########################################################################
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                check(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Lobby check failed " + e);
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+        }
+    }
+
+    private void check(long now) {
+        collectKnockingPlayers(now);
+        dropTimedOutPlayers(now);
+
+        if (!client.isLive()) {
+            liveStopped = true;
+        } else if (!liveStopped && now - kickedAt > LIVE_STOP_MILLIS) {
+            // The server stays live between players
+            liveStopped = true;
+        }
+
+        if (current != null && roundOver.getAndSet(false)) {
+            logger.log(Level.INFO, "Round of player " + current.getId() + " is over");
+            kick(now);
+        }
+
+        if (current == null && !queue.isEmpty()) {
+            current = queue.removeFirst();
+            queuedSince.removeFirst();
+            waitingPlayers = queue.size();
+            synchronized (client) {
+                current.accept();
+            }
+            acceptedAt = now;
+            playing = false;
+            logger.log(Level.INFO, "Player " + current.getId() + " accepted, "
+                    + queue.size() + " waiting");
+        }
+
+        if (current != null && !playing) {
+            if (client.isLive() && liveStopped) {
+                playing = true;
+                roundOver.set(false);
+                livePlayerId = current.getId();
+                startPending.set(true);
+                logger.log(Level.INFO, "Player " + current.getId() + " is live");
+            } else if (now - acceptedAt > startTimeoutMillis) {
+                logger.log(Level.INFO, "Player " + current.getId() + " didn't go live");
+                kick(now);
+            }
+        }
+
+        if (current == null && queue.isEmpty() && !scheduled) {
+            synchronized (client) {
+                client.scheduleAddGame(scheduleName);
+            }
+            scheduled = true;
+            logger.log(Level.INFO, "Game scheduled");
+        }
+    }
+
+    private void collectKnockingPlayers(long now) {
+        while (client.playerWantsToEnterGame()) {
+            Player player = client.getEnteringPlayer();
+            if (player == null) {
+                break;
+            }
+            queue.addLast(player);
+            queuedSince.addLast(now);
+            waitingPlayers = queue.size();
+            // The schedule entry got used up by this player
+            scheduled = false;
+            logger.log(Level.INFO, "Player " + player.getId() + " queued, "
+                    + queue.size() + " waiting");
+        }
+    }
+
+    private void dropTimedOutPlayers(long now) {
+        while (!queue.isEmpty() && now - queuedSince.getFirst() > waitTimeoutMillis) {
+            Player player = queue.removeFirst();
+            queuedSince.removeFirst();
+            waitingPlayers = queue.size();
+            logger.log(Level.INFO, "Player " + player.getId() + " waited too long");
+            synchronized (client) {
+                player.kick();
+            }
+        }
+    }
+
+    private void kick(long now) {
+        synchronized (client) {
+            current.kick();
+        }
+        current = null;
+        playing = false;
+        kickedAt = now;
+        liveStopped = !client.isLive();
+        // A start not taken yet belongs to the kicked player
+        startPending.set(false);
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * <p>Local stand-in for a real output endpoint.</p>
+ * <p>Keeps a copy of the latest frame it received together with its
+ * sequence number, so routers and encoders can be checked without any
+ * hardware or server.</p>
+ */
+public class RecordingFrameSink implements FrameSink {
+
+    private int[] blocks = new int[0];
+    private int width;
+    private int height;
+    private long sequence = -1;
+    private long frameCount = 0;
+
+    @Override
+    public synchronized void sendFrame(GridFrame frame) {
+        if (blocks.length != frame.getWidth() * frame.getHeight()) {
+            blocks = new int[frame.getWidth() * frame.getHeight()];
+        }
+        width = frame.getWidth();
+        height = frame.getHeight();
+        frame.copyBlocks(blocks);
+        sequence = frame.getSequence();
+        frameCount++;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return sequence number of the latest frame or -1 if none was received
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return number of frames received so far
+     */
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    public synchronized int getBlock(int x, int y) {
+        return blocks[y * width + x];
+    }
+
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    public synchronized int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,286 @@
+import hsrw.illumination.client.intern.APIClientIntern;
+import hsrw.illumination.client.intern.arbiter.APIMessage;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Connects a game to the illumination server.</p>
+ * <p>Starts the game for every player the {@link PlayerLobby} admits,
+ * forwards the controls of the player and reports the end of a round back
+ * to the lobby. Used by the applet as well as by headless runners.</p>
+ * <p>With a {@link SessionStatsStore} every game is recorded once it is
+ * lost, won or restarted by the player.</p>
+ * <p>Deaths, levels and wins come from the {@link GameEventBus} of the
+ * game, the session subscribes to whatever game it is updated with. A
+ * round ends with the death of the player or, after the game end animation
+ * was shown for <code>GAME_END_FRAMES</code>, with the win.</p>
+ * <p>Moves are tracked by an {@link InputLatencyTracker} from their
+ * receipt, stamped by a {@link TimedAPIClient}, until the frame loop sent
+ * the first frame showing them.</p>
+ */
+public class ServerSession {
+
+    /*
+    Control constants used by the server
+     */
+    public static final String CTL_LEFT = "1";
+    public static final String CTL_RIGHT = "3";
+    public static final String CTL_SPECIAL = "0";
+
+    /* Time a player may wait for the running round to end */
+    public static final long LOBBY_WAIT_TIMEOUT = 5 * 60 * 1000;
+    /* Time the server gets to go live for an accepted player */
+    public static final long LOBBY_START_TIMEOUT = 10 * 1000;
+    /* Frames the game end animation is shown before the next player */
+    public static final int GAME_END_FRAMES = FalldownApplet.FPS * 5;
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    private final APIClientIntern client;
+    private final PlayerLobby lobby;
+
+    private boolean playerIsGaming = false;
+    /* Frames left of the game end animation of a winner */
+    private int gameEndFrames = 0;
+
+    /* Game the session is subscribed to */
+    private Falldown game;
+
+    private final InputLatencyTracker inputLatency = new InputLatencyTracker();
+
+    /* Statistics of the running game */
+    private final SessionStatsStore stats;
+    private boolean gameRecorded = true;
+    private int gamePlayerId;
+    private long gameStartMillis;
+    private long levelStartMillis;
+    private int gameLevel;
+    private int gameLevelCount;
+    private int gameInputs;
+    private final int[] treasureMillis = new int[SessionStatsStore.MAX_LEVELS];
+
+    /**
+     * Starts the lobby, which schedules the game with the server
+     *
+     * @param client       Logged in client
+     * @param scheduleName Name the game is scheduled with
+     */
+    public ServerSession(APIClientIntern client, String scheduleName) {
+        this(client, scheduleName, null);
+    }
+
+    /**
+     * Starts the lobby, which schedules the game with the server
+     *
+     * @param client       Logged in client
+     * @param scheduleName Name the game is scheduled with
+     * @param stats        Store the games are recorded in, may be null
+     */
+    public ServerSession(APIClientIntern client, String scheduleName,
+                         SessionStatsStore stats) {
+        this.client = client;
+        this.stats = stats;
+        this.lobby = new PlayerLobby(client, scheduleName,
+                LOBBY_WAIT_TIMEOUT, LOBBY_START_TIMEOUT);
+        lobby.start();
+    }
+
+    /**
+     * Starts and ends rounds and applies controls. Has to be called every
+     * frame before the game is updated. Never waits for the server.
+     *
+     * @param falldown Game controlled by this session
+     */
+    public void update(Falldown falldown) {
+        if (falldown != game) {
+            follow(falldown);
+        }
+
+        if (gameEndFrames > 0) {
+            gameEndFrames--;
+        }
+
+        // The next player is ready, start as soon as the death or game end
+        // animation of the previous one is over
+        if (!playerIsGaming && gameEndFrames == 0 && !falldown.isDeathAnimationPlaying()
+                && lobby.takeStart()) {
+            logger.log(Level.INFO, "Starting liveplay");
+            playerIsGaming = true;
+            // Controls left over from the previous round
+            TimedAPIClient.discardPending(client);
+            falldown.resetAndPurge();
+            startGame(lobby.getLivePlayerId());
+        }
+
+        if (playerIsGaming && client.isLive()) {
+            manageServerControls(falldown);
+        }
+    }
+
+    /**
+     * Applies the latest control message of the player
+     *
+     * @param falldown Game controlled by this session
+     */
+    public void manageServerControls(Falldown falldown) {
+        if (client.hasMessageReceived()) {
+            APIMessage m = client.getReceivedMessage();
+            long received = TimedAPIClient.takeReceiptNanos(client);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "Server: " + m.getMessage());
+            }
+            gameInputs++;
+            if (m.getMessage().equals(CTL_LEFT)) {
+                inputLatency.inputReceived(received);
+                falldown.movePlayerLeft();
+                logger.log(Level.INFO, "Client received message: LEFT");
+            } else if (m.getMessage().equals(CTL_RIGHT)) {
+                inputLatency.inputReceived(received);
+                falldown.movePlayerRight();
+                logger.log(Level.INFO, "Client received message: RIGHT");
+            } else if (m.getMessage().equals(CTL_SPECIAL)) {
+                recordGame(Falldown.DeathCause.NONE, false);
+                falldown.resetAndPurge();
+                startGame(gamePlayerId);
+                logger.log(Level.INFO, "Client received message: SPECIAL");
+            }
+        }
+    }
+
+    // #########################################################################
+    // GAME EVENTS
+    // #########################################################################
+
+    /**
+     * Moves the subscription over to another game
+     */
+    private void follow(Falldown falldown) {
+        if (game != null) {
+            game.getEvents().unsubscribe(gameEvents);
+        }
+        game = falldown;
+        falldown.getEvents().subscribe(gameEvents, GameEvent.Type.LEVEL_ADVANCED,
+                GameEvent.Type.GAME_WON, GameEvent.Type.PLAYER_DIED);
+        gameLevelCount = falldown.getLevelCount();
+    }
+
+    /**
+     * Records the game and ends the round once the player died
+     */
+    private final GameEventListener gameEvents = new GameEventListener() {
+
+        @Override
+        public void onGameEvent(GameEvent event) {
+            if (!playerIsGaming) {
+                return;
+            }
+            switch (event.getType()) {
+                case LEVEL_ADVANCED:
+                    levelReached(event.getLevel());
+                    break;
+                case GAME_WON:
+                    levelReached(event.getLevel());
+                    recordGame(Falldown.DeathCause.NONE, true);
+                    // The game end animation never stops by itself
+                    gameEndFrames = GAME_END_FRAMES;
+                    endRound();
+                    break;
+                case PLAYER_DIED:
+                    recordGame(event.getDeathCause(), false);
+                    endRound();
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    /**
+     * Lets the lobby admit the next player while the animation of the
+     * outcome runs
+     */
+    private void endRound() {
+        playerIsGaming = false;
+        lobby.roundOver();
+        inputLatency.clearPending();
+        logger.log(Level.INFO, "Input to canvas " + inputLatency.getLatency());
+    }
+
+    // #########################################################################
+    // STATISTICS
+    // #########################################################################
+
+    private void startGame(int playerId) {
+        long now = System.currentTimeMillis();
+        gameRecorded = false;
+        gamePlayerId = playerId;
+        gameStartMillis = now;
+        levelStartMillis = now;
+        gameLevel = 0;
+        gameInputs = 0;
+        Arrays.fill(treasureMillis, 0);
+    }
+
+    /**
+     * Notes the time to the treasure of the finished level
+     *
+     * @param level Level reached
+     */
+    private void levelReached(int level) {
+        if (gameRecorded || level <= gameLevel) {
+            return;
+        }
+        // The level changes after the treasure animation, close enough
+        // for a time to treasure
+        long now = System.currentTimeMillis();
+        if (gameLevel < treasureMillis.length) {
+            treasureMillis[gameLevel] = (int) (now - levelStartMillis);
+        }
+        levelStartMillis = now;
+        gameLevel = level;
+    }
+
+    private void recordGame(Falldown.DeathCause cause, boolean won) {
+        if (gameRecorded) {
+            return;
+        }
+        gameRecorded = true;
+        if (stats == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        // A won game counts one level past the last one
+        int level = Math.min(gameLevel, gameLevelCount - 1);
+        if (!stats.record(now, gamePlayerId, (int) (now - gameStartMillis), level,
+                cause, won, gameInputs, treasureMillis)
+                && logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Stats queue full, game of player "
+                    + gamePlayerId + " dropped");
+        }
+    }
+
+    /**
+     * @return true while a player is playing
+     */
+    public boolean isPlayerGaming() {
+        return playerIsGaming;
+    }
+
+    /**
+     * @return latency of the moves of every player of this session. The
+     * frame loop reports ticks and sent frames to it.
+     */
+    public InputLatencyTracker getInputLatency() {
+        return inputLatency;
+    }
+
+    public APIClientIntern getClient() {
+        return client;
+    }
+
+    public PlayerLobby getLobby() {
+        return lobby;
+    }
+}
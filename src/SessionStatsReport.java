@@ -0,0 +1,432 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * <p>Answers questions about the games recorded by a
+ * {@link SessionStatsStore}.</p>
+ * <p>The log is compacted into a summary per day and player next to it,
+ * <code>&lt;log&gt;.daily</code>. Every run only folds in the games added
+ * since the last one and rewrites the summaries, then the query runs over
+ * the summaries alone. Weeks of games shrink to a few rows per player and
+ * day, so queries take milliseconds however long the log gets. The log
+ * itself is never changed and may be written while the report runs;
+ * games the writer hasn't committed yet are picked up next time.</p>
+ * <p>Days are UTC. Each row shows games, games won, the mean and highest
+ * level reached, deaths by cause, games reset before they ended, the
+ * time played, controls per minute and the mean and longest time to a
+ * treasure.</p>
+ * <p>Usage: <code>SessionStatsReport log [-from yyyy-MM-dd] [-to yyyy-MM-dd]
+ * [-player id] [-by day|player|total] [-generate games days]</code>.
+ * <code>-generate</code> first appends random games spread over the last
+ * days, to try out the report.</p>
+ */
+public class SessionStatsReport {
+
+    private static final int DAILY_MAGIC = 0x59444446; // "FDDY"
+    private static final int DAILY_VERSION = 1;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final int CAUSES = Falldown.DeathCause.values().length;
+
+    /**
+     * Games of one player on one day
+     */
+    static final class Summary {
+        int day;
+        int playerId;
+        int games;
+        int won;
+        long levelSum;
+        int levelMax;
+        final int[] deaths = new int[CAUSES];
+        long playMillis;
+        long inputs;
+        int treasures;
+        long treasureMillisSum;
+        int treasureMillisMax;
+
+        Summary(int day, int playerId) {
+            this.day = day;
+            this.playerId = playerId;
+        }
+
+        void add(Summary other) {
+            games += other.games;
+            won += other.won;
+            levelSum += other.levelSum;
+            levelMax = Math.max(levelMax, other.levelMax);
+            for (int i = 0; i < CAUSES; i++) {
+                deaths[i] += other.deaths[i];
+            }
+            playMillis += other.playMillis;
+            inputs += other.inputs;
+            treasures += other.treasures;
+            treasureMillisSum += other.treasureMillisSum;
+            treasureMillisMax = Math.max(treasureMillisMax, other.treasureMillisMax);
+        }
+    }
+
+    private final File logFile;
+    private final File dailyFile;
+    private final Map<Long, Summary> summaries = new HashMap<Long, Summary>();
+    private long compactedRecords = 0;
+
+    public SessionStatsReport(File logFile) {
+        this.logFile = logFile;
+        this.dailyFile = new File(logFile.getPath() + ".daily");
+    }
+
+    // #########################################################################
+    // COMPACTION
+    // #########################################################################
+
+    /**
+     * Reads the summaries written by the last run
+     */
+    public void loadSummaries() throws IOException {
+        summaries.clear();
+        compactedRecords = 0;
+        if (!dailyFile.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(dailyFile), 1 << 16));
+        try {
+            if (in.readInt() != DAILY_MAGIC || in.readInt() != DAILY_VERSION
+                    || in.readInt() != CAUSES) {
+                throw new IOException(dailyFile + " is not a summary of this version");
+            }
+            compactedRecords = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Summary summary = new Summary(in.readInt(), in.readInt());
+                summary.games = in.readInt();
+                summary.won = in.readInt();
+                summary.levelSum = in.readLong();
+                summary.levelMax = in.readInt();
+                for (int c = 0; c < CAUSES; c++) {
+                    summary.deaths[c] = in.readInt();
+                }
+                summary.playMillis = in.readLong();
+                summary.inputs = in.readLong();
+                summary.treasures = in.readInt();
+                summary.treasureMillisSum = in.readLong();
+                summary.treasureMillisMax = in.readInt();
+                summaries.put(key(summary.day, summary.playerId), summary);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Folds the games committed to the log since the last run into the
+     * summaries
+     *
+     * @return number of games folded in
+     */
+    public long compact() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(logFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, SessionStatsStore.HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != SessionStatsStore.MAGIC
+                    || header.getInt(8) != SessionStatsStore.RECORD_SIZE) {
+                throw new IOException(logFile + " is not a stats log");
+            }
+            long committed = header.getLong(SessionStatsStore.OFFSET_COUNT);
+            if (committed < compactedRecords) {
+                throw new IOException(logFile + " holds fewer games than "
+                        + dailyFile + ", delete the summaries to start over");
+            }
+            long first = compactedRecords;
+            // Mapped in parts so a log may grow past 2 GB
+            long perMap = Integer.MAX_VALUE / SessionStatsStore.RECORD_SIZE;
+            for (long start = first; start < committed; start += perMap) {
+                int count = (int) Math.min(perMap, committed - start);
+                MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY,
+                        SessionStatsStore.HEADER_SIZE + start * SessionStatsStore.RECORD_SIZE,
+                        (long) count * SessionStatsStore.RECORD_SIZE);
+                records.order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < count; i++) {
+                    fold(records, i * SessionStatsStore.RECORD_SIZE);
+                }
+            }
+            compactedRecords = committed;
+            return committed - first;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void fold(MappedByteBuffer records, int offset) {
+        long endMillis = records.getLong(offset);
+        int playerId = records.getInt(offset + 8);
+        int day = (int) (endMillis / DAY_MILLIS);
+        Long key = key(day, playerId);
+        Summary summary = summaries.get(key);
+        if (summary == null) {
+            summary = new Summary(day, playerId);
+            summaries.put(key, summary);
+        }
+        int level = records.getInt(offset + 16);
+        int cause = records.getInt(offset + 20);
+        summary.games++;
+        summary.won += records.getInt(offset + 24);
+        summary.levelSum += level;
+        summary.levelMax = Math.max(summary.levelMax, level);
+        if (cause >= 0 && cause < CAUSES) {
+            summary.deaths[cause]++;
+        }
+        summary.playMillis += records.getInt(offset + 12);
+        summary.inputs += records.getInt(offset + 28);
+        for (int i = 0; i < SessionStatsStore.MAX_LEVELS; i++) {
+            int millis = records.getInt(offset + 32 + i * 4);
+            if (millis > 0) {
+                summary.treasures++;
+                summary.treasureMillisSum += millis;
+                summary.treasureMillisMax = Math.max(summary.treasureMillisMax, millis);
+            }
+        }
+    }
+
+    /**
+     * Writes the summaries next to the log. A crash while writing leaves the
+     * previous summaries in place.
+     */
+    public void saveSummaries() throws IOException {
+        File temporary = new File(dailyFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary), 1 << 16));
+        try {
+            out.writeInt(DAILY_MAGIC);
+            out.writeInt(DAILY_VERSION);
+            out.writeInt(CAUSES);
+            out.writeLong(compactedRecords);
+            out.writeInt(summaries.size());
+            for (Summary summary : summaries.values()) {
+                out.writeInt(summary.day);
+                out.writeInt(summary.playerId);
+                out.writeInt(summary.games);
+                out.writeInt(summary.won);
+                out.writeLong(summary.levelSum);
+                out.writeInt(summary.levelMax);
+                for (int c = 0; c < CAUSES; c++) {
+                    out.writeInt(summary.deaths[c]);
+                }
+                out.writeLong(summary.playMillis);
+                out.writeLong(summary.inputs);
+                out.writeInt(summary.treasures);
+                out.writeLong(summary.treasureMillisSum);
+                out.writeInt(summary.treasureMillisMax);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(dailyFile)) {
+            // Some platforms don't replace on rename
+            dailyFile.delete();
+            if (!temporary.renameTo(dailyFile)) {
+                throw new IOException("Could not replace " + dailyFile);
+            }
+        }
+    }
+
+    private static Long key(int day, int playerId) {
+        return ((long) day << 32) | (playerId & 0xFFFFFFFFL);
+    }
+
+    // #########################################################################
+    // QUERIES
+    // #########################################################################
+
+    /**
+     * Adds up the summaries of a range of days
+     *
+     * @param fromDay  First day, days since the epoch
+     * @param toDay    Last day, included
+     * @param playerId Only games of this player, null for everyone
+     * @param by       "day", "player" or "total"
+     * @return one summary per group, ordered by day or player
+     */
+    public List<Summary> query(int fromDay, int toDay, Integer playerId, String by) {
+        Map<Long, Summary> groups = new HashMap<Long, Summary>();
+        for (Summary summary : summaries.values()) {
+            if (summary.day < fromDay || summary.day > toDay
+                    || (playerId != null && summary.playerId != playerId)) {
+                continue;
+            }
+            int day = by.equals("day") ? summary.day : 0;
+            int player = by.equals("player") ? summary.playerId : 0;
+            Long key = key(day, player);
+            Summary group = groups.get(key);
+            if (group == null) {
+                group = new Summary(day, player);
+                groups.put(key, group);
+            }
+            group.add(summary);
+        }
+        List<Long> keys = new ArrayList<Long>(groups.keySet());
+        Collections.sort(keys);
+        List<Summary> result = new ArrayList<Summary>(keys.size());
+        for (Long key : keys) {
+            result.add(groups.get(key));
+        }
+        return result;
+    }
+
+    public int getSummaryCount() {
+        return summaries.size();
+    }
+
+    public long getCompactedRecords() {
+        return compactedRecords;
+    }
+
+    // #########################################################################
+    // STANDALONE
+    // #########################################################################
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: SessionStatsReport log [-from yyyy-MM-dd] "
+                    + "[-to yyyy-MM-dd] [-player id] [-by day|player|total] "
+                    + "[-generate games days]");
+            System.exit(2);
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        File log = new File(args[0]);
+        int fromDay = Integer.MIN_VALUE;
+        int toDay = Integer.MAX_VALUE;
+        Integer playerId = null;
+        String by = "day";
+        int generateGames = 0;
+        int generateDays = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-from")) {
+                fromDay = parseDay(dateFormat, args[++i]);
+            } else if (args[i].equals("-to")) {
+                toDay = parseDay(dateFormat, args[++i]);
+            } else if (args[i].equals("-player")) {
+                playerId = Integer.valueOf(args[++i]);
+            } else if (args[i].equals("-by")) {
+                by = args[++i];
+            } else if (args[i].equals("-generate")) {
+                generateGames = Integer.parseInt(args[++i]);
+                generateDays = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+        if (!by.equals("day") && !by.equals("player") && !by.equals("total")) {
+            System.err.println("Unknown grouping " + by);
+            System.exit(2);
+        }
+
+        if (generateGames > 0) {
+            generate(log, generateGames, generateDays);
+        }
+
+        SessionStatsReport report = new SessionStatsReport(log);
+        long start = System.nanoTime();
+        report.loadSummaries();
+        long added = report.compact();
+        if (added > 0) {
+            report.saveSummaries();
+        }
+        long compacted = System.nanoTime();
+        List<Summary> rows = report.query(fromDay, toDay, playerId, by);
+        long queried = System.nanoTime();
+
+        System.out.println(String.format("%-12s %7s %6s %6s %4s %7s %7s %7s %8s %8s %9s %9s",
+                by, "games", "won", "level", "max", "pushed", "fell", "reset",
+                "hours", "inputs/m", "treasure", "longest"));
+        for (Summary row : rows) {
+            String name;
+            if (by.equals("day")) {
+                name = dateFormat.format(new Date(row.day * DAY_MILLIS));
+            } else if (by.equals("player")) {
+                name = String.valueOf(row.playerId);
+            } else {
+                name = "total";
+            }
+            double minutes = row.playMillis / 60000.0;
+            System.out.println(String.format(
+                    "%-12s %7d %6d %6.2f %4d %7d %7d %7d %8.1f %8.1f %8.1fs %8.1fs",
+                    name, row.games, row.won, (double) row.levelSum / row.games, row.levelMax,
+                    row.deaths[Falldown.DeathCause.PUSHED_OUT_TOP.ordinal()],
+                    row.deaths[Falldown.DeathCause.FELL_TO_BOTTOM.ordinal()],
+                    // Games without a death that weren't won were reset
+                    row.deaths[Falldown.DeathCause.NONE.ordinal()] - row.won,
+                    minutes / 60, minutes > 0 ? row.inputs / minutes : 0,
+                    row.treasures > 0 ? row.treasureMillisSum / 1000.0 / row.treasures : 0,
+                    row.treasureMillisMax / 1000.0));
+        }
+        System.out.println(String.format(
+                "%d games in the log, %d new compacted in %.1f ms, "
+                        + "query over %d summaries in %.2f ms",
+                report.getCompactedRecords(), added, (compacted - start) / 1e6,
+                report.getSummaryCount(), (queried - compacted) / 1e6));
+        System.exit(0);
+    }
+
+    private static int parseDay(SimpleDateFormat dateFormat, String date) throws ParseException {
+        return (int) (dateFormat.parse(date).getTime() / DAY_MILLIS);
+    }
+
+    /**
+     * Appends random games through a store, like a wall with a few hundred
+     * regular players would
+     */
+    private static void generate(File log, int games, int days) throws IOException {
+        Random random = new Random();
+        SessionStatsStore store = new SessionStatsStore(log, 4096);
+        long now = System.currentTimeMillis();
+        int[] treasureMillis = new int[SessionStatsStore.MAX_LEVELS];
+        Falldown.DeathCause[] causes = Falldown.DeathCause.values();
+        for (int i = 0; i < games; i++) {
+            int levels = LevelParameters.DEFAULT.getLevelCount();
+            boolean won = random.nextInt(50) == 0;
+            int level = won ? levels - 1 : random.nextInt(levels);
+            int duration = 0;
+            for (int l = 0; l < treasureMillis.length; l++) {
+                treasureMillis[l] = l < level || won && l < level + 1
+                        ? 2000 + random.nextInt(20000) : 0;
+                duration += treasureMillis[l];
+            }
+            duration += won ? 0 : random.nextInt(15000);
+            long end = now - (long) (random.nextDouble() * days * DAY_MILLIS);
+            while (!store.record(end, random.nextInt(300), duration, level,
+                    won ? causes[0] : causes[1 + random.nextInt(causes.length - 1)], won,
+                    duration / 250 + random.nextInt(20), treasureMillis)) {
+                Thread.yield();
+            }
+        }
+        store.close();
+    }
+}
@@ -0,0 +1,307 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Keeps a record of every game in an append-only file.</p>
+ * <p>Games are handed over to a bounded lock-free queue and written by a
+ * background thread into a memory mapped log of fixed-size records. The
+ * thread flushes the log to disk in batches and only then moves the
+ * record count in the header forward, so a crash loses at most the last
+ * batch and never leaves a torn record behind the count. A game that
+ * doesn't fit into a full queue is dropped and counted; recording never
+ * waits.</p>
+ * <p>Layout, little endian: a header of <code>HEADER_SIZE</code> bytes with
+ * magic <code>FDST</code>, version, record size and the number of records
+ * at offset 16. Records of <code>RECORD_SIZE</code> bytes follow:</p>
+ * <pre>
+ *  0 long end of the game, milliseconds since the epoch
+ *  8 int  player id, -1 if unknown
+ * 12 int  duration in milliseconds
+ * 16 int  highest level reached, starting at 0
+ * 20 int  ordinal of the death cause, 0 if the player survived
+ * 24 int  1 if every level was completed
+ * 28 int  controls sent by the player
+ * 32 int  milliseconds to the treasure of level 0 to 7, 0 if not reached
+ * </pre>
+ * <p>{@link SessionStatsReport} reads the log.</p>
+ */
+public class SessionStatsStore implements Runnable {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    static final int MAGIC = 0x54534446; // "FDST"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int OFFSET_COUNT = 16;
+    static final int RECORD_SIZE = 64;
+    static final int RECORD_INTS = RECORD_SIZE / 4;
+
+    /* Levels with a time to treasure in a record */
+    public static final int MAX_LEVELS = 8;
+
+    /* The log grows by this many records at once */
+    private static final int SEGMENT_RECORDS = 16384;
+
+    /* Flush after this many records or this much time */
+    private static final int FLUSH_RECORDS = 256;
+    private static final long FLUSH_MILLIS = 1000;
+
+    /* Pause of the writer while the queue is empty */
+    private static final long IDLE_MILLIS = 10;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer segment;
+    private long segmentStart;
+
+    /* Queue of records, slot i holds ints i * RECORD_INTS onwards */
+    private final int capacity;
+    private final int[] slots;
+    private final AtomicLongArray slotSequence;
+    private final AtomicLong enqueued = new AtomicLong();
+    private long dequeued = 0;
+
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private volatile long storedRecords;
+    private long writtenRecords;
+
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    /**
+     * Opens a log, creating it if it doesn't exist, and starts the writer
+     *
+     * @param path          Log file
+     * @param queueCapacity Records that may wait for the writer, rounded up
+     *                      to a power of two
+     */
+    public SessionStatsStore(File path, int queueCapacity) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        boolean created = file.length() == 0;
+        if (created) {
+            file.setLength(HEADER_SIZE);
+        }
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        if (created) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, RECORD_SIZE);
+            header.putLong(OFFSET_COUNT, 0);
+            header.force();
+        } else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                || header.getInt(8) != RECORD_SIZE) {
+            file.close();
+            throw new IOException(path + " is not a stats log");
+        }
+        // Anything behind the count was never flushed completely
+        storedRecords = header.getLong(OFFSET_COUNT);
+        writtenRecords = storedRecords;
+
+        capacity = Integer.highestOneBit(Math.max(2, queueCapacity - 1)) << 1;
+        slots = new int[capacity * RECORD_INTS];
+        slotSequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slotSequence.set(i, i);
+        }
+
+        thread = new Thread(this, "stats-writer");
+        thread.setDaemon(true);
+        thread.start();
+        logger.log(Level.INFO, "Stats log " + path + " holds " + storedRecords + " games");
+    }
+
+    // #########################################################################
+    // GAME SIDE
+    // #########################################################################
+
+    /**
+     * Queues the record of a finished game. Never blocks and doesn't
+     * allocate; may be called from any thread.
+     *
+     * @param endMillis      End of the game, milliseconds since the epoch
+     * @param playerId       Player id, -1 if unknown
+     * @param durationMillis Duration of the game
+     * @param level          Highest level reached, starting at 0
+     * @param deathCause     What killed the player
+     * @param won            True if every level was completed
+     * @param inputs         Controls sent by the player
+     * @param treasureMillis Time to the treasure per level, 0 if not
+     *                       reached. Only the first <code>MAX_LEVELS</code>
+     *                       are kept.
+     * @return false if the queue was full and the game got dropped
+     */
+    public boolean record(long endMillis, int playerId, int durationMillis, int level,
+                          Falldown.DeathCause deathCause, boolean won, int inputs,
+                          int[] treasureMillis) {
+        long position;
+        int slot;
+        while (true) {
+            position = enqueued.get();
+            slot = (int) (position & (capacity - 1));
+            long difference = slotSequence.get(slot) - position;
+            if (difference == 0) {
+                if (enqueued.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                droppedRecords.incrementAndGet();
+                return false;
+            }
+        }
+
+        int offset = slot * RECORD_INTS;
+        slots[offset] = (int) endMillis;
+        slots[offset + 1] = (int) (endMillis >>> 32);
+        slots[offset + 2] = playerId;
+        slots[offset + 3] = durationMillis;
+        slots[offset + 4] = level;
+        slots[offset + 5] = deathCause.ordinal();
+        slots[offset + 6] = won ? 1 : 0;
+        slots[offset + 7] = inputs;
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            slots[offset + 8 + i] = i < treasureMillis.length ? treasureMillis[i] : 0;
+        }
+        // Hands the slot to the writer
+        slotSequence.set(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Writes the remaining records, flushes and closes the log
+     */
+    public void close() {
+        // No interrupt, it would close the channel of a writer mapping
+        running = false;
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Closing stats log failed " + e);
+        }
+    }
+
+    // #########################################################################
+    // WRITER THREAD
+    // #########################################################################
+
+    @Override
+    public void run() {
+        long lastFlush = System.currentTimeMillis();
+        try {
+            while (running) {
+                boolean wroteAny = drain();
+                long now = System.currentTimeMillis();
+                long pending = writtenRecords - storedRecords;
+                if (pending >= FLUSH_RECORDS || (pending > 0 && now - lastFlush >= FLUSH_MILLIS)) {
+                    flush();
+                    lastFlush = now;
+                }
+                if (!wroteAny) {
+                    try {
+                        Thread.sleep(IDLE_MILLIS);
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+            }
+            drain();
+            flush();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Stats log failed, games are no longer recorded " + e);
+        }
+    }
+
+    /**
+     * Copies every queued record into the log
+     *
+     * @return true if there was at least one
+     */
+    private boolean drain() throws IOException {
+        boolean wroteAny = false;
+        while (true) {
+            int slot = (int) (dequeued & (capacity - 1));
+            if (slotSequence.get(slot) != dequeued + 1) {
+                return wroteAny;
+            }
+            write(slot * RECORD_INTS);
+            slotSequence.set(slot, dequeued + capacity);
+            dequeued++;
+            wroteAny = true;
+        }
+    }
+
+    private void write(int offset) throws IOException {
+        long index = writtenRecords;
+        if (segment == null || index >= segmentStart + SEGMENT_RECORDS) {
+            mapSegment(index);
+        }
+        int position = (int) (index - segmentStart) * RECORD_SIZE;
+        for (int i = 0; i < RECORD_INTS; i++) {
+            segment.putInt(position + i * 4, slots[offset + i]);
+        }
+        writtenRecords++;
+    }
+
+    /**
+     * Maps the part of the file holding a record, growing the file
+     */
+    private void mapSegment(long index) throws IOException {
+        if (segment != null) {
+            // Everything in the old segment has to be on disk before the
+            // count can move past it
+            segment.force();
+        }
+        segmentStart = index - index % SEGMENT_RECORDS;
+        long offset = HEADER_SIZE + segmentStart * RECORD_SIZE;
+        long size = (long) SEGMENT_RECORDS * RECORD_SIZE;
+        if (file.length() < offset + size) {
+            file.setLength(offset + size);
+        }
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Puts the written records on disk, then commits them in the header
+     */
+    private void flush() {
+        if (writtenRecords == storedRecords) {
+            return;
+        }
+        if (segment != null) {
+            segment.force();
+        }
+        header.putLong(OFFSET_COUNT, writtenRecords);
+        header.force();
+        storedRecords = writtenRecords;
+    }
+
+    /**
+     * @return games committed to the log, including earlier runs
+     */
+    public long getStoredRecords() {
+        return storedRecords;
+    }
+
+    /**
+     * @return games dropped because the queue was full
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+}
@@ -0,0 +1,256 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * <p>Checks a {@link ShardedOutputRouter} against stand-in endpoints.</p>
+ * <p>Random frames are routed to three shards of a grid that doesn't split
+ * evenly, so the last shard is wider. The first shard goes to a
+ * {@link RecordingFrameSink}, the other two are sent as palette streams
+ * over TCP to local receivers that decode them with a
+ * {@link PaletteFrameDecoder}. Every shard that arrives has to match its
+ * region of the source frame with the sequence number it was sent with,
+ * and every endpoint has to end up at the last frame.</p>
+ * <p>A second router has an endpoint that never returns. Only the frame
+ * that hangs it may wait for <code>SEND_TIMEOUT_NANOS</code>, all frames
+ * together must take well under two timeouts, and the healthy endpoint has
+ * to get every frame. Exits with status 1 if anything is off,
+ * so it can guard a build.</p>
+ * <p>Usage: <code>ShardCheck [-frames n] [-width n] [-height n]</code></p>
+ */
+public class ShardCheck {
+
+    private static final int COLUMNS = 3;
+
+    /* Time the receivers get to catch up with the last frame */
+    private static final long SETTLE_MILLIS = 2000;
+
+    /**
+     * Decodes the palette stream of one shard and compares it with the
+     * source frames
+     */
+    static class Receiver implements Runnable {
+        final ServerSocket server;
+        final Map<Long, int[]> sent;
+        final int fromX;
+        final int gridWidth;
+        final AtomicLong frames = new AtomicLong();
+        final AtomicLong mismatches = new AtomicLong();
+        volatile long sequence = -1;
+
+        Receiver(Map<Long, int[]> sent, int fromX, int gridWidth) throws IOException {
+            this.server = new ServerSocket(0);
+            this.sent = sent;
+            this.fromX = fromX;
+            this.gridWidth = gridWidth;
+            Thread thread = new Thread(this, "shard-check-receiver-" + fromX);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            PaletteFrameDecoder decoder = new PaletteFrameDecoder();
+            try {
+                Socket socket = server.accept();
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream()));
+                while (true) {
+                    if (!decoder.read(in)) {
+                        continue;
+                    }
+                    int[] source = sent.get(decoder.getSequence());
+                    if (source == null || !matches(decoder, source)) {
+                        mismatches.incrementAndGet();
+                    }
+                    frames.incrementAndGet();
+                    sequence = decoder.getSequence();
+                }
+            } catch (EOFException e) {
+                // The sink closed the connection
+            } catch (IOException e) {
+                System.out.println("Shard at " + fromX + " failed: " + e.getMessage());
+                mismatches.incrementAndGet();
+            }
+        }
+
+        private boolean matches(PaletteFrameDecoder decoder, int[] source) {
+            for (int y = 0; y < decoder.getHeight(); y++) {
+                for (int x = 0; x < decoder.getWidth(); x++) {
+                    if (decoder.getBlock(x, y) != source[y * gridWidth + fromX + x]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int frames = 2000;
+        int width = 10;
+        int height = 14;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-frames")) {
+                frames = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-width")) {
+                width = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-height")) {
+                height = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+        FalldownApplet.getLogger().setLevel(Level.WARNING);
+
+        boolean passed = checkContents(frames, width, height);
+        passed &= checkHungEndpoint(width, height);
+        System.out.println(passed ? "OK" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Routes random frames and compares what every endpoint got
+     */
+    static boolean checkContents(int frames, int width, int height) throws Exception {
+        int[] shardX = ShardedOutputRouter.splitColumns(width, COLUMNS, COLUMNS);
+        Map<Long, int[]> sent = new ConcurrentHashMap<Long, int[]>();
+        RecordingFrameSink recording = new RecordingFrameSink();
+        Receiver[] receivers = new Receiver[shardX.length - 1];
+        FrameSink[] endpoints = new FrameSink[shardX.length];
+        endpoints[0] = recording;
+        for (int i = 1; i < shardX.length; i++) {
+            receivers[i - 1] = new Receiver(sent, shardX[i], width);
+            endpoints[i] = new EncodingFrameSink(new InetSocketAddress("127.0.0.1",
+                    receivers[i - 1].server.getLocalPort()), new PaletteFrameEncoder());
+        }
+        ShardedOutputRouter router = new ShardedOutputRouter(endpoints, shardX, width, height);
+
+        FramePublisher publisher = new FramePublisher(width, height);
+        Random random = new Random(1);
+        int[][] grid = new int[width][height];
+        int[] blocks = new int[width * height];
+        long recorded = 0;
+        long recordingMismatches = 0;
+        long last = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    grid[x][y] = random.nextInt(Falldown.RANDOM_BLOCK + 1);
+                }
+            }
+            publisher.publish(grid);
+            GridFrame source = publisher.acquire();
+            source.copyBlocks(blocks);
+            sent.put(source.getSequence(), blocks.clone());
+            router.sendFrame(source);
+            last = source.getSequence();
+            source.release();
+
+            if (recording.getSequence() == last) {
+                recorded++;
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < recording.getWidth(); x++) {
+                        if (recording.getBlock(x, y) != blocks[y * width + x]) {
+                            recordingMismatches++;
+                            y = height;
+                            break;
+                        }
+                    }
+                }
+            }
+            // The encoding sinks drop frames while connecting, give them time
+            Thread.sleep(1);
+        }
+
+        // Sent again until every receiver has the last frame
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        boolean settled = false;
+        while (!settled && System.currentTimeMillis() < deadline) {
+            GridFrame source = publisher.acquire();
+            router.sendFrame(source);
+            source.release();
+            Thread.sleep(10);
+            settled = true;
+            for (Receiver receiver : receivers) {
+                settled &= receiver.sequence == last;
+            }
+        }
+        router.close();
+
+        boolean passed = recordingMismatches == 0 && recorded > 0 && settled;
+        System.out.println("shard 0: " + recording.getWidth() + " wide, " + recorded
+                + " frames, " + recordingMismatches + " mismatches, recording");
+        for (int i = 0; i < receivers.length; i++) {
+            Receiver receiver = receivers[i];
+            System.out.println("shard " + (i + 1) + ": "
+                    + ShardedOutputRouter.getShardWidth(shardX, i + 1, width) + " wide, "
+                    + receiver.frames.get() + " frames, " + receiver.mismatches.get()
+                    + " mismatches, last sequence " + receiver.sequence + " of " + last);
+            passed &= receiver.mismatches.get() == 0 && receiver.frames.get() > 0;
+        }
+        System.out.println("dropped shards " + router.getDroppedShards());
+        return passed;
+    }
+
+    /**
+     * Sends through a router with an endpoint that hangs
+     */
+    static boolean checkHungEndpoint(int width, int height) throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        FrameSink hung = new FrameSink() {
+
+            @Override
+            public void sendFrame(GridFrame frame) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void close() {
+                release.countDown();
+            }
+        };
+        RecordingFrameSink healthy = new RecordingFrameSink();
+        ShardedOutputRouter router = ShardedOutputRouter.byColumns(
+                new FrameSink[]{healthy, hung, new RecordingFrameSink()}, width, height, COLUMNS);
+
+        FramePublisher publisher = new FramePublisher(width, height);
+        int[][] grid = new int[width][height];
+        int frames = FalldownApplet.FPS * 2;
+        long total = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            publisher.publish(grid);
+            GridFrame source = publisher.acquire();
+            long start = System.nanoTime();
+            router.sendFrame(source);
+            total += System.nanoTime() - start;
+            source.release();
+        }
+        long dropped = router.getDroppedShards();
+        router.close();
+
+        // The first frame waits for the hung endpoint, the skipped ones
+        // must cost next to nothing
+        boolean passed = total < ShardedOutputRouter.SEND_TIMEOUT_NANOS * 3 / 2
+                && healthy.getFrameCount() == frames && dropped == frames - 1;
+        System.out.println(String.format("hung endpoint: %.1f ms for %d sends, %.2f ms mean, "
+                        + "healthy shard got %d of %d frames, %d shards dropped", total / 1e6,
+                frames, total / 1e6 / frames, healthy.getFrameCount(), frames, dropped));
+        return passed;
+    }
+}
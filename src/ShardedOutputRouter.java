@@ -0,0 +1,236 @@
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Splits every frame into vertical shards and sends each shard to its
+ * own endpoint.</p>
+ * <p>Used for facades that are driven by several controllers, one segment
+ * each. All shards of a frame are sent in parallel and carry the sequence
+ * number of the source frame, so the segments can stay in sync. The router
+ * waits until every shard of a frame has been handed over before accepting
+ * the next one, which keeps a slow segment from falling behind the
+ * others. It waits <code>SEND_TIMEOUT_NANOS</code> at most: an endpoint
+ * that is still busy with an earlier shard skips the frame and isn't
+ * waited for, so a hung controller costs its own segment frames and the
+ * game a single timeout.
+ * The sequence number only reaches the wire if the protocol of the
+ * endpoint has one, like the stream of an {@link EncodingFrameSink}.</p>
+ * <p>Every shard has its own thread which is handed the shard directly, so
+ * routing a frame doesn't allocate anything.</p>
+ */
+public class ShardedOutputRouter implements FrameSink {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    /* Longest wait for the endpoints of one frame */
+    public static final long SEND_TIMEOUT_NANOS = 1000000000L / FalldownApplet.FPS;
+
+    private final FrameSink[] endpoints;
+    private final int[] shardX;
+    private final FramePublisher[] shardBuffers;
+    private final ShardWorker[] workers;
+
+    /* Thread waiting in sendFrame() */
+    private volatile Thread sender;
+    private volatile boolean closed = false;
+    /* Render thread only */
+    private long droppedShards = 0;
+    /* Workers handed a shard of the current frame, render thread only */
+    private final boolean[] handed;
+
+    /**
+     * Creates a router with explicit shard bounds.
+     *
+     * @param endpoints  One endpoint per shard
+     * @param shardX     Left border of every shard, ascending
+     * @param gridWidth  Width of the incoming frames
+     * @param gridHeight Height of the incoming frames
+     */
+    public ShardedOutputRouter(FrameSink[] endpoints, int[] shardX,
+                               int gridWidth, int gridHeight) {
+        if (endpoints.length != shardX.length) {
+            throw new IllegalArgumentException("Every shard needs exactly one endpoint");
+        }
+        this.endpoints = endpoints.clone();
+        this.shardX = shardX.clone();
+        this.shardBuffers = new FramePublisher[endpoints.length];
+        this.workers = new ShardWorker[endpoints.length];
+        this.handed = new boolean[endpoints.length];
+        for (int i = 0; i < endpoints.length; i++) {
+            int width = getShardWidth(shardX, i, gridWidth);
+            if (width <= 0) {
+                throw new IllegalArgumentException("Shard " + i + " is empty");
+            }
+            shardBuffers[i] = new FramePublisher(width, gridHeight);
+            workers[i] = new ShardWorker(this.endpoints[i], "shard-output-" + i);
+        }
+    }
+
+    /**
+     * Creates a router that splits the game columns evenly between the
+     * endpoints. The number of columns has to be a multiple of the number
+     * of endpoints.
+     *
+     * @param endpoints  One endpoint per group of columns
+     * @param gridWidth  Width of the incoming frames
+     * @param gridHeight Height of the incoming frames
+     * @param columns    Number of columns in the game
+     * @return new router
+     */
+    public static ShardedOutputRouter byColumns(FrameSink[] endpoints,
+                                                int gridWidth, int gridHeight,
+                                                int columns) {
+        return new ShardedOutputRouter(endpoints,
+                splitColumns(gridWidth, columns, endpoints.length), gridWidth, gridHeight);
+    }
+
+    /**
+     * Splits the game columns evenly into shards. The last shard also gets
+     * the blocks that don't belong to a full column.
+     *
+     * @param gridWidth Width of the frames
+     * @param columns   Number of columns in the game
+     * @param shards    Number of shards, has to divide the columns
+     * @return left border of every shard
+     */
+    public static int[] splitColumns(int gridWidth, int columns, int shards) {
+        if (columns % shards != 0) {
+            throw new IllegalArgumentException(columns + " columns can't be split into "
+                    + shards + " segments");
+        }
+        int shardWidth = (gridWidth / columns) * (columns / shards);
+        int[] shardX = new int[shards];
+        for (int i = 0; i < shardX.length; i++) {
+            shardX[i] = i * shardWidth;
+        }
+        return shardX;
+    }
+
+    /**
+     * @param shardX    Left borders as returned by <code>splitColumns()</code>
+     * @param shard     Index of the shard
+     * @param gridWidth Width of the frames
+     * @return width of the shard
+     */
+    public static int getShardWidth(int[] shardX, int shard, int gridWidth) {
+        int end = shard + 1 < shardX.length ? shardX[shard + 1] : gridWidth;
+        return end - shardX[shard];
+    }
+
+    @Override
+    public void sendFrame(GridFrame frame) {
+        sender = Thread.currentThread();
+        for (int i = 0; i < workers.length; i++) {
+            handed[i] = !workers[i].busy;
+            if (!handed[i]) {
+                // Still sending an earlier shard, this segment skips the
+                // frame and isn't waited for
+                droppedShards++;
+                continue;
+            }
+            workers[i].hand(shardBuffers[i].crop(frame, shardX[i], 0));
+        }
+        long deadline = System.nanoTime() + SEND_TIMEOUT_NANOS;
+        while (anyBusy() && !closed) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "Shards of frame " + frame.getSequence()
+                            + " not sent in time");
+                }
+                return;
+            }
+            LockSupport.parkNanos(this, left);
+            if (Thread.interrupted()) {
+                logger.log(Level.WARNING, "Interrupted while sending shards");
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true while a shard of the current frame is being sent
+     */
+    private boolean anyBusy() {
+        for (int i = 0; i < workers.length; i++) {
+            if (handed[i] && workers[i].busy) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (ShardWorker worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+        for (FrameSink endpoint : endpoints) {
+            endpoint.close();
+        }
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return endpoints.length;
+    }
+
+    /**
+     * @return shards skipped because their endpoint was still busy
+     */
+    public long getDroppedShards() {
+        return droppedShards;
+    }
+
+    /**
+     * Sends the shards of one endpoint on its own thread. A shard is handed
+     * over through a single field and the thread sleeps in between.
+     */
+    private class ShardWorker implements Runnable {
+
+        private final FrameSink endpoint;
+        private final Thread thread;
+        private volatile GridFrame shard;
+        /* Set by the router when a shard is handed, cleared once it is sent */
+        volatile boolean busy = false;
+
+        ShardWorker(FrameSink endpoint, String name) {
+            this.endpoint = endpoint;
+            this.thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void hand(GridFrame shard) {
+            busy = true;
+            this.shard = shard;
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                GridFrame current = shard;
+                if (current == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                shard = null;
+                try {
+                    GameEvents.sendFrame(endpoint, current);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Sending shard failed " + e);
+                } finally {
+                    current.release();
+                    busy = false;
+                    LockSupport.unpark(sender);
+                }
+            }
+        }
+    }
+}
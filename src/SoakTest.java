@@ -0,0 +1,249 @@
+import hsrw.illumination.client.intern.APIClientIntern;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * <p>Runs days of shows in hours and fails if anything grows.</p>
+ * <p>Starts a {@link StandInServer} and headless sessions like
+ * {@link LoadTest}, but everything runs <code>-speed</code> times faster:
+ * the frame loop, the animations, the controls and the players entering.
+ * Simulated time is counted in game frames, a loop that can't keep up only
+ * makes the run take longer.</p>
+ * <p>Every <code>-sample</code> seconds the live threads, the heap after a
+ * full collection and the mean frame time since the last sample are noted.
+ * The first <code>-settle</code> share of the run is left out, the rest is
+ * split in thirds. The smallest value of the first third is compared with
+ * the smallest value of the last one, so a collection or a hiccup at the
+ * wrong moment doesn't count as growth. Exits with status 1 if threads,
+ * heap or frame time grew beyond their limits or if no game started
+ * during the last third, so it can certify a build for weeks of unattended
+ * shows. A session the server dropped fails the run right away.</p>
+ *
+ * <p>Usage: <code>SoakTest [-hours simulated] [-speed n] [-sessions n]
+ * [-sample seconds] [-settle share] [-threads n] [-heap megabytes]
+ * [-drift share] [-width n] [-height n] [-stats file]</code></p>
+ */
+public class SoakTest {
+
+    /* Controls per second and time to enter of a real player */
+    private static final double INPUT_RATE = 4;
+    private static final long ENTRY_MILLIS = 500;
+
+    /**
+     * State of the JVM at one point of the run
+     */
+    static class Sample {
+        final double simulatedHours;
+        final int games;
+        final int threads;
+        final long heapBytes;
+        final double frameMillis;
+
+        Sample(double simulatedHours, int games, int threads, long heapBytes,
+               double frameMillis) {
+            this.simulatedHours = simulatedHours;
+            this.games = games;
+            this.threads = threads;
+            this.heapBytes = heapBytes;
+            this.frameMillis = frameMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%7.2f h %6d games %4d threads %8.2f MB heap %6.3f ms frame",
+                    simulatedHours, games, threads, heapBytes / 1048576.0, frameMillis);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        double hours = 24;
+        int speed = 30;
+        int sessions = 2;
+        int sampleSeconds = 10;
+        double settle = 0.2;
+        int threadGrowth = 2;
+        double heapGrowth = 16;
+        double drift = 0.5;
+        int width = 9;
+        int height = 14;
+        String statsFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-hours")) {
+                hours = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-speed")) {
+                speed = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-sessions")) {
+                sessions = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-sample")) {
+                sampleSeconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-settle")) {
+                settle = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-threads")) {
+                threadGrowth = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-heap")) {
+                heapGrowth = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-drift")) {
+                drift = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-width")) {
+                width = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-height")) {
+                height = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-stats")) {
+                statsFile = args[++i];
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+        FalldownApplet.getLogger().setLevel(Level.WARNING);
+
+        StandInServer server = new StandInServer(0, width, height);
+        server.setInputRate(INPUT_RATE * speed);
+        server.setEntryDelayMillis(ENTRY_MILLIS / speed);
+        server.start();
+        SessionStatsStore stats = statsFile != null
+                ? new SessionStatsStore(new File(statsFile), 1024) : null;
+
+        HeadlessRunner[] runners = new HeadlessRunner[sessions];
+        for (int i = 0; i < sessions; i++) {
+            APIClientIntern client = new TimedAPIClient("127.0.0.1", server.getPort(),
+                    "soak-test", "soak-test");
+            client.debug = false;
+            int gridX = client.getViewportWidth();
+            int gridY = client.getViewportHeight();
+            Falldown falldown = new Falldown(gridX, gridY, FalldownApplet.COLUMNS);
+            falldown.setAnimationSpeed(speed);
+            runners[i] = new HeadlessRunner(falldown,
+                    new ServerSession(client, "Falldown", stats), FalldownApplet.FPS * speed);
+            runners[i].addFrameSink(new CanvasFrameSink(client, gridX, gridY));
+            new Thread(runners[i], "soak-test-session-" + i).start();
+        }
+
+        long targetFrames = (long) (hours * 3600 * FalldownApplet.FPS);
+        System.out.println(String.format("soak: %.1f simulated hours, %d sessions at %dx,"
+                        + " about %.0f minutes", hours, sessions, speed,
+                hours * 60 / speed));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        List<StandInServer.Session> standInSessions = server.getSessions();
+        List<Sample> samples = new ArrayList<Sample>();
+        long lastCount = 0;
+        double lastSum = 0;
+        long frames = 0;
+        while (frames < targetFrames) {
+            Thread.sleep(sampleSeconds * 1000L);
+
+            frames = Long.MAX_VALUE;
+            long count = 0;
+            double sum = 0;
+            for (HeadlessRunner runner : runners) {
+                frames = Math.min(frames, runner.getFrameCount());
+                LatencyHistogram frameTimes = runner.getFrameTimes();
+                long n = frameTimes.getCount();
+                count += n;
+                sum += frameTimes.getMeanMillis() * n;
+            }
+            int games = 0;
+            for (StandInServer.Session session : standInSessions) {
+                games += session.getGamesStarted();
+                if (!session.isConnected()) {
+                    System.out.println("FAILED: a session lost its connection after "
+                            + String.format("%.2f", frames / (3600.0 * FalldownApplet.FPS))
+                            + " simulated hours");
+                    System.exit(1);
+                }
+            }
+            double frameMillis = count > lastCount ? (sum - lastSum) / (count - lastCount) : 0;
+            lastCount = count;
+            lastSum = sum;
+
+            System.gc();
+            Sample sample = new Sample(frames / (3600.0 * FalldownApplet.FPS), games,
+                    threads.getThreadCount(), memory.getHeapMemoryUsage().getUsed(),
+                    frameMillis);
+            samples.add(sample);
+            System.out.println(sample);
+        }
+
+        for (HeadlessRunner runner : runners) {
+            runner.stop();
+        }
+        if (stats != null) {
+            stats.close();
+            System.out.println("stats: " + stats.getStoredRecords() + " games stored, "
+                    + stats.getDroppedRecords() + " dropped");
+        }
+
+        boolean passed = check(samples, settle, threadGrowth, heapGrowth * 1048576, drift);
+        // The client library keeps retrying on closed connections, so the
+        // server is left running until the JVM exits
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Compares the start of the measured run with its end
+     *
+     * @return true if nothing grew beyond its limit
+     */
+    static boolean check(List<Sample> samples, double settle, int threadGrowth,
+                         double heapGrowth, double drift) {
+        int from = (int) (samples.size() * settle);
+        int third = (samples.size() - from) / 3;
+        if (third == 0) {
+            System.out.println("FAILED: too few samples, run longer or sample more often");
+            return false;
+        }
+        List<Sample> first = samples.subList(from, from + third);
+        List<Sample> last = samples.subList(samples.size() - third, samples.size());
+
+        boolean passed = true;
+        int threadsBefore = Integer.MAX_VALUE;
+        int threadsAfter = Integer.MAX_VALUE;
+        long heapBefore = Long.MAX_VALUE;
+        long heapAfter = Long.MAX_VALUE;
+        double frameBefore = Double.MAX_VALUE;
+        double frameAfter = Double.MAX_VALUE;
+        for (Sample sample : first) {
+            threadsBefore = Math.min(threadsBefore, sample.threads);
+            heapBefore = Math.min(heapBefore, sample.heapBytes);
+            frameBefore = Math.min(frameBefore, sample.frameMillis);
+        }
+        for (Sample sample : last) {
+            threadsAfter = Math.min(threadsAfter, sample.threads);
+            heapAfter = Math.min(heapAfter, sample.heapBytes);
+            frameAfter = Math.min(frameAfter, sample.frameMillis);
+        }
+
+        System.out.println(String.format("threads %d -> %d (limit +%d)",
+                threadsBefore, threadsAfter, threadGrowth));
+        if (threadsAfter - threadsBefore > threadGrowth) {
+            passed = false;
+        }
+        System.out.println(String.format("heap    %.2f MB -> %.2f MB (limit +%.1f MB)",
+                heapBefore / 1048576.0, heapAfter / 1048576.0, heapGrowth / 1048576));
+        if (heapAfter - heapBefore > heapGrowth) {
+            passed = false;
+        }
+        System.out.println(String.format("frame   %.3f ms -> %.3f ms (limit +%.0f%%)",
+                frameBefore, frameAfter, drift * 100));
+        if (frameAfter > frameBefore * (1 + drift)) {
+            passed = false;
+        }
+        // A lobby that stopped admitting players doesn't grow, it stalls
+        int gamesBefore = samples.get(samples.size() - third - 1).games;
+        int gamesAfter = samples.get(samples.size() - 1).games;
+        System.out.println(String.format("games   %d in the last third", gamesAfter - gamesBefore));
+        if (gamesAfter == gamesBefore) {
+            passed = false;
+        }
+        System.out.println(passed ? "OK" : "FAILED");
+        return passed;
+    }
+}
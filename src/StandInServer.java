@@ -0,0 +1,535 @@
+import hsrw.illumination.client.intern.Proto;
+import hsrw.illumination.client.intern.Proto.APIIntern;
+import hsrw.illumination.client.intern.Proto.APIIntern.MsgCommand;
+import hsrw.illumination.client.intern.Proto.APIIntern.MsgType;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Local stand-in for the illumination server.</p>
+ * <p>Speaks the protocol of <code>APIClientIntern</code>: length prefixed
+ * protobuf messages over TCP. It answers login, configuration, schedule and
+ * canvas requests, lets simulated players knock after a game was scheduled
+ * and pushes their controls at a configurable rate once the game is
+ * live.</p>
+ * <p>Every received canvas is inspected for the player block. This allows
+ * to measure the time from sending a control message until a frame with the
+ * moved player arrives.</p>
+ *
+ * <p>Usage: <code>StandInServer [-port n] [-width n] [-height n] [-rate
+ * inputsPerSecond] [-entry milliseconds]</code></p>
+ */
+public class StandInServer {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    /* Colour of the player in received canvases */
+    private static final int PLAYER_RGB = BlockColors.PLAYER & 0xFFFFFF;
+
+    /* Inputs that didn't show up in a frame within this time are dropped */
+    private static final long INPUT_TIMEOUT_NANOS = 1000000000L;
+
+    private final int port;
+    private final int viewportWidth;
+    private final int viewportHeight;
+
+    private volatile double inputRate = 4;
+    private volatile long entryDelayMillis = 1000;
+    private volatile boolean autoPlayers = true;
+
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private final ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(2, daemonThreads("stand-in-scheduler"));
+    private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+
+    private final AtomicInteger messageIds = new AtomicInteger();
+    private final AtomicInteger instanceIds = new AtomicInteger();
+    private final AtomicInteger playerIds = new AtomicInteger();
+
+    /**
+     * @param port           Port to listen on, 0 picks a free one
+     * @param viewportWidth  Width of the simulated facade
+     * @param viewportHeight Height of the simulated facade
+     */
+    public StandInServer(int port, int viewportWidth, int viewportHeight) {
+        this.port = port;
+        this.viewportWidth = viewportWidth;
+        this.viewportHeight = viewportHeight;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 3001;
+        int width = 9;
+        int height = 14;
+        double rate = 4;
+        long entry = 1000;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-port")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-width")) {
+                width = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-height")) {
+                height = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-rate")) {
+                rate = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-entry")) {
+                entry = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+        StandInServer server = new StandInServer(port, width, height);
+        server.setInputRate(rate);
+        server.setEntryDelayMillis(entry);
+        server.start();
+        logger.log(Level.INFO, "Stand-in server listening on port " + server.getPort());
+        // Every thread of the server is a daemon, keep the VM alive
+        server.join();
+    }
+
+    // #########################################################################
+    // SERVER
+    // #########################################################################
+
+    /**
+     * Starts listening for clients in a background thread
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        Session session = new Session(socket);
+                        sessions.add(session);
+                        Thread thread = new Thread(session, "stand-in-session-" + sessions.size());
+                        thread.setDaemon(true);
+                        thread.start();
+                    } catch (IOException e) {
+                        if (!serverSocket.isClosed()) {
+                            logger.log(Level.WARNING, "Accepting client failed " + e);
+                        }
+                    }
+                }
+            }
+        }, "stand-in-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Closes every connection and stops the server
+     */
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Closing server socket failed " + e);
+        }
+        for (Session session : sessions) {
+            session.close();
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Waits until the server is stopped
+     */
+    public void join() throws InterruptedException {
+        acceptor.join();
+    }
+
+    /**
+     * @return port the server listens on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return every session that connected so far
+     */
+    public List<Session> getSessions() {
+        return new ArrayList<Session>(sessions);
+    }
+
+    /**
+     * @param inputsPerSecond Rate of control messages while a game is live,
+     *                        0 disables them
+     */
+    public void setInputRate(double inputsPerSecond) {
+        this.inputRate = inputsPerSecond;
+    }
+
+    /**
+     * @param millis Time between scheduling a game and a player knocking
+     */
+    public void setEntryDelayMillis(long millis) {
+        this.entryDelayMillis = millis;
+    }
+
+    /**
+     * @param autoPlayers If false players only enter through
+     *                    <code>Session.knock()</code>
+     */
+    public void setAutoPlayers(boolean autoPlayers) {
+        this.autoPlayers = autoPlayers;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    // #########################################################################
+    // SESSION
+    // #########################################################################
+
+    /**
+     * One connected client
+     */
+    public class Session implements Runnable {
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final DataInputStream in;
+        private final Random random = new Random();
+
+        private volatile int instanceId;
+        private volatile int playerId = -1;
+        private volatile boolean live = false;
+        private ScheduledFuture<?> inputTask;
+
+        /* Statistics */
+        private final AtomicLong framesReceived = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong inputsSent = new AtomicLong();
+        private final AtomicInteger gamesStarted = new AtomicInteger();
+        private volatile long firstFrameNanos;
+        private volatile long lastFrameNanos;
+        private final LatencyHistogram inputLatency = new LatencyHistogram();
+
+        /* Input that is waiting to show up in a frame */
+        private volatile long pendingInputNanos = 0;
+        private volatile int pendingFromX = -1;
+        private volatile int lastPlayerX = -1;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+            this.in = new DataInputStream(socket.getInputStream());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    handle(receive());
+                }
+            } catch (EOFException e) {
+                logger.log(Level.FINE, "Client disconnected");
+            } catch (SocketException e) {
+                logger.log(Level.FINE, "Connection closed " + e);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Session failed " + e);
+            } finally {
+                close();
+            }
+        }
+
+        private void handle(APIIntern message) throws IOException {
+            MsgCommand cmd = message.getCmd();
+            if (cmd == MsgCommand.CONFIG_GET) {
+                send(response(message).setConfigData(Proto.Config.newBuilder()
+                        .setWidth(viewportWidth)
+                        .setHeight(viewportHeight)));
+            } else if (cmd == MsgCommand.SCHEDULE_ADD) {
+                instanceId = instanceIds.incrementAndGet();
+                send(response(message).setScheduleItem(message.getScheduleItem().toBuilder()
+                        .setInstanceId(instanceId)));
+                if (autoPlayers) {
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            knock();
+                        }
+                    }, entryDelayMillis, TimeUnit.MILLISECONDS);
+                }
+            } else if (cmd == MsgCommand.CANVAS_DRAW_ON) {
+                frameReceived(message.getCanvasData());
+            } else if (cmd == MsgCommand.LIVE_PLAY_ADD_PLAYER) {
+                // The client accepted the knocking player
+                startLivePlay();
+            } else if (cmd == MsgCommand.LIVE_PLAY_STOP) {
+                // The client kicked the player
+                stopLivePlay();
+            } else if (message.getType() == MsgType.REQUEST) {
+                send(response(message));
+            }
+        }
+
+        /**
+         * Lets a new player knock at the game
+         */
+        public void knock() {
+            if (live || socket.isClosed()) {
+                return;
+            }
+            playerId = playerIds.incrementAndGet();
+            sendQuietly(message(MsgType.REQUEST, MsgCommand.LIVE_PLAY_ADD_PLAYER)
+                    .setPlayer(player()));
+        }
+
+        /**
+         * Pushes a control message of the current player
+         *
+         * @param data Control, for example <code>ServerSession.CTL_LEFT</code>
+         */
+        public void pushInput(String data) {
+            if (!live) {
+                return;
+            }
+            sendQuietly(message(MsgType.ALERT, MsgCommand.LIVE_PLAY_PUSH_DATA)
+                    .setLivePlayData(Proto.LivePlayData.newBuilder()
+                            .setGameData(data)
+                            .setInstanceId(instanceId))
+                    .setPlayer(player()));
+            inputsSent.incrementAndGet();
+        }
+
+        private synchronized void startLivePlay() {
+            live = true;
+            gamesStarted.incrementAndGet();
+            sendQuietly(message(MsgType.ALERT, MsgCommand.LIVE_PLAY_START));
+            if (inputRate > 0) {
+                long period = (long) (1000000000L / inputRate);
+                inputTask = scheduler.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        injectInput();
+                    }
+                }, period, period, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void stopLivePlay() {
+            stopInputs();
+            pendingInputNanos = 0;
+            sendQuietly(message(MsgType.ALERT, MsgCommand.LIVE_PLAY_STOP));
+        }
+
+        /**
+         * Sends a random move. If no other move is being measured, remembers
+         * when it was sent to find the frame it appears in.
+         */
+        private void injectInput() {
+            int x = lastPlayerX;
+            boolean left;
+            if (x <= 0) {
+                left = false;
+            } else if (x >= viewportWidth - 1) {
+                left = true;
+            } else {
+                left = random.nextBoolean();
+            }
+            long now = System.nanoTime();
+            if (pendingInputNanos != 0 && now - pendingInputNanos > INPUT_TIMEOUT_NANOS) {
+                pendingInputNanos = 0;
+            }
+            if (pendingInputNanos == 0 && x >= 0) {
+                pendingFromX = x;
+                pendingInputNanos = now;
+            }
+            pushInput(left ? ServerSession.CTL_LEFT : ServerSession.CTL_RIGHT);
+        }
+
+        private void frameReceived(Proto.Canvas canvas) {
+            long now = System.nanoTime();
+            if (framesReceived.getAndIncrement() == 0) {
+                firstFrameNanos = now;
+            }
+            lastFrameNanos = now;
+            bytesReceived.addAndGet(canvas.getImageData().size());
+
+            int x = findPlayerX(canvas);
+            if (x >= 0) {
+                long pending = pendingInputNanos;
+                if (pending != 0 && x != pendingFromX) {
+                    inputLatency.record(now - pending);
+                    pendingInputNanos = 0;
+                }
+            }
+            lastPlayerX = x;
+        }
+
+        /**
+         * Looks for the player in an RGB canvas
+         *
+         * @return column of the player or -1 if it isn't visible
+         */
+        private int findPlayerX(Proto.Canvas canvas) {
+            byte[] rgb = canvas.getImageData().toByteArray();
+            int width = canvas.getWidth();
+            for (int i = 0; i + 2 < rgb.length; i += 3) {
+                int color = ((rgb[i] & 0xFF) << 16) | ((rgb[i + 1] & 0xFF) << 8) | (rgb[i + 2] & 0xFF);
+                if (color == PLAYER_RGB) {
+                    return (i / 3) % width;
+                }
+            }
+            return -1;
+        }
+
+        // #####################################################################
+        // PROTOCOL
+        // #####################################################################
+
+        private APIIntern receive() throws IOException {
+            int length = Integer.reverseBytes(in.readInt());
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return APIIntern.parseFrom(data);
+        }
+
+        private synchronized void send(APIIntern.Builder message) throws IOException {
+            byte[] data = message.build().toByteArray();
+            byte[] frame = new byte[data.length + 4];
+            frame[0] = (byte) data.length;
+            frame[1] = (byte) (data.length >>> 8);
+            frame[2] = (byte) (data.length >>> 16);
+            frame[3] = (byte) (data.length >>> 24);
+            System.arraycopy(data, 0, frame, 4, data.length);
+            out.write(frame);
+            out.flush();
+        }
+
+        private void sendQuietly(APIIntern.Builder message) {
+            try {
+                send(message);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Sending to closed session failed " + e);
+            }
+        }
+
+        private APIIntern.Builder message(MsgType type, MsgCommand cmd) {
+            return APIIntern.newBuilder()
+                    .setId(messageIds.incrementAndGet())
+                    .setType(type)
+                    .setCmd(cmd);
+        }
+
+        private APIIntern.Builder response(APIIntern request) {
+            return APIIntern.newBuilder()
+                    .setId(request.getId())
+                    .setType(MsgType.RESPONSE_SUCCESS)
+                    .setCmd(request.getCmd());
+        }
+
+        private Proto.Player.Builder player() {
+            return Proto.Player.newBuilder()
+                    .setPlayerId(playerId)
+                    .setGameData("player-" + playerId);
+        }
+
+        /**
+         * Closes the connection
+         */
+        public void close() {
+            stopInputs();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Closing session failed " + e);
+            }
+        }
+
+        private synchronized void stopInputs() {
+            live = false;
+            if (inputTask != null) {
+                inputTask.cancel(false);
+                inputTask = null;
+            }
+        }
+
+        // #####################################################################
+        // STATISTICS
+        // #####################################################################
+
+        public boolean isLive() {
+            return live;
+        }
+
+        /**
+         * @return false once the client or the server closed the connection,
+         * for example after a corrupt message
+         */
+        public boolean isConnected() {
+            return !socket.isClosed();
+        }
+
+        public long getFramesReceived() {
+            return framesReceived.get();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.get();
+        }
+
+        public long getInputsSent() {
+            return inputsSent.get();
+        }
+
+        public int getGamesStarted() {
+            return gamesStarted.get();
+        }
+
+        /**
+         * @return frames per second received since the first frame
+         */
+        public double getReceivedFps() {
+            long frames = framesReceived.get();
+            long span = lastFrameNanos - firstFrameNanos;
+            return frames < 2 || span <= 0 ? 0 : (frames - 1) * 1e9 / span;
+        }
+
+        /**
+         * @return time from sending a move until a frame showed the moved
+         * player
+         */
+        public LatencyHistogram getInputLatency() {
+            return inputLatency;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import hsrw.illumination.client.intern.APIClientIntern;
+import hsrw.illumination.client.intern.Proto;
+import hsrw.illumination.client.intern.arbiter.Player;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>Client that notes when every player message arrived.</p>
+ * <p>The library queues player messages on its network thread until the
+ * game polls them. This client stamps each message as it is queued, so the
+ * latency of an input includes the time it waited for the next frame. The
+ * stamps are taken in the order of <code>getReceivedMessage()</code>,
+ * messages the library drops because their player isn't active get
+ * none.</p>
+ */
+public class TimedAPIClient extends APIClientIntern {
+
+    private final ConcurrentLinkedQueue<Long> receipts = new ConcurrentLinkedQueue<Long>();
+
+    public TimedAPIClient(String host, int port, String login, String password) {
+        super(host, port, login, password);
+    }
+
+    @Override
+    protected void playerPushedMessage(Proto.LivePlayData data, Proto.Player player) {
+        // Stamped before the message becomes visible to the game
+        if (receipts != null && isActivePlayer(player.getPlayerId())) {
+            receipts.offer(System.nanoTime());
+        }
+        super.playerPushedMessage(data, player);
+    }
+
+    private boolean isActivePlayer(int id) {
+        for (Player active : activePlayers) {
+            if (active.getId() == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the receipt of the message returned by the last
+     * <code>getReceivedMessage()</code>
+     *
+     * @return <code>System.nanoTime()</code> at receipt or now if unknown
+     */
+    public long takeReceiptNanos() {
+        Long receipt = receipts.poll();
+        return receipt != null ? receipt : System.nanoTime();
+    }
+
+    /**
+     * Forgets the receipts of messages nobody polled. Has to be called
+     * after the pending messages were drained, or later messages get their
+     * receipts.
+     */
+    public void clearReceipts() {
+        receipts.clear();
+    }
+
+    /**
+     * @param client Any client
+     * @return receipt of the last polled message, now if the client doesn't
+     * stamp messages
+     */
+    public static long takeReceiptNanos(APIClientIntern client) {
+        if (client instanceof TimedAPIClient) {
+            return ((TimedAPIClient) client).takeReceiptNanos();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Drops the messages no game polled and their receipts, so the next
+     * input is matched with its own receipt
+     *
+     * @param client Any client
+     */
+    public static void discardPending(APIClientIntern client) {
+        while (client.hasMessageReceived()) {
+            client.getReceivedMessage();
+        }
+        if (client instanceof TimedAPIClient) {
+            ((TimedAPIClient) client).clearReceipts();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+import com.google.protobuf.CodedOutputStream;
+import hsrw.illumination.client.intern.APIClientIntern;
+import hsrw.illumination.client.intern.Communication;
+import hsrw.illumination.client.intern.Proto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * <p>Plays games nobody sees until the JIT compiled the frame loop.</p>
+ * <p>A fresh JVM interprets <code>updateGrid()</code>, the colour
+ * conversion and the canvas encoding for the first thousands of frames,
+ * so the first real player gets a stuttering game. The warm up runs an
+ * unanimated game with a bot for a number of ticks and hands every frame to
+ * a sink that does all the work of the server canvas: block colours, LED
+ * correction, the image and the protobuf message of the library. The
+ * message goes to a stream that discards it.</p>
+ * <p>The ticks are measured in windows of <code>WINDOW_TICKS</code>. The
+ * hot methods are at their steady state once <code>STEADY_WINDOWS</code>
+ * windows in a row neither compiled anything nor got faster. Compilation
+ * time is counted for the whole JVM, work in other threads delays the
+ * report.</p>
+ * <p>Usage: <code>WarmUp [-ticks n] [-width n] [-height n]</code></p>
+ */
+public class WarmUp {
+
+    private static Logger logger = FalldownApplet.getLogger();
+
+    /* Ticks measured together */
+    private static final int WINDOW_TICKS = 500;
+    /* Quiet windows in a row for the steady state */
+    private static final int STEADY_WINDOWS = 3;
+    /* A window this much faster than the last one still got faster */
+    private static final double SPEEDUP = 0.9;
+
+    /* Ticks between the moves of the bot, a player isn't faster */
+    private static final int REACTION_FRAMES = 5;
+
+    private final Falldown falldown;
+    private final BotPlayer bot;
+    private final DiscardCanvasSink sink;
+    private final CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+
+    private int ticks = 0;
+    private int games = 0;
+    private int steadyTick = -1;
+    private long windowNanos = 0;
+    private long millis = 0;
+    private final StringBuilder windows = new StringBuilder();
+
+    /**
+     * @param width  Width of the grid the game will be played on
+     * @param height Height of the grid the game will be played on
+     * @param colors Colour correction of the canvas
+     */
+    public WarmUp(int width, int height, ColorPipeline colors) {
+        Random random = new Random();
+        this.falldown = new Falldown(width, height, FalldownApplet.COLUMNS,
+                LevelParameters.DEFAULT, random, false);
+        // Every game logs its start, nobody needs to read that here. Other
+        // games keep logging as configured.
+        Logger quiet = Logger.getAnonymousLogger();
+        quiet.setParent(logger);
+        quiet.setLevel(Level.WARNING);
+        falldown.setLogger(quiet);
+        this.bot = BotPlayer.create("greedy", random);
+        this.sink = new DiscardCanvasSink(width, height, colors);
+        falldown.resetAndPurge();
+    }
+
+    /**
+     * Runs the given number of ticks in the calling thread and reports the
+     * steady state
+     *
+     * @param count Ticks to run
+     * @return true if the steady state was reached
+     */
+    public boolean run(int count) {
+        runWindows(count);
+        return report();
+    }
+
+    private void runWindows(int count) {
+        long start = System.nanoTime();
+        long compiled = getCompilationMillis();
+        long lastWindow = 0;
+        int quietWindows = 0;
+
+        int end = ticks + count;
+        while (ticks < end) {
+            int window = Math.min(WINDOW_TICKS, end - ticks);
+            long windowStart = System.nanoTime();
+            for (int i = 0; i < window; i++) {
+                tick();
+            }
+            long nanos = System.nanoTime() - windowStart;
+            if (window < WINDOW_TICKS || steadyTick >= 0) {
+                continue;
+            }
+
+            long nowCompiled = getCompilationMillis();
+            boolean faster = lastWindow > 0 && nanos < lastWindow * SPEEDUP;
+            if (nowCompiled == compiled && lastWindow > 0 && !faster) {
+                if (++quietWindows == STEADY_WINDOWS) {
+                    steadyTick = ticks - STEADY_WINDOWS * WINDOW_TICKS;
+                    windowNanos = nanos;
+                }
+            } else {
+                quietWindows = 0;
+            }
+            windows.append(' ').append(nanos / WINDOW_TICKS / 1000)
+                    .append('/').append(nowCompiled - compiled);
+            compiled = nowCompiled;
+            lastWindow = nanos;
+        }
+        millis += (System.nanoTime() - start) / 1000000;
+    }
+
+    private boolean report() {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Warm up windows (us per tick/ms compiled):" + windows);
+        }
+        if (steadyTick >= 0) {
+            logger.log(Level.INFO, "Warm up steady after " + steadyTick + " ticks, "
+                    + windowNanos / WINDOW_TICKS / 1000.0 + " us per tick, "
+                    + ticks + " ticks and " + games + " games in " + millis + " ms");
+            return true;
+        }
+        logger.log(Level.WARNING, "Warm up not steady after " + ticks + " ticks in "
+                + millis + " ms, the JIT is still compiling");
+        return false;
+    }
+
+    private void tick() {
+        if (ticks % REACTION_FRAMES == 0) {
+            BotPlayer.apply(falldown, bot.decide(falldown, ticks));
+        }
+        falldown.update(ticks);
+        GridFrame frame = falldown.acquireFrame();
+        sink.sendFrame(frame);
+        frame.release();
+        ticks++;
+
+        if (falldown.isPlayerDead() || falldown.isGameWon()) {
+            falldown.resetAndPurge();
+            games++;
+        }
+    }
+
+    private long getCompilationMillis() {
+        if (compiler == null || !compiler.isCompilationTimeMonitoringSupported()) {
+            return 0;
+        }
+        return compiler.getTotalCompilationTime();
+    }
+
+    /**
+     * @return tick the steady state started at, -1 if not reached
+     */
+    public int getSteadyTick() {
+        return steadyTick;
+    }
+
+    public int getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Frees the game
+     */
+    public void close() {
+        falldown.close();
+        sink.close();
+    }
+
+    // #########################################################################
+    // DISCARD SINK
+    // #########################################################################
+
+    /**
+     * Does what a canvas sink and the library do with a frame, without a
+     * server
+     */
+    private static class DiscardCanvasSink implements FrameSink {
+
+        private final PImage image;
+        private final Random random = new Random();
+        private final ColorPipeline.Stage colors;
+        private final Communication communication;
+
+        DiscardCanvasSink(int width, int height, ColorPipeline colors) {
+            this.image = new PImage(width, height, PConstants.RGB);
+            this.colors = colors.createStage(width * height);
+            // An unconnected client, the library only asks it for debug output
+            this.communication = new Communication(
+                    CodedOutputStream.newInstance(new DiscardStream()), null,
+                    new APIClientIntern());
+        }
+
+        @Override
+        public void sendFrame(GridFrame frame) {
+            BlockColors.toRgb(frame, image.pixels, random);
+            colors.applyAll(image.pixels, image.pixels, image.width * image.height);
+            image.updatePixels();
+
+            // Same message as APIClientIntern.drawCanvas()
+            Proto.APIIntern.Builder message = communication.createM(0)
+                    .setCmd(Proto.APIIntern.MsgCommand.CANVAS_DRAW_ON);
+            Proto.Canvas.Builder canvas = Proto.Canvas.newBuilder()
+                    .setPosX(0)
+                    .setPosY(0)
+                    .setWidth(image.width)
+                    .setHeight(image.height)
+                    .setImageData(communication.pimageToByteString(image));
+            message.setCanvasData(canvas);
+            try {
+                communication.sendM(message);
+            } catch (IOException e) {
+                // Can't happen, nothing is written anywhere
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class DiscardStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    // #########################################################################
+    // MAIN
+    // #########################################################################
+
+    public static void main(String[] args) {
+        int ticks = 20000;
+        int width = 9;
+        int height = 14;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-ticks")) {
+                ticks = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-width")) {
+                width = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-height")) {
+                height = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+        WarmUp warmUp = new WarmUp(width, height, ColorPipeline.parse("gamma=2.2;dither=true"));
+        boolean steady = warmUp.run(ticks);
+        warmUp.close();
+        System.exit(steady ? 0 : 1);
+    }
+}
@@ -0,0 +1,149 @@
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * <p>Bulk colour conversions on the vector API.</p>
+ * <p>Loaded by {@link BlockColors} when available, see there. Needs
+ * <code>--add-modules jdk.incubator.vector</code> to compile and to run,
+ * which is why it lives apart from <code>src/</code>:</p>
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -cp bin -d bin vector/*.java
+ * </pre>
+ * <p>Blocks are turned into colours by comparing a whole vector of blocks
+ * with every block type and blending in its colour. The colour correction
+ * gathers every channel from its table and adds the dithering carry or the
+ * rounding lane by lane. Colours are packed to RGB bytes by one shuffle per
+ * vector that drops the alpha bytes. All of it gives the same result as
+ * the scalar loops, including the order in which the colours of
+ * <code>RANDOM_BLOCK</code> are drawn.</p>
+ */
+public class VectorBlockColors implements BlockColors.Bulk {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES =
+            VectorSpecies.of(byte.class, INTS.vectorShape());
+
+    private static final IntVector EMPTY = IntVector.broadcast(INTS, BlockColors.EMPTY);
+    private static final IntVector NORMAL = IntVector.broadcast(INTS, BlockColors.NORMAL);
+    private static final IntVector FADING = IntVector.broadcast(INTS, BlockColors.FADING);
+    private static final IntVector PLAYER = IntVector.broadcast(INTS, BlockColors.PLAYER);
+    private static final IntVector TREASURE = IntVector.broadcast(INTS, BlockColors.TREASURE);
+    private static final IntVector RED = IntVector.broadcast(INTS, BlockColors.RED);
+
+    /* Picks red, green and blue of every colour, the rest of the lanes is
+       left over */
+    private static final VectorShuffle<Byte> PACK = createPackShuffle();
+    private static final int PACKED_BYTES = INTS.length() * 3;
+
+    private static VectorShuffle<Byte> createPackShuffle() {
+        // Position of the bytes of 0xAARRGGBB within the int in memory
+        boolean little = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+        int red = little ? 2 : 1;
+        int green = little ? 1 : 2;
+        int blue = little ? 0 : 3;
+        int[] indices = new int[BYTES.length()];
+        for (int pixel = 0; pixel < INTS.length(); pixel++) {
+            indices[pixel * 3] = pixel * 4 + red;
+            indices[pixel * 3 + 1] = pixel * 4 + green;
+            indices[pixel * 3 + 2] = pixel * 4 + blue;
+        }
+        return VectorShuffle.fromArray(BYTES, indices, 0);
+    }
+
+    @Override
+    public void toRgb(int[] blocks, int count, int[] target, Random random) {
+        int bound = INTS.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += INTS.length()) {
+            IntVector block = IntVector.fromArray(INTS, blocks, i);
+            EMPTY.blend(NORMAL, block.eq(Falldown.NORMAL_BLOCK))
+                    .blend(FADING, block.eq(Falldown.FADING_BLOCK))
+                    .blend(PLAYER, block.eq(Falldown.PLAYER_BLOCK))
+                    .blend(TREASURE, block.eq(Falldown.TREASURE_BLOCK))
+                    .blend(RED, block.eq(Falldown.RED_BLOCK))
+                    .intoArray(target, i);
+            // Lanes are looked at one by one through the array, a mask that
+            // is read per lane is allocated on the heap
+            if (block.eq(Falldown.RANDOM_BLOCK).anyTrue()) {
+                for (int j = i; j < i + INTS.length(); j++) {
+                    if (blocks[j] == Falldown.RANDOM_BLOCK) {
+                        target[j] = BlockColors.randomColor(random);
+                    }
+                }
+            }
+        }
+        BlockColors.toRgbScalar(blocks, i, count - i, target, random);
+    }
+
+    @Override
+    public int correct(int[] red, int[] green, int[] blue, int[] carry,
+                       int[] source, int[] target, int count, int[] lanes) {
+        int bound = INTS.loopBound(count);
+        for (int i = 0; i < bound; i += INTS.length()) {
+            IntVector rgb = IntVector.fromArray(INTS, source, i);
+            IntVector r = gather(red, rgb.lanewise(VectorOperators.LSHR, 16), lanes);
+            IntVector g = gather(green, rgb.lanewise(VectorOperators.LSHR, 8), lanes);
+            IntVector b = gather(blue, rgb, lanes);
+            if (carry != null) {
+                IntVector previous = IntVector.fromArray(INTS, carry, i);
+                r = r.add(previous.lanewise(VectorOperators.LSHR, 16).and(0xFF));
+                g = g.add(previous.lanewise(VectorOperators.LSHR, 8).and(0xFF));
+                b = b.add(previous.and(0xFF));
+                r.and(0xFF).lanewise(VectorOperators.LSHL, 16)
+                        .or(g.and(0xFF).lanewise(VectorOperators.LSHL, 8))
+                        .or(b.and(0xFF))
+                        .intoArray(carry, i);
+            } else {
+                // Round instead of carrying the fraction
+                r = r.add(0x80);
+                g = g.add(0x80);
+                b = b.add(0x80);
+            }
+            r.lanewise(VectorOperators.ASHR, 8).min(255).lanewise(VectorOperators.LSHL, 16)
+                    .or(g.lanewise(VectorOperators.ASHR, 8).min(255).lanewise(VectorOperators.LSHL, 8))
+                    .or(b.lanewise(VectorOperators.ASHR, 8).min(255))
+                    .or(0xFF000000)
+                    .intoArray(target, i);
+        }
+        return bound;
+    }
+
+    /**
+     * Looks up one channel of every lane
+     *
+     * @param table   Table of the channel
+     * @param shifted Colours with the channel in the lowest byte
+     * @param lanes   Scratch array for the indices
+     */
+    private static IntVector gather(int[] table, IntVector shifted, int[] lanes) {
+        shifted.and(0xFF).intoArray(lanes, 0);
+        return IntVector.fromArray(INTS, table, 0, lanes, 0);
+    }
+
+    @Override
+    public void packRgb(int[] source, int from, int count, byte[] target, int offset) {
+        // A vector stores more bytes than it packs, the next one overwrites
+        // them. The last ones go the scalar way to stay within the target.
+        int end = offset + count * 3;
+        int i = from;
+        while (i + INTS.length() <= from + count && offset + BYTES.length() <= end) {
+            IntVector.fromArray(INTS, source, i)
+                    .reinterpretAsBytes()
+                    .rearrange(PACK)
+                    .intoArray(target, offset);
+            i += INTS.length();
+            offset += PACKED_BYTES;
+        }
+        BlockColors.packRgbScalar(source, i, from + count - i, target, offset);
+    }
+
+    @Override
+    public int getLanes() {
+        return INTS.length();
+    }
+}